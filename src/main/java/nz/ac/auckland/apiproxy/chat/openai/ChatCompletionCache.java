@@ -0,0 +1,216 @@
+package nz.ac.auckland.apiproxy.chat.openai;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+
+/**
+ * Two-tier cache of chat completions keyed by a hash of the model, sampling parameters and message
+ * list. The first tier is an in-memory LRU; the optional second tier stores one file per entry so
+ * scripted replies survive restarts. Both tiers expire entries after a fixed time-to-live.
+ *
+ * <p>Configured with the system properties {@code apiproxy.cache.maxEntries} (default 256), {@code
+ * apiproxy.cache.ttlMinutes} (default 360) and {@code apiproxy.cache.dir} (unset keeps the cache in
+ * memory only).
+ */
+public final class ChatCompletionCache {
+
+  private static final int HEADER_BYTES = Long.BYTES;
+
+  private static ChatCompletionCache instance;
+
+  /**
+   * Returns the shared cache, creating it from the system properties on first use.
+   *
+   * @return the process-wide cache
+   */
+  public static synchronized ChatCompletionCache getInstance() {
+    if (instance == null) {
+      String dir = System.getProperty("apiproxy.cache.dir");
+      instance =
+          new ChatCompletionCache(
+              Integer.getInteger("apiproxy.cache.maxEntries", 256),
+              TimeUnit.MINUTES.toMillis(Long.getLong("apiproxy.cache.ttlMinutes", 360)),
+              dir == null || dir.isBlank() ? null : Paths.get(dir));
+    }
+    return instance;
+  }
+
+  private final int maxEntries;
+  private final long ttlMs;
+  private final Path directory;
+  private final Map<String, Entry> memory;
+  private final AtomicLong hits = new AtomicLong();
+  private final AtomicLong misses = new AtomicLong();
+
+  /**
+   * Creates a cache. Most callers should use {@link #getInstance()}.
+   *
+   * @param maxEntries the number of entries kept in memory
+   * @param ttlMs how long an entry stays valid, in milliseconds
+   * @param directory where to persist entries, or null for memory only
+   */
+  public ChatCompletionCache(int maxEntries, long ttlMs, Path directory) {
+    this.maxEntries = maxEntries;
+    this.ttlMs = ttlMs;
+    this.directory = directory;
+    this.memory =
+        new LinkedHashMap<>(16, 0.75f, true) {
+          private static final long serialVersionUID = 1L;
+
+          @Override
+          protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+            return size() > ChatCompletionCache.this.maxEntries;
+          }
+        };
+  }
+
+  /**
+   * Looks up a cached completion, falling back to disk when it is not in memory.
+   *
+   * @param key the request hash
+   * @return the cached completion JSON, or null if absent or expired
+   */
+  public byte[] get(String key) {
+    long now = System.currentTimeMillis();
+    synchronized (memory) {
+      Entry entry = memory.get(key);
+      if (entry != null) {
+        if (now - entry.createdMs <= ttlMs) {
+          hits.incrementAndGet();
+          return entry.value;
+        }
+        memory.remove(key);
+      }
+    }
+
+    Entry fromDisk = readFromDisk(key, now);
+    if (fromDisk == null) {
+      misses.incrementAndGet();
+      return null;
+    }
+    synchronized (memory) {
+      memory.put(key, fromDisk);
+    }
+    hits.incrementAndGet();
+    return fromDisk.value;
+  }
+
+  /**
+   * Stores a completion in memory and, if configured, on disk.
+   *
+   * @param key the request hash
+   * @param value the completion JSON
+   */
+  public void put(String key, byte[] value) {
+    Entry entry = new Entry(System.currentTimeMillis(), value);
+    synchronized (memory) {
+      memory.put(key, entry);
+    }
+    writeToDisk(key, entry);
+  }
+
+  /** Drops every entry from memory and disk. */
+  public void clear() {
+    synchronized (memory) {
+      memory.clear();
+    }
+    if (directory == null || !Files.isDirectory(directory)) {
+      return;
+    }
+    try (Stream<Path> files = Files.list(directory)) {
+      files.forEach(
+          file -> {
+            try {
+              Files.deleteIfExists(file);
+            } catch (IOException e) {
+              System.err.println("Could not delete cache file " + file + ": " + e.getMessage());
+            }
+          });
+    } catch (IOException e) {
+      System.err.println("Could not clear chat cache directory: " + e.getMessage());
+    }
+  }
+
+  public long getHits() {
+    return hits.get();
+  }
+
+  public long getMisses() {
+    return misses.get();
+  }
+
+  public int size() {
+    synchronized (memory) {
+      return memory.size();
+    }
+  }
+
+  private Entry readFromDisk(String key, long now) {
+    if (directory == null) {
+      return null;
+    }
+    Path file = directory.resolve(key);
+    try {
+      if (!Files.exists(file)) {
+        return null;
+      }
+      byte[] bytes = Files.readAllBytes(file);
+      if (bytes.length < HEADER_BYTES) {
+        Files.deleteIfExists(file);
+        return null;
+      }
+      long createdMs = ByteBuffer.wrap(bytes, 0, HEADER_BYTES).getLong();
+      if (now - createdMs > ttlMs) {
+        Files.deleteIfExists(file); // Expired, so stop it being read again
+        return null;
+      }
+      byte[] value = new byte[bytes.length - HEADER_BYTES];
+      System.arraycopy(bytes, HEADER_BYTES, value, 0, value.length);
+      return new Entry(createdMs, value);
+    } catch (IOException e) {
+      System.err.println("Could not read chat cache entry " + key + ": " + e.getMessage());
+      return null;
+    }
+  }
+
+  private void writeToDisk(String key, Entry entry) {
+    if (directory == null) {
+      return;
+    }
+    try {
+      Files.createDirectories(directory);
+      ByteBuffer buffer = ByteBuffer.allocate(HEADER_BYTES + entry.value.length);
+      buffer.putLong(entry.createdMs).put(entry.value);
+
+      // Write to a temporary file first so a crash never leaves a half-written entry behind
+      Path temp = Files.createTempFile(directory, key, ".tmp");
+      Files.write(temp, buffer.array());
+      Files.move(
+          temp,
+          directory.resolve(key),
+          StandardCopyOption.REPLACE_EXISTING,
+          StandardCopyOption.ATOMIC_MOVE);
+    } catch (IOException e) {
+      System.err.println("Could not write chat cache entry " + key + ": " + e.getMessage());
+    }
+  }
+
+  private static final class Entry {
+    private final long createdMs;
+    private final byte[] value;
+
+    private Entry(long createdMs, byte[] value) {
+      this.createdMs = createdMs;
+      this.value = value;
+    }
+  }
+}
@@ -0,0 +1,31 @@
+package nz.ac.auckland.apiproxy.chat.openai;
+
+import nz.ac.auckland.apiproxy.exceptions.ApiProxyException;
+
+/**
+ * Receives a streamed chat completion as it is generated. Callbacks are invoked on the thread that
+ * runs the request, so UI code must hop back onto its own thread before touching controls.
+ */
+public interface ChatCompletionListener {
+
+  /**
+   * Called for every piece of content that arrives, in order.
+   *
+   * @param delta the newly generated text
+   */
+  void onDelta(String delta);
+
+  /**
+   * Called once the reply has been fully received.
+   *
+   * @param message the complete assistant message
+   */
+  default void onComplete(ChatMessage message) {}
+
+  /**
+   * Called if the request fails before or during streaming.
+   *
+   * @param e the failure
+   */
+  default void onError(ApiProxyException e) {}
+}
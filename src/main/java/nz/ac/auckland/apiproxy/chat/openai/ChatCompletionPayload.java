@@ -0,0 +1,130 @@
+package nz.ac.auckland.apiproxy.chat.openai;
+
+import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.annotation.JsonProperty;
+import java.util.List;
+
+/**
+ * Typed view of the {@code chat_completion} object returned by the proxy. Jackson binds the
+ * response straight into these classes, so no intermediate maps or string parsing are needed.
+ */
+@JsonIgnoreProperties(ignoreUnknown = true)
+@JsonInclude(JsonInclude.Include.NON_NULL)
+public class ChatCompletionPayload {
+
+  @JsonProperty("model")
+  public final String model;
+
+  @JsonProperty("created")
+  public final long created;
+
+  @JsonProperty("usage")
+  public final Usage usage;
+
+  @JsonProperty("choices")
+  public final List<ChoicePayload> choices;
+
+  @JsonCreator
+  public ChatCompletionPayload(
+      @JsonProperty("model") String model,
+      @JsonProperty("created") long created,
+      @JsonProperty("usage") Usage usage,
+      @JsonProperty("choices") List<ChoicePayload> choices) {
+    this.model = model;
+    this.created = created;
+    this.usage = usage;
+    this.choices = choices == null ? List.of() : choices;
+  }
+
+  /** Token accounting reported for a completion. */
+  @JsonIgnoreProperties(ignoreUnknown = true)
+  public static class Usage {
+
+    @JsonProperty("prompt_tokens")
+    public final int promptTokens;
+
+    @JsonProperty("completion_tokens")
+    public final int completionTokens;
+
+    @JsonProperty("total_tokens")
+    public final int totalTokens;
+
+    @JsonProperty("prompt_tokens_details")
+    public final PromptTokensDetails promptTokensDetails;
+
+    public Usage(int promptTokens, int completionTokens, int totalTokens) {
+      this(promptTokens, completionTokens, totalTokens, null);
+    }
+
+    @JsonCreator
+    public Usage(
+        @JsonProperty("prompt_tokens") int promptTokens,
+        @JsonProperty("completion_tokens") int completionTokens,
+        @JsonProperty("total_tokens") int totalTokens,
+        @JsonProperty("prompt_tokens_details") PromptTokensDetails promptTokensDetails) {
+      this.promptTokens = promptTokens;
+      this.completionTokens = completionTokens;
+      this.totalTokens = totalTokens;
+      this.promptTokensDetails = promptTokensDetails;
+    }
+  }
+
+  /** Breakdown of the prompt tokens; {@code cached_tokens} were served from the prompt cache. */
+  @JsonIgnoreProperties(ignoreUnknown = true)
+  public static class PromptTokensDetails {
+
+    @JsonProperty("cached_tokens")
+    public final int cachedTokens;
+
+    @JsonCreator
+    public PromptTokensDetails(@JsonProperty("cached_tokens") int cachedTokens) {
+      this.cachedTokens = cachedTokens;
+    }
+  }
+
+  /** One generated alternative. */
+  @JsonIgnoreProperties(ignoreUnknown = true)
+  @JsonInclude(JsonInclude.Include.NON_NULL)
+  public static class ChoicePayload {
+
+    @JsonProperty("index")
+    public final int index;
+
+    @JsonProperty("finish_reason")
+    public final String finishReason;
+
+    @JsonProperty("message")
+    public final MessagePayload message;
+
+    @JsonCreator
+    public ChoicePayload(
+        @JsonProperty("index") int index,
+        @JsonProperty("finish_reason") String finishReason,
+        @JsonProperty("message") MessagePayload message) {
+      this.index = index;
+      this.finishReason = finishReason;
+      this.message = message;
+    }
+  }
+
+  /** The role and text of a generated message. */
+  @JsonIgnoreProperties(ignoreUnknown = true)
+  @JsonInclude(JsonInclude.Include.NON_NULL)
+  public static class MessagePayload {
+
+    @JsonProperty("role")
+    public final String role;
+
+    @JsonProperty("content")
+    public final String content;
+
+    @JsonCreator
+    public MessagePayload(
+        @JsonProperty("role") String role, @JsonProperty("content") String content) {
+      this.role = role;
+      this.content = content;
+    }
+  }
+}
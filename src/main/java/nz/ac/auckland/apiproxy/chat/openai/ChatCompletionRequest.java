@@ -1,52 +1,90 @@
 package nz.ac.auckland.apiproxy.chat.openai;
 
-import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.JsonNode;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.http.HttpResponse;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
-import javax.json.Json;
-import javax.json.JsonArrayBuilder;
-import javax.json.JsonObject;
-import javax.json.JsonObjectBuilder;
+import java.util.Collections;
+import java.util.HexFormat;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Flow;
+import java.util.concurrent.SubmissionPublisher;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
+import java.util.function.Function;
 import nz.ac.auckland.apiproxy.config.ApiProxyConfig;
 import nz.ac.auckland.apiproxy.exceptions.ApiProxyException;
 import nz.ac.auckland.apiproxy.service.EndPoints;
-import org.apache.http.client.methods.HttpPost;
-import org.apache.http.entity.StringEntity;
-import org.apache.http.impl.client.CloseableHttpClient;
-import org.apache.http.impl.client.HttpClients;
-
+import nz.ac.auckland.apiproxy.service.HttpTransport;
+import nz.ac.auckland.apiproxy.tokenizer.Encoding;
+
+/**
+ * A conversation with the model and the settings it is sent with. The request can be shared
+ * between threads: the settings and the conversation are immutable values that setters and {@link
+ * #addMessage} replace, and every call works from the values it started with. Adding a turn shares
+ * the whole earlier conversation (see {@link ConversationSnapshot}) instead of copying it, so
+ * cache keys, hedged backups and retries all send exactly the prompt their call began with, even
+ * while the next turn is being added.
+ */
 public class ChatCompletionRequest {
 
   public enum Model {
-    GPT_5_MINI("gpt-5-mini"),
-    GPT_5_NANO("gpt-5-nano"),
-    GPT_4_1_MINI("gpt-4.1-mini"),
-    GPT_4_1_NANO("gpt-4.1-nano"),
-    GPT_4o_MINI("gpt-4o-mini");
+    GPT_5_MINI("gpt-5-mini", Encoding.O200K_BASE),
+    GPT_5_NANO("gpt-5-nano", Encoding.O200K_BASE),
+    GPT_4_1_MINI("gpt-4.1-mini", Encoding.O200K_BASE),
+    GPT_4_1_NANO("gpt-4.1-nano", Encoding.O200K_BASE),
+    GPT_4o_MINI("gpt-4o-mini", Encoding.O200K_BASE);
 
     private final String modelName;
+    private final Encoding encoding;
 
-    Model(String modelName) {
+    Model(String modelName, Encoding encoding) {
       this.modelName = modelName;
+      this.encoding = encoding;
     }
 
     public String getModelName() {
       return modelName;
     }
+
+    public Encoding getEncoding() {
+      return encoding;
+    }
   }
 
   private static final int NOT_SET = -1;
 
-  private ApiProxyConfig config;
+  // Every reply is primed with a few tokens that count towards the prompt
+  private static final int REPLY_PRIMING_TOKENS = 3;
+
+  private final ApiProxyConfig config;
+
+  // Model and sampling parameters; writers swap in a changed copy so calls never see a half-update
+  private volatile Settings settings = new Settings();
 
-  // OpenAI required parameters
-  private ArrayList<ChatMessage> messages = new ArrayList<>();
-  private Model model = null;
+  // The conversation so far, shared with every call still sending an earlier snapshot of it
+  private volatile ConversationSnapshot messages = ConversationSnapshot.empty();
 
-  // Optional parameters
-  private int maxTokens = NOT_SET;
-  private double temperature = NOT_SET;
-  private double topP = NOT_SET;
-  private int n = NOT_SET;
+  // Context for the next call only; it rides on the final message and is never kept
+  private volatile String volatileContext = null;
+
+  // The previous call, to measure how much of the prompt is unchanged
+  private volatile Call previousCall = null;
+  private volatile int lastPromptTokens = 0;
+  private volatile int lastStablePrefixTokens = 0;
 
   public ChatCompletionRequest(ApiProxyConfig config) {
     this.config = config;
@@ -56,13 +94,28 @@ public class ChatCompletionRequest {
     return addMessage(new ChatMessage(role, content));
   }
 
-  public ChatCompletionRequest addMessage(ChatMessage message) {
-    messages.add(message);
+  public synchronized ChatCompletionRequest addMessage(ChatMessage message) {
+    ConversationSnapshot current = messages;
+    ConversationCompactor compactor = settings.compactor;
+    if (compactor != null && compactor.isDuplicate(current.asList(), message)) {
+      return this; // Re-sending the same message only costs tokens
+    }
+    messages = current.append(message);
     return this;
   }
 
+  /**
+   * Returns the conversation as it stands. The snapshot never changes, so it can be read on any
+   * thread while later turns are added.
+   *
+   * @return the current conversation
+   */
+  public ConversationSnapshot getConversation() {
+    return messages;
+  }
+
   public ChatCompletionRequest setModel(Model model) {
-    this.model = model;
+    update(next -> next.model = model);
     return this;
   }
 
@@ -71,7 +124,7 @@ public class ChatCompletionRequest {
       throw new IllegalArgumentException(
           "'max_tokens' must be at least 1, but was given " + maxTokens);
     }
-    this.maxTokens = maxTokens;
+    update(next -> next.maxTokens = maxTokens);
     return this;
   }
 
@@ -80,7 +133,7 @@ public class ChatCompletionRequest {
       throw new IllegalArgumentException(
           "'temperature' must be between 0 and 2 inclusive, but was given " + temperature);
     }
-    this.temperature = temperature;
+    update(next -> next.temperature = temperature);
     return this;
   }
 
@@ -89,7 +142,7 @@ public class ChatCompletionRequest {
       throw new IllegalArgumentException(
           "'top_p' must be between 0 and 1 inclusive, but was given " + topP);
     }
-    this.topP = topP;
+    update(next -> next.topP = topP);
     return this;
   }
 
@@ -97,80 +150,741 @@ public class ChatCompletionRequest {
     if (n < 1) {
       throw new IllegalArgumentException("'n' must be at least 1, but was given " + n);
     }
-    this.n = n;
+    update(next -> next.n = n);
+    return this;
+  }
+
+  /**
+   * Sets whether this request may be answered from, and stored in, the shared response cache. Off
+   * by default, since most turns should vary between players; only turn it on for calls where one
+   * answer to a prompt is as good as another, such as low-temperature summaries or the defendant's
+   * introduction, which is sent identically every game.
+   *
+   * @param cacheable true to reuse an earlier answer to the identical request
+   * @return this request
+   */
+  public ChatCompletionRequest setCacheable(boolean cacheable) {
+    update(next -> next.cacheable = cacheable);
+    return this;
+  }
+
+  /**
+   * Sets how the conversation is kept within its token budget before each call.
+   *
+   * @param compactor the compaction policy, or null to always send the whole conversation
+   * @return this request
+   */
+  public ChatCompletionRequest setCompactor(ConversationCompactor compactor) {
+    update(next -> next.compactor = compactor);
+    return this;
+  }
+
+  /**
+   * Sets who is told when compaction folds messages away, for example to send context again that
+   * was only attached to a message once.
+   *
+   * @param foldListener the listener, or null for none
+   * @return this request
+   */
+  public ChatCompletionRequest setFoldListener(ConversationCompactor.FoldListener foldListener) {
+    update(next -> next.foldListener = foldListener);
     return this;
   }
 
-  @SuppressWarnings("resource")
+  /**
+   * Counts the prompt tokens the conversation would cost if sent now, using the tokenizer of the
+   * request's model. Each message's count is worked out once and reused by later calls.
+   *
+   * @return the prompt token count
+   */
+  public int estimateTokens() {
+    return estimateTokens(messages, settings.getEncoding());
+  }
+
+  /**
+   * Returns the estimated prompt size of the most recent call, after compaction.
+   *
+   * @return the prompt token estimate, or 0 before the first call
+   */
+  public int getLastPromptTokens() {
+    return lastPromptTokens;
+  }
+
+  /**
+   * Returns how much of the most recent call's prompt repeated the start of the call before it,
+   * byte for byte. Providers only cache a prompt prefix that is identical between calls, so the
+   * {@code cached_tokens} of a reply can at most match this.
+   *
+   * @return the stable prefix in tokens, or 0 before the second call
+   */
+  public int getLastStablePrefixTokens() {
+    return lastStablePrefixTokens;
+  }
+
+  /**
+   * Sets context that only applies to the next calls, such as what the player is looking at right
+   * now. It is attached to the final message as the request is sent, after everything that stays
+   * the same from turn to turn, and is never added to the conversation, so the start of the prompt
+   * stays cacheable.
+   *
+   * @param volatileContext the context, or null for none
+   * @return this request
+   */
+  public ChatCompletionRequest setVolatileContext(String volatileContext) {
+    this.volatileContext =
+        volatileContext == null || volatileContext.isBlank() ? null : volatileContext;
+    return this;
+  }
+
+  /**
+   * Sets whether a call that has not answered within the adaptive threshold of {@link
+   * HedgeMetrics} is raced against a backup call. The first answer wins and the other is
+   * cancelled, so the extra cost is limited to the slowest few percent of calls.
+   *
+   * @param hedged true to hedge slow calls
+   * @return this request
+   */
+  public ChatCompletionRequest setHedged(boolean hedged) {
+    update(next -> next.hedged = hedged);
+    return this;
+  }
+
+  /**
+   * Sets the model used by hedged backup calls, typically a faster one. By default the backup uses
+   * the same model as the primary call.
+   *
+   * @param hedgeModel the backup model, or null to use the primary model
+   * @return this request
+   */
+  public ChatCompletionRequest setHedgeModel(Model hedgeModel) {
+    update(next -> next.hedgeModel = hedgeModel);
+    return this;
+  }
+
+  /**
+   * Executes the request and blocks until the reply arrives. This is a thin wrapper around {@link
+   * #executeAsync()} for callers that already run off the UI thread.
+   *
+   * @return the completion result
+   * @throws ApiProxyException if the request fails
+   */
   public ChatCompletionResult execute() throws ApiProxyException {
     try {
-      JsonArrayBuilder jsonMessages = Json.createArrayBuilder();
-      for (ChatMessage message : messages) {
-        jsonMessages.add(
-            Json.createObjectBuilder() //
-                .add("role", message.getRole()) //
-                .add("content", message.getContent()));
-      }
+      return executeAsync().join();
+    } catch (CompletionException | CancellationException e) {
+      throw HttpTransport.toApiProxyException(e);
+    }
+  }
 
-      JsonObjectBuilder jsonOverallBuilder =
-          Json.createObjectBuilder() //
-              .add("messages", jsonMessages);
+  /**
+   * Executes the request without blocking the calling thread. Concurrent requests share the
+   * transport's multiplexed HTTP/2 connection.
+   *
+   * @return a future completing with the result, or exceptionally with an {@link
+   *     ApiProxyException}
+   */
+  public CompletableFuture<ChatCompletionResult> executeAsync() {
+    HttpTransport transport = HttpTransport.getInstance();
+    Call call = prepareCall();
+    String cacheKey = call.settings.cacheable ? computeCacheKey(call) : null;
+    ChatCompletionResult cached = lookupCache(cacheKey);
+    if (cached != null) {
+      return CompletableFuture.completedFuture(cached);
+    }
 
-      jsonOverallBuilder.add("access_token", config.getApiKey()).add("email", config.getEmail());
+    return sendHedged(
+            call,
+            HedgeMetrics.getCompletionMetrics(),
+            callModel ->
+                transport.sendAsync(
+                    transport.newJsonPost(
+                        EndPoints.getOpenAiChatCompletions(),
+                        generator -> writeRequestBody(generator, call, callModel, false),
+                        "application/json")))
+        .thenApply(
+            hedgedResponse -> {
+              HttpResponse<byte[]> response = hedgedResponse.response;
+              try {
+                ResponseChatCompletionViaProxy responseChat =
+                    transport
+                        .readerFor(ResponseChatCompletionViaProxy.class)
+                        .readValue(response.body());
+                ChatCompletionResult result = toResult(responseChat);
+                storeInCache(
+                    cacheKeyFor(call, hedgedResponse, cacheKey), responseChat.chat_completion);
+                return result;
+              } catch (ApiProxyException e) {
+                throw new CompletionException(e);
+              } catch (IOException e) {
+                throw new CompletionException(
+                    new ApiProxyException(
+                        "Problem calling API: HTTP "
+                            + response.statusCode()
+                            + " with unreadable body: "
+                            + e.getMessage(),
+                        e));
+              }
+            });
+  }
 
-      if (maxTokens != NOT_SET) {
-        jsonOverallBuilder.add("max_tokens", maxTokens);
+  /**
+   * Executes the request in streaming mode, handing each piece of the reply to the listener as soon
+   * as it arrives. Blocks until the reply is complete. If the proxy answers with a regular
+   * (non-streamed) completion, the whole reply is delivered as a single delta.
+   *
+   * <p>Interrupting the calling thread abandons the request: the call is cancelled if it is still
+   * waiting for headers, and the body is closed if the reply is part way through streaming in.
+   *
+   * @param listener receives the incremental content
+   * @return the complete assistant message
+   * @throws ApiProxyException if the request fails
+   */
+  public ChatMessage executeStreaming(ChatCompletionListener listener) throws ApiProxyException {
+    try {
+      Call call = prepareCall();
+      String cacheKey = call.settings.cacheable ? computeCacheKey(call) : null;
+      ChatCompletionResult cached = lookupCache(cacheKey);
+      if (cached != null) {
+        ChatMessage reply = cached.getChoice(0).getChatMessage();
+        listener.onDelta(reply.getContent());
+        listener.onComplete(reply);
+        return reply;
       }
 
-      if (temperature > NOT_SET) {
-        jsonOverallBuilder.add("temperature", temperature);
+      HttpTransport transport = HttpTransport.getInstance();
+      CompletableFuture<HedgedResponse<InputStream>> pending =
+          sendHedged(
+              call,
+              HedgeMetrics.getStreamMetrics(),
+              callModel ->
+                  transport.sendStreamingAsync(
+                      transport.newJsonPost(
+                          EndPoints.getOpenAiChatCompletions(),
+                          generator -> writeRequestBody(generator, call, callModel, true),
+                          "text/event-stream, application/json")));
+      HedgedResponse<InputStream> hedgedResponse;
+      try {
+        hedgedResponse = pending.get();
+      } catch (InterruptedException e) {
+        pending.cancel(true); // Stops every call still in flight, so no tokens are spent on it
+        throw e;
       }
-
-      if (topP > NOT_SET) {
-        jsonOverallBuilder.add("top_p", topP);
+      HttpResponse<InputStream> response = hedgedResponse.response;
+      ChatMessage reply;
+      ChatCompletionPayload completion;
+      // Closing the body, including when an interrupted read gives up, releases its stream
+      try (InputStream body = response.body()) {
+        String contentType = response.headers().firstValue("Content-Type").orElse("");
+        if (contentType.startsWith("text/event-stream")) {
+          ChatCompletionStreamParser parser =
+              new ChatCompletionStreamParser(transport.readerFor(JsonNode.class), listener);
+          reply = parser.parse(body);
+          completion = toCompletion(call, reply, parser.getFinishReason());
+        } else {
+          ResponseChatCompletionViaProxy responseChat =
+              transport.readerFor(ResponseChatCompletionViaProxy.class).readValue(body);
+          reply = toResult(responseChat).getChoice(0).getChatMessage();
+          completion = responseChat.chat_completion;
+          listener.onDelta(reply.getContent());
+        }
       }
+      storeInCache(cacheKeyFor(call, hedgedResponse, cacheKey), completion);
+      listener.onComplete(reply);
+      return reply;
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      ApiProxyException failure = new ApiProxyException("Problem calling API: interrupted", e);
+      listener.onError(failure);
+      throw failure;
+    } catch (Exception e) {
+      ApiProxyException failure =
+          Thread.currentThread().isInterrupted()
+              ? new ApiProxyException("Problem calling API: interrupted", e)
+              : HttpTransport.toApiProxyException(e);
+      listener.onError(failure);
+      throw failure;
+    }
+  }
 
-      if (n != NOT_SET) {
-        jsonOverallBuilder.add("n", n);
+  /**
+   * Returns a cold publisher of the reply content. Each subscription runs the request once on the
+   * given executor and publishes every delta in order before completing.
+   *
+   * @param executor runs the blocking network call
+   * @return a publisher of content deltas
+   */
+  public Flow.Publisher<String> streamPublisher(Executor executor) {
+    return subscriber -> {
+      SubmissionPublisher<String> publisher = new SubmissionPublisher<>(executor, 256);
+      publisher.subscribe(subscriber);
+      executor.execute(
+          () -> {
+            try {
+              executeStreaming(publisher::submit);
+              publisher.close();
+            } catch (ApiProxyException e) {
+              publisher.closeExceptionally(e);
+            }
+          });
+    };
+  }
+
+  private static <T> CompletableFuture<HedgedResponse<T>> sendHedged(
+      Call call, HedgeMetrics metrics, Function<Model, CompletableFuture<HttpResponse<T>>> send) {
+    return sendHedged(
+        call.settings.model, call.settings.hedgeModel, call.settings.hedged, metrics, send);
+  }
+
+  /**
+   * Sends one call, and if hedging is on and it has not answered within the threshold, a backup
+   * call too. Whichever answers first wins and the other is cancelled. A failure only fails the
+   * whole call once no other call is still pending.
+   *
+   * <p>Every primary call gives the metrics a latency. One that loses to its backup is timed to
+   * when it was cancelled, a lower bound, so the slow tail that made the backup necessary still
+   * holds the threshold up instead of leaving only the fast calls to be counted.
+   */
+  static <T> CompletableFuture<HedgedResponse<T>> sendHedged(
+      Model model,
+      Model hedgeModel,
+      boolean hedged,
+      HedgeMetrics metrics,
+      Function<Model, CompletableFuture<HttpResponse<T>>> send) {
+    long start = System.nanoTime();
+    CompletableFuture<HttpResponse<T>> primary;
+    try {
+      primary = send.apply(model);
+    } catch (RuntimeException e) {
+      return CompletableFuture.failedFuture(HttpTransport.toApiProxyException(e));
+    }
+
+    CompletableFuture<HedgedResponse<T>> result = new CompletableFuture<>();
+    AtomicReference<CompletableFuture<HttpResponse<T>>> backup = new AtomicReference<>();
+    primary.whenComplete(
+        (response, error) -> {
+          if (error == null) {
+            metrics.recordLatency(elapsedMs(start));
+            if (!result.complete(new HedgedResponse<>(response, false))) {
+              HttpTransport.discard(response);
+            }
+          } else if (primary.isCancelled() && wonByBackup(result)) {
+            metrics.recordLatency(elapsedMs(start)); // It would have taken at least this long
+          } else {
+            CompletableFuture<HttpResponse<T>> other = backup.get();
+            if (other == null || other.isCompletedExceptionally()) {
+              result.completeExceptionally(error);
+            }
+          }
+        });
+
+    // Cancel the loser so it stops using a connection and tokens, and every call if the caller
+    // cancels
+    result.whenComplete(
+        (response, error) -> {
+          primary.cancel(true);
+          CompletableFuture<HttpResponse<T>> second = backup.get();
+          if (second != null) {
+            second.cancel(true);
+          }
+        });
+    if (!hedged) {
+      return result;
+    }
+
+    metrics.recordHedgeableRequest();
+    CompletableFuture.delayedExecutor(metrics.getHedgeDelayMs(), TimeUnit.MILLISECONDS)
+        .execute(
+            () -> {
+              if (result.isDone()) {
+                return;
+              }
+              metrics.recordHedge();
+              CompletableFuture<HttpResponse<T>> second;
+              try {
+                second = send.apply(hedgeModel == null ? model : hedgeModel);
+              } catch (RuntimeException e) {
+                return; // The primary call is still running, so just go without a backup
+              }
+              backup.set(second);
+              second.whenComplete(
+                  (response, error) -> {
+                    if (error == null) {
+                      if (result.complete(new HedgedResponse<>(response, true))) {
+                        metrics.recordHedgeWin();
+                      } else {
+                        HttpTransport.discard(response);
+                      }
+                    } else if (primary.isCompletedExceptionally()) {
+                      result.completeExceptionally(error);
+                    }
+                  });
+              if (result.isDone()) {
+                second.cancel(true); // The primary answered while the backup was being sent
+              }
+            });
+    return result;
+  }
+
+  private static boolean wonByBackup(CompletableFuture<? extends HedgedResponse<?>> result) {
+    HedgedResponse<?> winner = result.isCompletedExceptionally() ? null : result.getNow(null);
+    return winner != null && winner.fromBackup;
+  }
+
+  private static String cacheKeyFor(Call call, HedgedResponse<?> hedgedResponse, String cacheKey) {
+    // A reply from a different backup model must not be served for the primary model's requests
+    Model hedgeModel = call.settings.hedgeModel;
+    if (hedgedResponse.fromBackup && hedgeModel != null && hedgeModel != call.settings.model) {
+      return null;
+    }
+    return cacheKey;
+  }
+
+  private static long elapsedMs(long startNanos) {
+    return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos);
+  }
+
+  /**
+   * Fixes what the next call sends: compacts the conversation, attaches the volatile context and
+   * reports the size of the prompt, along with how much of it is unchanged since the previous call.
+   */
+  private Call prepareCall() {
+    Settings current = settings;
+    ConversationSnapshot snapshot = messages;
+    Encoding encoding = current.getEncoding();
+    int folded = 0;
+    ConversationCompactor compactor = current.compactor;
+    if (compactor != null
+        && ConversationCompactor.estimateTokens(snapshot.asList(), encoding)
+            > compactor.getTokenBudget()) {
+      // Only a conversation over budget is copied, and only to fold it into a new snapshot
+      List<ChatMessage> compacted = new ArrayList<>(snapshot.asList());
+      folded = compactor.compact(compacted, encoding);
+      if (folded > 0) {
+        ConversationSnapshot shorter = ConversationSnapshot.of(compacted);
+        replaceConversation(snapshot, shorter);
+        notifyFolded(current.foldListener, snapshot, compacted);
+        snapshot = shorter;
       }
+    }
+    Call call = new Call(current, snapshot, toVolatileMessage(snapshot, volatileContext));
+
+    int promptTokens = estimateTokens(snapshot, encoding);
+    if (call.volatileMessage != null) {
+      promptTokens += ConversationCompactor.estimateTokens(call.volatileMessage, encoding);
+      promptTokens -= ConversationCompactor.estimateTokens(snapshot.last(), encoding);
+    }
+
+    // Messages are encoded once, so an unchanged message is still the very same instance
+    Call previous = previousCall;
+    int stableMessages = 0;
+    int stableTokens = 0;
+    while (previous != null
+        && stableMessages < call.getStableSize()
+        && stableMessages < previous.getStableSize()
+        && snapshot.sharesMessage(previous.messages, stableMessages)) {
+      stableTokens += ConversationCompactor.estimateTokens(snapshot.get(stableMessages), encoding);
+      stableMessages++;
+    }
+    previousCall = call;
+    lastPromptTokens = promptTokens;
+    lastStablePrefixTokens = stableTokens;
+
+    System.out.println(
+        "*** ChatCompletion prompt: ~"
+            + promptTokens
+            + " tokens in "
+            + snapshot.size()
+            + " messages, ~"
+            + stableTokens
+            + " tokens unchanged from the previous call"
+            + (folded > 0 ? " (" + folded + " older messages folded into the summary)." : "."));
+    return call;
+  }
 
-      if (model != null) {
-        jsonOverallBuilder.add("model", model.getModelName());
+  /** Tells the listener which messages of the conversation did not survive compaction. */
+  private static void notifyFolded(
+      ConversationCompactor.FoldListener listener,
+      ConversationSnapshot before,
+      List<ChatMessage> after) {
+    if (listener == null) {
+      return;
+    }
+    Set<ChatMessage> kept = Collections.newSetFromMap(new IdentityHashMap<>());
+    kept.addAll(after);
+    List<ChatMessage> folded = new ArrayList<>();
+    for (ChatMessage message : before) {
+      if (!kept.contains(message)) {
+        folded.add(message);
       }
+    }
+    try {
+      listener.onFolded(folded);
+    } catch (RuntimeException e) {
+      System.err.println("Fold listener failed: " + e.getMessage()); // Never fail the call
+    }
+  }
 
-      CloseableHttpClient client = HttpClients.createDefault();
+  /** Keeps a compacted conversation, unless a turn was added while it was being compacted. */
+  private synchronized void replaceConversation(
+      ConversationSnapshot compactedFrom, ConversationSnapshot compacted) {
+    if (messages == compactedFrom) {
+      messages = compacted;
+    }
+  }
 
-      ResponseChatCompletionViaProxy responseChat = null;
-      JsonObject value = jsonOverallBuilder.build();
+  /** Returns the final message with the volatile context attached, or null if there is none. */
+  private static ChatMessage toVolatileMessage(ConversationSnapshot snapshot, String context) {
+    ChatMessage last = snapshot.last();
+    if (context == null || last == null) {
+      return null;
+    }
+    String content = last.getContent() == null ? "" : last.getContent();
+    return new ChatMessage(last.getRole(), content + "\n\n" + context);
+  }
+
+  private static int estimateTokens(ConversationSnapshot snapshot, Encoding encoding) {
+    return ConversationCompactor.estimateTokens(snapshot.asList(), encoding) + REPLY_PRIMING_TOKENS;
+  }
+
+  /** Applies a change to a copy of the settings and publishes the copy. */
+  private synchronized void update(Consumer<Settings> change) {
+    Settings next = settings.copy();
+    change.accept(next);
+    settings = next;
+  }
 
-      HttpPost httpPost = new HttpPost(EndPoints.PROXY_OPENAI_CHAT_COMPLETIONS);
-      httpPost.setHeader("Content-Type", "application/json");
-      httpPost.setHeader("Accept", "application/json");
-      httpPost.setEntity(new StringEntity(value.toString()));
-      ObjectMapper mapperApiMapper = new ObjectMapper();
+  private ChatCompletionResult lookupCache(String cacheKey) {
+    if (cacheKey == null) {
+      return null;
+    }
+    byte[] cached = ChatCompletionCache.getInstance().get(cacheKey);
+    if (cached == null) {
+      return null;
+    }
+    try {
+      ChatCompletionPayload completion =
+          HttpTransport.getInstance().readerFor(ChatCompletionPayload.class).readValue(cached);
+      System.out.println("*** ChatCompletion served from cache (0 tokens).");
+      // Report what this call cost, not what the stored reply once did
+      return new ChatCompletionResult(
+          new ChatCompletionPayload(
+              completion.model,
+              completion.created,
+              new ChatCompletionPayload.Usage(0, 0, 0),
+              completion.choices));
+    } catch (IOException | RuntimeException e) {
+      System.err.println("Ignoring unreadable chat cache entry: " + e.getMessage());
+      return null;
+    }
+  }
 
-      responseChat =
-          (ResponseChatCompletionViaProxy)
-              client.execute(
-                  httpPost,
-                  httpResponse ->
-                      mapperApiMapper.readValue(
-                          httpResponse.getEntity().getContent(),
-                          ResponseChatCompletionViaProxy.class));
+  private void storeInCache(String cacheKey, ChatCompletionPayload completion) {
+    if (cacheKey == null || completion == null) {
+      return;
+    }
+    try {
+      ChatCompletionCache.getInstance()
+          .put(cacheKey, HttpTransport.getInstance().getMapper().writeValueAsBytes(completion));
+    } catch (IOException e) {
+      System.err.println("Could not cache chat completion: " + e.getMessage());
+    }
+  }
 
-      if (!responseChat.success && responseChat.code != 0) {
-        throw new ApiProxyException("Problem calling API: " + responseChat.message);
+  /**
+   * Hashes everything that determines the reply: model, sampling parameters and every message.
+   * Strings are length-prefixed so that different splits of the same text never collide.
+   */
+  private static String computeCacheKey(Call call) {
+    Settings settings = call.settings;
+    try {
+      MessageDigest digest = MessageDigest.getInstance("SHA-256");
+      ByteBuffer header = ByteBuffer.allocate(Integer.BYTES * 3 + Double.BYTES * 2);
+      header.putInt(settings.maxTokens).putDouble(settings.temperature);
+      header.putDouble(settings.topP).putInt(settings.n);
+      header.putInt(call.messages.size());
+      digest.update(header.array());
+      updateDigest(digest, settings.model == null ? "" : settings.model.getModelName());
+      // A local or recorded proxy must not answer from the real proxy's replies, or vice versa
+      updateDigest(digest, EndPoints.getBaseUrl());
+      for (int i = 0; i < call.messages.size(); i++) {
+        // The memoised JSON is self-delimiting and already encoded, so hash it as is
+        digest.update(call.messageToSend(i).toJson().asUnquotedUTF8());
       }
-      ChatCompletionResult result = new ChatCompletionResult(responseChat.chat_completion);
-      System.out.println(
-          "*** ChatCompletion used "
-              + result.getUsageTotalTokens()
-              + " tokens. If this seems like a lot, try other models that might use less tokens."
-              + " GPT4 models tend to use less than the GPT5 models.");
+      return HexFormat.of().formatHex(digest.digest());
+    } catch (NoSuchAlgorithmException e) {
+      return null; // Every JVM ships SHA-256, but never fail a request over caching
+    }
+  }
 
-      return result;
-    } catch (Exception e) {
-      throw new ApiProxyException("Problem calling API: " + e.getMessage());
+  private static void updateDigest(MessageDigest digest, String value) {
+    byte[] bytes = (value == null ? "" : value).getBytes(StandardCharsets.UTF_8);
+    digest.update(ByteBuffer.allocate(Integer.BYTES).putInt(bytes.length).array());
+    digest.update(bytes);
+  }
+
+  /** Builds the completion object a streamed reply would have had as a whole response. */
+  private static ChatCompletionPayload toCompletion(
+      Call call, ChatMessage reply, String finishReason) {
+    Model model = call.settings.model;
+    ChatCompletionPayload.ChoicePayload choice =
+        new ChatCompletionPayload.ChoicePayload(
+            0,
+            finishReason == null ? "stop" : finishReason,
+            new ChatCompletionPayload.MessagePayload(reply.getRole(), reply.getContent()));
+    return new ChatCompletionPayload(
+        model == null ? "unknown" : model.getModelName(),
+        System.currentTimeMillis() / 1000,
+        new ChatCompletionPayload.Usage(0, 0, 0),
+        List.of(choice));
+  }
+
+  private ChatCompletionResult toResult(ResponseChatCompletionViaProxy responseChat)
+      throws ApiProxyException {
+    if (!responseChat.success && responseChat.code != 0) {
+      throw new ApiProxyException("Problem calling API: " + responseChat.message);
+    }
+    ChatCompletionResult result = new ChatCompletionResult(responseChat.chat_completion);
+    System.out.println(
+        "*** ChatCompletion used "
+            + result.getUsageTotalTokens()
+            + " tokens, "
+            + result.getUsageCachedTokens()
+            + " of "
+            + result.getUsagePromptTokens()
+            + " prompt tokens from the provider's prompt cache. If this seems like a lot, try other"
+            + " models that might use less tokens. GPT4 models tend to use less than the GPT5 models.");
+    return result;
+  }
+
+  /**
+   * Writes the proxy request body. Package-private so the encoding benchmark can drive it.
+   *
+   * @param generator the generator to write to
+   * @param stream whether to ask for a streamed reply
+   * @throws IOException if the generator fails
+   */
+  void writeRequestBody(JsonGenerator generator, boolean stream) throws IOException {
+    ConversationSnapshot snapshot = messages;
+    Call call = new Call(settings, snapshot, toVolatileMessage(snapshot, volatileContext));
+    writeRequestBody(generator, call, call.settings.model, stream);
+  }
+
+  private void writeRequestBody(JsonGenerator generator, Call call, Model model, boolean stream)
+      throws IOException {
+    Settings settings = call.settings;
+    generator.writeStartObject();
+
+    generator.writeArrayFieldStart("messages");
+    for (int i = 0; i < call.messages.size(); i++) {
+      // Each message is encoded once in its lifetime, so a turn only pays for the new ones
+      generator.writeRawValue(call.messageToSend(i).toJson());
+    }
+    generator.writeEndArray();
+
+    generator.writeStringField("access_token", config.getApiKey());
+    generator.writeStringField("email", config.getEmail());
+
+    if (settings.maxTokens != NOT_SET) {
+      generator.writeNumberField("max_tokens", settings.maxTokens);
+    }
+
+    if (settings.temperature > NOT_SET) {
+      generator.writeNumberField("temperature", settings.temperature);
+    }
+
+    if (settings.topP > NOT_SET) {
+      generator.writeNumberField("top_p", settings.topP);
+    }
+
+    if (settings.n != NOT_SET) {
+      generator.writeNumberField("n", settings.n);
+    }
+
+    if (model != null) {
+      generator.writeStringField("model", model.getModelName());
+    }
+
+    if (stream) {
+      generator.writeBooleanField("stream", true);
+    }
+    generator.writeEndObject();
+  }
+
+  /**
+   * The model and sampling parameters. Only changed on a fresh copy before it is published, so a
+   * call can read it without locking.
+   */
+  private static final class Settings {
+    private Model model = null;
+    private int maxTokens = NOT_SET;
+    private double temperature = NOT_SET;
+    private double topP = NOT_SET;
+    private int n = NOT_SET;
+
+    // Whether identical requests may be answered from ChatCompletionCache
+    private boolean cacheable = false;
+
+    // Keeps the prompt within budget; null sends the whole conversation every time
+    private ConversationCompactor compactor = ConversationCompactor.getInstance();
+    private ConversationCompactor.FoldListener foldListener = null;
+
+    // Whether a slow call is raced against a backup, and which model the backup uses
+    private boolean hedged = false;
+    private Model hedgeModel = null;
+
+    private Settings copy() {
+      Settings copy = new Settings();
+      copy.model = model;
+      copy.maxTokens = maxTokens;
+      copy.temperature = temperature;
+      copy.topP = topP;
+      copy.n = n;
+      copy.cacheable = cacheable;
+      copy.compactor = compactor;
+      copy.foldListener = foldListener;
+      copy.hedged = hedged;
+      copy.hedgeModel = hedgeModel;
+      return copy;
+    }
+
+    private Encoding getEncoding() {
+      return model == null ? Encoding.O200K_BASE : model.getEncoding();
+    }
+  }
+
+  /** Everything one call sends, fixed as it starts so its hedges and retries send the same. */
+  private static final class Call {
+    private final Settings settings;
+    private final ConversationSnapshot messages;
+    // The final message with the volatile context attached, or null if there is none
+    private final ChatMessage volatileMessage;
+
+    private Call(Settings settings, ConversationSnapshot messages, ChatMessage volatileMessage) {
+      this.settings = settings;
+      this.messages = messages;
+      this.volatileMessage = volatileMessage;
+    }
+
+    private ChatMessage messageToSend(int index) {
+      return volatileMessage != null && index == messages.size() - 1
+          ? volatileMessage
+          : messages.get(index);
+    }
+
+    /** Returns how many messages go out exactly as they are in the conversation. */
+    private int getStableSize() {
+      return volatileMessage == null ? messages.size() : messages.size() - 1;
+    }
+  }
+
+  /** The response that won a possibly hedged call, and whether it came from the backup. */
+  private static final class HedgedResponse<T> {
+    private final HttpResponse<T> response;
+    private final boolean fromBackup;
+
+    private HedgedResponse(HttpResponse<T> response, boolean fromBackup) {
+      this.response = response;
+      this.fromBackup = fromBackup;
     }
   }
 }
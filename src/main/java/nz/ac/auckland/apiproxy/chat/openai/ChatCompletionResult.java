@@ -2,7 +2,6 @@ package nz.ac.auckland.apiproxy.chat.openai;
 
 import java.util.ArrayList;
 import java.util.List;
-import java.util.Map;
 
 public class ChatCompletionResult {
 
@@ -12,35 +11,32 @@ public class ChatCompletionResult {
   private int usagePromptToken;
   private int usageCompletionTokens;
   private int usageTotalTokens;
+  private int usageCachedTokens;
+
+  private List<Choice> choices;
+
+  protected ChatCompletionResult(ChatCompletionPayload chatCompletion) {
+    model = chatCompletion.model;
+    created = chatCompletion.created;
+
+    ChatCompletionPayload.Usage usage = chatCompletion.usage;
+    if (usage != null) {
+      usagePromptToken = usage.promptTokens;
+      usageCompletionTokens = usage.completionTokens;
+      usageTotalTokens = usage.totalTokens;
+      if (usage.promptTokensDetails != null) {
+        usageCachedTokens = usage.promptTokensDetails.cachedTokens;
+      }
+    }
 
-  private List<Choice> choices = new ArrayList<>();
-
-  protected ChatCompletionResult(Map<String, Object> chatCompletion) {
-    parse(chatCompletion);
-  }
-
-  private void parse(Map<String, Object> chatCompletion) {
-    model = chatCompletion.get("model").toString();
-    created =
-        chatCompletion.get("created") == null
-            ? 0
-            : Long.parseLong(chatCompletion.get("created").toString());
-    usagePromptToken = getUsage("prompt_tokens", chatCompletion);
-    usageCompletionTokens = getUsage("completion_tokens", chatCompletion);
-    usageTotalTokens = getUsage("total_tokens", chatCompletion);
-
-    List<?> choicesJson = (List<?>) chatCompletion.get("choices");
-    for (int c = 0; c < choicesJson.size(); c++) {
-      Map<?, ?> choiceJson = (Map<?, ?>) choicesJson.get(c);
-      Map<?, ?> messageJson = (Map<?, ?>) choiceJson.get("message");
-
-      String role = messageJson.get("role").toString();
-      String content = messageJson.get("content").toString();
-
-      int index = Integer.parseInt(choiceJson.get("index").toString());
-      String finishReason = choiceJson.get("finish_reason").toString();
-
-      choices.add(new Choice(new ChatMessage(role, content), index, finishReason));
+    choices = new ArrayList<>(chatCompletion.choices.size());
+    for (ChatCompletionPayload.ChoicePayload choice : chatCompletion.choices) {
+      ChatCompletionPayload.MessagePayload message = choice.message;
+      ChatMessage chatMessage =
+          message == null
+              ? new ChatMessage("assistant", null)
+              : new ChatMessage(message.role, message.content);
+      choices.add(new Choice(chatMessage, choice.index, choice.finishReason));
     }
   }
 
@@ -56,6 +52,15 @@ public class ChatCompletionResult {
     return usageTotalTokens;
   }
 
+  /**
+   * Returns how many of the prompt tokens the provider served from its prompt cache.
+   *
+   * @return the cached prompt tokens, or 0 if none were cached or the proxy did not say
+   */
+  public int getUsageCachedTokens() {
+    return usageCachedTokens;
+  }
+
   public String getModel() {
     return model;
   }
@@ -64,11 +69,6 @@ public class ChatCompletionResult {
     return created;
   }
 
-  private int getUsage(String key, Map<String, Object> chatCompletion) {
-    Map<?, ?> usage = (Map<?, ?>) chatCompletion.get("usage");
-    return Integer.parseInt(usage.get(key).toString());
-  }
-
   public Choice getChoice(int index) {
     if (index < 0 || index >= choices.size()) {
       throw new IllegalArgumentException(
@@ -0,0 +1,101 @@
+package nz.ac.auckland.apiproxy.chat.openai;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectReader;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Incremental parser for server-sent chat completion chunks. Each {@code data:} event is decoded as
+ * soon as its terminating blank line arrives, so content reaches the listener while the rest of the
+ * body is still on the wire.
+ */
+class ChatCompletionStreamParser {
+
+  private static final String DONE = "[DONE]";
+
+  private final ObjectReader reader;
+  private final ChatCompletionListener listener;
+  private final StringBuilder content = new StringBuilder();
+  private String role = "assistant";
+  private String finishReason = null;
+
+  ChatCompletionStreamParser(ObjectReader reader, ChatCompletionListener listener) {
+    this.reader = reader;
+    this.listener = listener;
+  }
+
+  /**
+   * Reads events from the stream until {@code [DONE]} or end of input.
+   *
+   * @param in the response body
+   * @return the assembled assistant message
+   * @throws IOException if the stream cannot be read or reports an error
+   */
+  ChatMessage parse(InputStream in) throws IOException {
+    BufferedReader lines = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8));
+    StringBuilder data = new StringBuilder();
+    String line;
+    while ((line = lines.readLine()) != null) {
+      if (line.isEmpty()) {
+        // A blank line ends the current event
+        if (data.length() > 0 && dispatch(data)) {
+          break;
+        }
+        data.setLength(0);
+      } else if (line.startsWith("data:")) {
+        int start = line.length() > 5 && line.charAt(5) == ' ' ? 6 : 5;
+        if (data.length() > 0) {
+          data.append('\n');
+        }
+        data.append(line, start, line.length());
+      }
+      // Comments (":") and other fields such as "event:" are ignored
+    }
+    if (data.length() > 0) {
+      dispatch(data);
+    }
+    return new ChatMessage(role, content.toString());
+  }
+
+  String getFinishReason() {
+    return finishReason;
+  }
+
+  private boolean dispatch(StringBuilder data) throws IOException {
+    if (DONE.contentEquals(data)) {
+      return true;
+    }
+    JsonNode chunk = reader.readTree(data.toString());
+    // The proxy may wrap each chunk the same way it wraps a whole completion
+    if (chunk.has("chat_completion")) {
+      if (chunk.path("success").isBoolean() && !chunk.path("success").asBoolean()) {
+        throw new IOException(chunk.path("message").asText("Streaming request failed"));
+      }
+      chunk = chunk.get("chat_completion");
+    }
+    if (chunk.has("error")) {
+      throw new IOException(chunk.path("error").path("message").asText("Streaming request failed"));
+    }
+
+    JsonNode choice = chunk.path("choices").path(0);
+    JsonNode delta = choice.path("delta");
+    if (delta.hasNonNull("role")) {
+      role = delta.get("role").asText();
+    }
+    if (delta.hasNonNull("content")) {
+      String text = delta.get("content").asText();
+      if (!text.isEmpty()) {
+        content.append(text);
+        listener.onDelta(text);
+      }
+    }
+    if (choice.hasNonNull("finish_reason")) {
+      finishReason = choice.get("finish_reason").asText();
+    }
+    return false;
+  }
+}
@@ -1,9 +1,23 @@
 package nz.ac.auckland.apiproxy.chat.openai;
 
-public class ChatMessage {
+import com.fasterxml.jackson.core.SerializableString;
+import com.fasterxml.jackson.core.io.JsonStringEncoder;
+import com.fasterxml.jackson.core.io.SerializedString;
+import nz.ac.auckland.apiproxy.tokenizer.BpeTokenizer;
+import nz.ac.auckland.apiproxy.tokenizer.Encoding;
 
-  private String role;
-  private String content;
+/**
+ * A single message in a chat conversation. Messages are immutable, so each one encodes its JSON
+ * form once and every later request that re-sends the conversation reuses those bytes.
+ */
+public final class ChatMessage {
+
+  private final String role;
+  private final String content;
+
+  // Encoded lazily; a benign race at worst encodes the same message twice
+  private volatile SerializedString json;
+  private volatile TokenCount tokenCount;
 
   public ChatMessage(String role, String content) {
     this.role = role;
@@ -17,4 +31,62 @@ public class ChatMessage {
   public String getContent() {
     return content;
   }
+
+  /**
+   * Returns this message as a complete JSON object, ready to be written raw into a request body.
+   *
+   * @return the memoised encoding
+   */
+  SerializableString toJson() {
+    SerializedString encoded = json;
+    if (encoded == null) {
+      StringBuilder sb = new StringBuilder(32 + (content == null ? 4 : content.length()));
+      sb.append("{\"role\":");
+      appendQuoted(sb, role);
+      sb.append(",\"content\":");
+      appendQuoted(sb, content);
+      sb.append('}');
+      encoded = new SerializedString(sb.toString());
+      encoded.asUnquotedUTF8(); // Encode the UTF-8 bytes now so the writer only copies them
+      json = encoded;
+    }
+    return encoded;
+  }
+
+  /**
+   * Returns the number of tokens in this message's role and content, counted once per encoding.
+   *
+   * @param encoding the encoding of the model the message is sent to
+   * @return the token count, excluding the chat format's per-message framing
+   */
+  int countTokens(Encoding encoding) {
+    TokenCount counted = tokenCount;
+    if (counted == null || counted.encoding != encoding) {
+      int tokens =
+          BpeTokenizer.countTokens(encoding, role) + BpeTokenizer.countTokens(encoding, content);
+      counted = new TokenCount(encoding, tokens);
+      tokenCount = counted;
+    }
+    return counted.tokens;
+  }
+
+  private static void appendQuoted(StringBuilder sb, String value) {
+    if (value == null) {
+      sb.append("null");
+      return;
+    }
+    sb.append('"');
+    JsonStringEncoder.getInstance().quoteAsString(value, sb);
+    sb.append('"');
+  }
+
+  private static final class TokenCount {
+    private final Encoding encoding;
+    private final int tokens;
+
+    private TokenCount(Encoding encoding, int tokens) {
+      this.encoding = encoding;
+      this.tokens = tokens;
+    }
+  }
 }
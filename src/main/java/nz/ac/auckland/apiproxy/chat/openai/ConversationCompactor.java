@@ -0,0 +1,246 @@
+package nz.ac.auckland.apiproxy.chat.openai;
+
+import java.util.ArrayList;
+import java.util.List;
+import nz.ac.auckland.apiproxy.tokenizer.BpeTokenizer;
+import nz.ac.auckland.apiproxy.tokenizer.Encoding;
+
+/**
+ * Keeps a conversation's prompt within a token budget. The system prompts at the start of the
+ * conversation are pinned and the most recent messages are kept verbatim. Older turns are folded,
+ * one line each, into a rolling summary message that sits right after the pinned prompts. The
+ * summary itself is capped at a quarter of the budget, forgetting its oldest lines first.
+ *
+ * <p>Once over budget, the conversation is folded well below it, so the next many turns fit
+ * without touching the summary. Every compaction changes the prompt prefix and so loses the
+ * provider's prompt cache; folding in larger, rarer steps keeps the prefix byte-stable in between.
+ *
+ * <p>Configured with the {@code apiproxy.compaction.tokenBudget} (default 6000), {@code
+ * apiproxy.compaction.recentMessages} (default 8) and {@code apiproxy.compaction.foldToPercent}
+ * (default 60, the share of the budget a compaction folds down to) system properties.
+ */
+public final class ConversationCompactor {
+
+  /** Told which messages a compaction folded into the summary. */
+  @FunctionalInterface
+  public interface FoldListener {
+    /**
+     * Called after a request's conversation has been compacted.
+     *
+     * @param folded the messages that were replaced by the summary, oldest first
+     */
+    void onFolded(List<ChatMessage> folded);
+  }
+
+  static final String SUMMARY_HEADER = "Summary of the earlier conversation:";
+
+  private static final int SUMMARY_LINE_CHARS = 160;
+  // The chat format frames every message with a few tokens of its own
+  private static final int MESSAGE_OVERHEAD_TOKENS = 3;
+
+  private static ConversationCompactor instance;
+
+  /**
+   * Returns the compactor configured by the system properties.
+   *
+   * @return the shared compactor
+   */
+  public static synchronized ConversationCompactor getInstance() {
+    if (instance == null) {
+      instance =
+          new ConversationCompactor(
+              Integer.getInteger("apiproxy.compaction.tokenBudget", 6_000),
+              Integer.getInteger("apiproxy.compaction.recentMessages", 8),
+              Integer.getInteger("apiproxy.compaction.foldToPercent", 60));
+    }
+    return instance;
+  }
+
+  private final int tokenBudget;
+  private final int recentMessages;
+  private final int foldTarget;
+
+  /**
+   * Creates a compactor that folds down to 60% of its budget.
+   *
+   * @param tokenBudget the prompt size, in tokens, above which older turns are folded
+   * @param recentMessages how many of the latest messages are never folded
+   */
+  public ConversationCompactor(int tokenBudget, int recentMessages) {
+    this(tokenBudget, recentMessages, 60);
+  }
+
+  /**
+   * Creates a compactor.
+   *
+   * @param tokenBudget the prompt size, in tokens, above which older turns are folded
+   * @param recentMessages how many of the latest messages are never folded
+   * @param foldToPercent the share of the budget, from 1 to 100, a compaction folds down to
+   */
+  public ConversationCompactor(int tokenBudget, int recentMessages, int foldToPercent) {
+    if (foldToPercent < 1 || foldToPercent > 100) {
+      throw new IllegalArgumentException(
+          "foldToPercent must be between 1 and 100, but was " + foldToPercent);
+    }
+    this.tokenBudget = tokenBudget;
+    this.recentMessages = recentMessages;
+    this.foldTarget = (int) ((long) tokenBudget * foldToPercent / 100);
+  }
+
+  public int getTokenBudget() {
+    return tokenBudget;
+  }
+
+  /**
+   * Counts how many prompt tokens a list of messages costs.
+   *
+   * @param messages the conversation
+   * @param encoding the encoding of the model it is sent to
+   * @return the token count
+   */
+  public static int estimateTokens(List<ChatMessage> messages, Encoding encoding) {
+    int total = 0;
+    for (ChatMessage message : messages) {
+      total += estimateTokens(message, encoding);
+    }
+    return total;
+  }
+
+  /**
+   * Counts how many prompt tokens one message costs, including its framing.
+   *
+   * @param message the message
+   * @param encoding the encoding of the model it is sent to
+   * @return the token count
+   */
+  public static int estimateTokens(ChatMessage message, Encoding encoding) {
+    return MESSAGE_OVERHEAD_TOKENS + message.countTokens(encoding);
+  }
+
+  /**
+   * Returns whether adding a message would only repeat one already in the conversation: the same
+   * message twice in a row, or a system message that is already present.
+   *
+   * @param messages the conversation so far
+   * @param candidate the message about to be added
+   * @return true if the message should be skipped
+   */
+  public boolean isDuplicate(List<ChatMessage> messages, ChatMessage candidate) {
+    if (messages.isEmpty()) {
+      return false;
+    }
+    if (sameMessage(messages.get(messages.size() - 1), candidate)) {
+      return true;
+    }
+    if (!"system".equals(candidate.getRole())) {
+      return false;
+    }
+    for (ChatMessage message : messages) {
+      if (sameMessage(message, candidate)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Once the conversation is over budget, folds the oldest unpinned messages into the rolling
+   * summary until it is down to the fold target or only the recent window is left.
+   *
+   * @param messages the conversation, changed in place
+   * @param encoding the encoding of the model it is sent to
+   * @return the number of messages folded into the summary
+   */
+  public int compact(List<ChatMessage> messages, Encoding encoding) {
+    int total = estimateTokens(messages, encoding);
+    if (total <= tokenBudget) {
+      return 0;
+    }
+
+    int pinned = 0;
+    while (pinned < messages.size()
+        && "system".equals(messages.get(pinned).getRole())
+        && !isSummary(messages.get(pinned))) {
+      pinned++;
+    }
+
+    List<String> lines = new ArrayList<>();
+    int firstFoldable = pinned;
+    if (pinned < messages.size() && isSummary(messages.get(pinned))) {
+      ChatMessage summary = messages.get(pinned);
+      String previous = summary.getContent().substring(SUMMARY_HEADER.length()).trim();
+      if (!previous.isEmpty()) {
+        lines.addAll(List.of(previous.split("\n")));
+      }
+      firstFoldable++;
+    }
+
+    int folded = 0;
+    while (total > foldTarget && messages.size() - firstFoldable - folded > recentMessages) {
+      ChatMessage message = messages.get(firstFoldable + folded);
+      String line = summarise(message);
+      lines.add(line);
+      total +=
+          BpeTokenizer.countTokens(encoding, line) + 1 - estimateTokens(message, encoding);
+      folded++;
+    }
+    if (folded == 0) {
+      return 0;
+    }
+
+    // Keep the summary itself bounded so it cannot become the thing that grows without limit
+    int summaryBudget = tokenBudget / 4;
+    String content = buildSummary(lines);
+    while (lines.size() > 1 && BpeTokenizer.countTokens(encoding, content) > summaryBudget) {
+      lines.remove(0);
+      content = buildSummary(lines);
+    }
+
+    messages.subList(pinned, firstFoldable + folded).clear();
+    messages.add(pinned, new ChatMessage("system", content));
+    return folded;
+  }
+
+  private static boolean isSummary(ChatMessage message) {
+    return "system".equals(message.getRole())
+        && message.getContent() != null
+        && message.getContent().startsWith(SUMMARY_HEADER);
+  }
+
+  private static boolean sameMessage(ChatMessage a, ChatMessage b) {
+    return a.getRole().equals(b.getRole())
+        && (a.getContent() == null
+            ? b.getContent() == null
+            : a.getContent().equals(b.getContent()));
+  }
+
+  /** Reduces a message to one line: its role and first sentence, without appended context. */
+  private static String summarise(ChatMessage message) {
+    String content = message.getContent() == null ? "" : message.getContent();
+    int context = content.indexOf("\n\n[");
+    if (context >= 0) {
+      content = content.substring(0, context); // Drop bracketed context added by the controllers
+    }
+    content = content.replaceAll("\\s+", " ").trim();
+
+    int sentenceEnd = -1;
+    for (int i = 0; i < content.length() - 1; i++) {
+      char c = content.charAt(i);
+      if ((c == '.' || c == '?' || c == '!') && content.charAt(i + 1) == ' ') {
+        sentenceEnd = i + 1;
+        break;
+      }
+    }
+    if (sentenceEnd > 0) {
+      content = content.substring(0, sentenceEnd);
+    }
+    if (content.length() > SUMMARY_LINE_CHARS) {
+      content = content.substring(0, SUMMARY_LINE_CHARS - 3) + "...";
+    }
+    return "- " + message.getRole() + ": " + content;
+  }
+
+  private static String buildSummary(List<String> lines) {
+    return SUMMARY_HEADER + "\n" + String.join("\n", lines);
+  }
+}
@@ -0,0 +1,157 @@
+package nz.ac.auckland.apiproxy.chat.openai;
+
+import java.util.AbstractList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Objects;
+import java.util.RandomAccess;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * An immutable conversation that can still grow cheaply. Appending returns a new snapshot that
+ * shares every earlier message with the one it came from, so a turn costs one slot rather than a
+ * copy of the whole history, and a snapshot taken for a call never changes under it.
+ *
+ * <p>Snapshots that grow from the same one share a backing array. The first to append claims the
+ * next slot; any other append from the same snapshot copies its own messages into a new array, so
+ * branches never see each other's messages. A snapshot only ever reads the slots below its size,
+ * which are written once before it is created, so it is safe to share between threads.
+ */
+public final class ConversationSnapshot implements Iterable<ChatMessage> {
+
+  private static final int MIN_CAPACITY = 8;
+
+  private static final ConversationSnapshot EMPTY =
+      new ConversationSnapshot(new Backing(new ChatMessage[0], 0), 0);
+
+  /**
+   * Returns the empty conversation.
+   *
+   * @return a snapshot with no messages
+   */
+  public static ConversationSnapshot empty() {
+    return EMPTY;
+  }
+
+  /**
+   * Returns a snapshot holding a copy of the given messages.
+   *
+   * @param messages the messages, in order
+   * @return the snapshot
+   */
+  public static ConversationSnapshot of(List<ChatMessage> messages) {
+    if (messages.isEmpty()) {
+      return EMPTY;
+    }
+    ChatMessage[] array = new ChatMessage[Math.max(MIN_CAPACITY, messages.size() * 2)];
+    for (int i = 0; i < messages.size(); i++) {
+      array[i] = Objects.requireNonNull(messages.get(i));
+    }
+    return new ConversationSnapshot(new Backing(array, messages.size()), messages.size());
+  }
+
+  private final Backing backing;
+  private final int size;
+
+  private ConversationSnapshot(Backing backing, int size) {
+    this.backing = backing;
+    this.size = size;
+  }
+
+  /**
+   * Returns this conversation with one more message at the end. This snapshot is unchanged.
+   *
+   * @param message the message to append
+   * @return the longer snapshot
+   */
+  public ConversationSnapshot append(ChatMessage message) {
+    Objects.requireNonNull(message);
+    Backing shared = backing;
+    if (size < shared.messages.length && shared.used.compareAndSet(size, size + 1)) {
+      shared.messages[size] = message;
+      return new ConversationSnapshot(shared, size + 1);
+    }
+    // Another snapshot already grew into the next slot, or the array is full
+    ChatMessage[] grown = new ChatMessage[Math.max(MIN_CAPACITY, size * 2)];
+    System.arraycopy(shared.messages, 0, grown, 0, size);
+    grown[size] = message;
+    return new ConversationSnapshot(new Backing(grown, size + 1), size + 1);
+  }
+
+  public int size() {
+    return size;
+  }
+
+  public boolean isEmpty() {
+    return size == 0;
+  }
+
+  /**
+   * Returns one message.
+   *
+   * @param index the position of the message
+   * @return the message
+   * @throws IndexOutOfBoundsException if the index is not below {@link #size()}
+   */
+  public ChatMessage get(int index) {
+    return backing.messages[Objects.checkIndex(index, size)];
+  }
+
+  /**
+   * Returns the final message.
+   *
+   * @return the last message, or null if the conversation is empty
+   */
+  public ChatMessage last() {
+    return size == 0 ? null : backing.messages[size - 1];
+  }
+
+  /**
+   * Returns whether a message is the very same one, at the same position, in another snapshot.
+   *
+   * @param other the snapshot to compare with
+   * @param index the position to compare
+   * @return true if both snapshots hold the same message instance there
+   */
+  public boolean sharesMessage(ConversationSnapshot other, int index) {
+    return index < size && index < other.size && get(index) == other.get(index);
+  }
+
+  /**
+   * Returns an unmodifiable view of the messages. The view never changes, even if more messages
+   * are appended to snapshots grown from this one.
+   *
+   * @return the messages as a list
+   */
+  public List<ChatMessage> asList() {
+    return new View();
+  }
+
+  @Override
+  public Iterator<ChatMessage> iterator() {
+    return asList().iterator();
+  }
+
+  /** The array shared by snapshots grown from the same one, and how many slots are taken. */
+  private static final class Backing {
+    private final ChatMessage[] messages;
+    private final AtomicInteger used;
+
+    private Backing(ChatMessage[] messages, int used) {
+      this.messages = messages;
+      this.used = new AtomicInteger(used);
+    }
+  }
+
+  private final class View extends AbstractList<ChatMessage> implements RandomAccess {
+    @Override
+    public ChatMessage get(int index) {
+      return ConversationSnapshot.this.get(index);
+    }
+
+    @Override
+    public int size() {
+      return size;
+    }
+  }
+}
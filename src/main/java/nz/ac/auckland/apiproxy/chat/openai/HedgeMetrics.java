@@ -0,0 +1,148 @@
+package nz.ac.auckland.apiproxy.chat.openai;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Tracks recent chat latencies to pick the hedging threshold, and counts how often hedges are sent
+ * and how often they win. Whole completions and streamed replies (measured to the first byte) have
+ * very different latencies, so each has its own instance.
+ *
+ * <p>The threshold is the {@code apiproxy.hedge.percentile} (default 95) percentile of the last 200
+ * latencies, but never below {@code apiproxy.hedge.minDelayMs} (default 500). Until 20 samples
+ * exist, {@code apiproxy.hedge.defaultDelayMs} (default 3000) is used.
+ */
+public final class HedgeMetrics {
+
+  private static final int WINDOW = 200;
+  private static final int MIN_SAMPLES = 20;
+
+  private static HedgeMetrics completionMetrics;
+  private static HedgeMetrics streamMetrics;
+
+  /**
+   * Returns the metrics for requests that wait for the whole completion.
+   *
+   * @return the shared completion metrics
+   */
+  public static synchronized HedgeMetrics getCompletionMetrics() {
+    if (completionMetrics == null) {
+      completionMetrics = new HedgeMetrics();
+    }
+    return completionMetrics;
+  }
+
+  /**
+   * Returns the metrics for streamed requests, whose latency is the time to the first byte.
+   *
+   * @return the shared streaming metrics
+   */
+  public static synchronized HedgeMetrics getStreamMetrics() {
+    if (streamMetrics == null) {
+      streamMetrics = new HedgeMetrics();
+    }
+    return streamMetrics;
+  }
+
+  private final long[] samples = new long[WINDOW];
+  private int sampleCount;
+  private int nextSample;
+
+  private final double percentile;
+  private final long minDelayMs;
+  private final long defaultDelayMs;
+
+  private final AtomicLong hedgeableRequests = new AtomicLong();
+  private final AtomicLong hedges = new AtomicLong();
+  private final AtomicLong hedgeWins = new AtomicLong();
+
+  private HedgeMetrics() {
+    this(
+        Integer.getInteger("apiproxy.hedge.percentile", 95) / 100.0,
+        Long.getLong("apiproxy.hedge.minDelayMs", 500),
+        Long.getLong("apiproxy.hedge.defaultDelayMs", 3_000));
+  }
+
+  HedgeMetrics(double percentile, long minDelayMs, long defaultDelayMs) {
+    this.percentile = percentile;
+    this.minDelayMs = minDelayMs;
+    this.defaultDelayMs = defaultDelayMs;
+  }
+
+  /**
+   * Returns how long to wait for the primary request before sending a backup.
+   *
+   * @return the hedging threshold in milliseconds
+   */
+  public synchronized long getHedgeDelayMs() {
+    if (sampleCount < MIN_SAMPLES) {
+      return defaultDelayMs;
+    }
+    long[] sorted = Arrays.copyOf(samples, sampleCount);
+    Arrays.sort(sorted);
+    int index = (int) Math.ceil(percentile * sampleCount) - 1;
+    return Math.max(minDelayMs, sorted[Math.max(0, Math.min(index, sampleCount - 1))]);
+  }
+
+  public long getHedgeableRequests() {
+    return hedgeableRequests.get();
+  }
+
+  public long getHedges() {
+    return hedges.get();
+  }
+
+  public long getHedgeWins() {
+    return hedgeWins.get();
+  }
+
+  /**
+   * Returns the fraction of hedgeable requests that needed a backup.
+   *
+   * @return the hedge rate between 0 and 1
+   */
+  public double getHedgeRate() {
+    long requests = hedgeableRequests.get();
+    return requests == 0 ? 0 : (double) hedges.get() / requests;
+  }
+
+  /**
+   * Returns the fraction of backups that answered before their primary.
+   *
+   * @return the win rate between 0 and 1
+   */
+  public double getHedgeWinRate() {
+    long sent = hedges.get();
+    return sent == 0 ? 0 : (double) hedgeWins.get() / sent;
+  }
+
+  @Override
+  public String toString() {
+    return String.format(
+        "requests=%d hedges=%d (%.1f%%) wins=%d (%.1f%%) thresholdMs=%d",
+        getHedgeableRequests(),
+        getHedges(),
+        getHedgeRate() * 100,
+        getHedgeWins(),
+        getHedgeWinRate() * 100,
+        getHedgeDelayMs());
+  }
+
+  synchronized void recordLatency(long latencyMs) {
+    samples[nextSample] = latencyMs;
+    nextSample = (nextSample + 1) % WINDOW;
+    sampleCount = Math.min(sampleCount + 1, WINDOW);
+  }
+
+  void recordHedgeableRequest() {
+    hedgeableRequests.incrementAndGet();
+  }
+
+  void recordHedge() {
+    hedges.incrementAndGet();
+  }
+
+  void recordHedgeWin() {
+    hedgeWins.incrementAndGet();
+  }
+}
@@ -0,0 +1,26 @@
+package nz.ac.auckland.apiproxy.exceptions;
+
+/**
+ * Thrown without contacting the proxy when its circuit breaker is open, meaning recent calls to the
+ * same endpoint kept failing. Callers can catch it to show a fallback instead of an error.
+ */
+public class ProxyUnavailableException extends ApiProxyException {
+
+  private static final long serialVersionUID = 1L;
+
+  private final long retryAfterMs;
+
+  public ProxyUnavailableException(String message, long retryAfterMs) {
+    super(message);
+    this.retryAfterMs = retryAfterMs;
+  }
+
+  /**
+   * Returns how long until the breaker lets a trial request through.
+   *
+   * @return the remaining cool-down in milliseconds
+   */
+  public long getRetryAfterMs() {
+    return retryAfterMs;
+  }
+}
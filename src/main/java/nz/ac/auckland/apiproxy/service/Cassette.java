@@ -0,0 +1,618 @@
+package nz.ac.auckland.apiproxy.service;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpHeaders;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.Flow;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import javax.net.ssl.SSLSession;
+import nz.ac.auckland.apiproxy.exceptions.ApiProxyException;
+
+/**
+ * Records the proxy's responses to a cassette file, or plays them back with no network, so a real
+ * player's trial can be reproduced on a laptop and captured traffic can drive load and regression
+ * benchmarks. Every attempt {@link HttpTransport} sends is recorded, including failed ones, so a
+ * replay retries where the original did.
+ *
+ * <p>Requests are matched by a fingerprint of their method, path and body, leaving out the host
+ * and the credentials, so a cassette replays against any proxy URL and for any player. Responses
+ * are kept with the time their headers took and the time each piece of the body arrived, so a
+ * streamed reply replays at the pace it was streamed. Identical requests are answered in the order
+ * they were recorded; once those run out, the last answer is repeated.
+ *
+ * <p>A cassette is gzipped JSON, one response per line, appended as each response completes.
+ * Configured with the {@code apiproxy.cassette.mode} ({@code record} or {@code replay}), {@code
+ * apiproxy.cassette.file} (default {@code apiproxy.cassette.gz}) and {@code
+ * apiproxy.cassette.timeScale} system properties. Replay delays are multiplied by the time scale:
+ * 1 keeps the recorded timing and 0 answers at once.
+ */
+public final class Cassette implements AutoCloseable {
+
+  private static final String DEFAULT_FILE = "apiproxy.cassette.gz";
+
+  // Left out of fingerprints so any player can replay a cassette; request bodies are never stored
+  private static final String[] CREDENTIAL_FIELDS = {"access_token", "email"};
+
+  /**
+   * Opens the cassette named by the system properties.
+   *
+   * @return the cassette, or null if recording and replay are off or the file cannot be opened
+   */
+  static Cassette fromSystemProperties() {
+    String mode = System.getProperty("apiproxy.cassette.mode", "off");
+    Path file = Paths.get(System.getProperty("apiproxy.cassette.file", DEFAULT_FILE));
+    try {
+      switch (mode) {
+        case "record":
+          System.out.println("Recording proxy responses to " + file.toAbsolutePath());
+          return record(file);
+        case "replay":
+          Cassette cassette =
+              replay(
+                  file,
+                  Double.parseDouble(System.getProperty("apiproxy.cassette.timeScale", "1")));
+          System.out.println(
+              "Replaying " + cassette.size() + " proxy responses from " + file.toAbsolutePath());
+          return cassette;
+        default:
+          return null;
+      }
+    } catch (IOException e) {
+      System.err.println(
+          "Could not open cassette " + file.toAbsolutePath() + ": " + e.getMessage());
+      return null;
+    }
+  }
+
+  /**
+   * Starts recording to a file, replacing anything already in it.
+   *
+   * @param file the cassette to write
+   * @return a recording cassette
+   * @throws IOException if the file cannot be created
+   */
+  public static Cassette record(Path file) throws IOException {
+    // Sync-flush each response so a crash loses at most the one being written
+    OutputStream out = new GZIPOutputStream(Files.newOutputStream(file), 8192, true);
+    return new Cassette(new OutputStreamWriter(out, StandardCharsets.UTF_8), null, 1);
+  }
+
+  /**
+   * Loads a recorded cassette for replay.
+   *
+   * @param file the cassette to read
+   * @param timeScale multiplies every recorded delay; 1 keeps the original timing
+   * @return a replaying cassette
+   * @throws IOException if the file cannot be read
+   */
+  public static Cassette replay(Path file, double timeScale) throws IOException {
+    if (timeScale < 0) {
+      throw new IllegalArgumentException("'timeScale' must not be negative, but was " + timeScale);
+    }
+    Map<String, Deque<Interaction>> recorded = new HashMap<>();
+    try (BufferedReader lines =
+        new BufferedReader(
+            new InputStreamReader(
+                new GZIPInputStream(Files.newInputStream(file)), StandardCharsets.UTF_8))) {
+      ObjectMapper mapper = new ObjectMapper();
+      String line;
+      while ((line = readLine(lines)) != null) {
+        if (line.isBlank()) {
+          continue;
+        }
+        Interaction interaction;
+        try {
+          interaction = Interaction.fromJson(mapper.readTree(line));
+        } catch (IOException e) {
+          break; // The recording was cut off partway through this response
+        }
+        recorded
+            .computeIfAbsent(interaction.fingerprint, key -> new ArrayDeque<>())
+            .add(interaction);
+      }
+    }
+    return new Cassette(null, recorded, timeScale);
+  }
+
+  private static String readLine(BufferedReader lines) throws IOException {
+    try {
+      return lines.readLine();
+    } catch (EOFException e) {
+      return null; // The recording stopped without finishing the gzip stream
+    }
+  }
+
+  private final ObjectMapper mapper = new ObjectMapper();
+  private final Writer writer;
+  private final Map<String, Deque<Interaction>> recorded;
+  private final double timeScale;
+  private int size;
+
+  private Cassette(Writer writer, Map<String, Deque<Interaction>> recorded, double timeScale) {
+    this.writer = writer;
+    this.recorded = recorded;
+    this.timeScale = timeScale;
+    if (recorded != null) {
+      for (Deque<Interaction> responses : recorded.values()) {
+        size += responses.size();
+      }
+    }
+  }
+
+  public boolean isReplaying() {
+    return recorded != null;
+  }
+
+  /**
+   * Returns how many responses have been recorded, or are left to replay.
+   *
+   * @return the number of responses
+   */
+  public synchronized int size() {
+    return size;
+  }
+
+  /**
+   * Sends one attempt of a request: over the network while recording, or from the cassette while
+   * replaying.
+   *
+   * @param client the client that sends recorded requests
+   * @param request the request
+   * @param handler consumes the response body
+   * @param <T> the type of the response body
+   * @return the response, or a failure if a replayed request was never recorded
+   */
+  <T> CompletableFuture<HttpResponse<T>> send(
+      HttpClient client, HttpRequest request, HttpResponse.BodyHandler<T> handler) {
+    String fingerprint;
+    try {
+      fingerprint = fingerprint(request);
+    } catch (IOException e) {
+      return CompletableFuture.failedFuture(e);
+    }
+    if (!isReplaying()) {
+      long start = System.nanoTime();
+      return client.sendAsync(
+          request,
+          info -> new RecordingSubscriber<>(handler.apply(info), fingerprint, info, start));
+    }
+
+    Interaction interaction = take(fingerprint);
+    if (interaction == null) {
+      return CompletableFuture.failedFuture(
+          new ApiProxyException(
+              "No recorded response for " + request.method() + " " + request.uri().getPath()));
+    }
+    return play(request, handler, interaction);
+  }
+
+  /** Finishes writing a recording. Replaying cassettes have nothing to close. */
+  @Override
+  public synchronized void close() {
+    if (writer == null) {
+      return;
+    }
+    try {
+      writer.close();
+    } catch (IOException e) {
+      System.err.println("Could not finish the cassette: " + e.getMessage());
+    }
+  }
+
+  private synchronized Interaction take(String fingerprint) {
+    Deque<Interaction> responses = recorded.get(fingerprint);
+    if (responses == null || responses.isEmpty()) {
+      return null;
+    }
+    if (responses.size() == 1) {
+      return responses.peek();
+    }
+    size--;
+    return responses.poll();
+  }
+
+  private synchronized void append(Interaction interaction) {
+    try {
+      writer.write(mapper.writeValueAsString(interaction.toJson(mapper)));
+      writer.write('\n');
+      writer.flush();
+      size++;
+    } catch (IOException e) {
+      System.err.println("Could not record a proxy response: " + e.getMessage());
+    }
+  }
+
+  private <T> CompletableFuture<HttpResponse<T>> play(
+      HttpRequest request, HttpResponse.BodyHandler<T> handler, Interaction interaction) {
+    CompletableFuture<HttpResponse<T>> result = new CompletableFuture<>();
+    Thread.ofVirtual()
+        .name("cassette-replay")
+        .start(
+            () -> {
+              try {
+                pause(interaction.headerMs);
+                HttpResponse.ResponseInfo info = interaction.toResponseInfo();
+                HttpResponse.BodySubscriber<T> subscriber = handler.apply(info);
+                Demand demand = new Demand();
+                subscriber.onSubscribe(demand);
+                subscriber
+                    .getBody()
+                    .whenComplete(
+                        (body, error) -> {
+                          if (error != null) {
+                            result.completeExceptionally(error);
+                          } else {
+                            result.complete(new ReplayedResponse<>(request, info, body));
+                          }
+                        });
+                long elapsedMs = 0;
+                for (Chunk chunk : interaction.chunks) {
+                  pause(chunk.offsetMs - elapsedMs);
+                  elapsedMs = chunk.offsetMs;
+                  if (result.isCancelled() || !demand.take()) {
+                    return;
+                  }
+                  subscriber.onNext(List.of(ByteBuffer.wrap(chunk.bytes)));
+                }
+                subscriber.onComplete();
+              } catch (InterruptedException e) {
+                result.completeExceptionally(e);
+              }
+            });
+    return result;
+  }
+
+  private void pause(long recordedMs) throws InterruptedException {
+    long ms = Math.round(recordedMs * timeScale);
+    if (ms > 0) {
+      TimeUnit.MILLISECONDS.sleep(ms);
+    }
+  }
+
+  /**
+   * Identifies a request by its method, path and body. The host and the credentials in the body
+   * are left out.
+   */
+  private String fingerprint(HttpRequest request) throws IOException {
+    byte[] body = readBody(request);
+    if (request.headers().firstValue("Content-Encoding").orElse("").equals("gzip")) {
+      body = new GZIPInputStream(new ByteArrayInputStream(body)).readAllBytes();
+    }
+    if (body.length > 0 && body[0] == '{') {
+      JsonNode json = mapper.readTree(body);
+      if (json instanceof ObjectNode) {
+        ((ObjectNode) json).remove(List.of(CREDENTIAL_FIELDS));
+        body = mapper.writeValueAsBytes(json);
+      }
+    }
+    String query = request.uri().getRawQuery();
+    try {
+      byte[] hash = MessageDigest.getInstance("SHA-256").digest(body);
+      return request.method()
+          + " "
+          + request.uri().getRawPath()
+          + (query == null ? "" : "?" + query)
+          + " "
+          + HexFormat.of().formatHex(hash);
+    } catch (NoSuchAlgorithmException e) {
+      throw new IOException("SHA-256 is not available", e);
+    }
+  }
+
+  private static byte[] readBody(HttpRequest request) throws IOException {
+    Optional<HttpRequest.BodyPublisher> publisher = request.bodyPublisher();
+    if (publisher.isEmpty() || publisher.get().contentLength() == 0) {
+      return new byte[0];
+    }
+    CompletableFuture<byte[]> body = new CompletableFuture<>();
+    publisher
+        .get()
+        .subscribe(
+            new Flow.Subscriber<ByteBuffer>() {
+              private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+
+              @Override
+              public void onSubscribe(Flow.Subscription subscription) {
+                subscription.request(Long.MAX_VALUE);
+              }
+
+              @Override
+              public void onNext(ByteBuffer item) {
+                byte[] chunk = new byte[item.remaining()];
+                item.get(chunk);
+                bytes.writeBytes(chunk);
+              }
+
+              @Override
+              public void onError(Throwable error) {
+                body.completeExceptionally(error);
+              }
+
+              @Override
+              public void onComplete() {
+                body.complete(bytes.toByteArray());
+              }
+            });
+    try {
+      return body.get(5, TimeUnit.SECONDS);
+    } catch (Exception e) {
+      throw new IOException("Could not read the request body to fingerprint it", e);
+    }
+  }
+
+  /** Passes a response body through while keeping a copy of it and when each piece arrived. */
+  private final class RecordingSubscriber<T> implements HttpResponse.BodySubscriber<T> {
+    private final HttpResponse.BodySubscriber<T> delegate;
+    private final Interaction interaction;
+    private final long headersNanos = System.nanoTime();
+
+    private RecordingSubscriber(
+        HttpResponse.BodySubscriber<T> delegate,
+        String fingerprint,
+        HttpResponse.ResponseInfo info,
+        long startNanos) {
+      this.delegate = delegate;
+      this.interaction =
+          new Interaction(
+              fingerprint,
+              info.statusCode(),
+              info.headers().firstValue("Content-Type").orElse(null),
+              info.headers().firstValue("Retry-After").orElse(null),
+              TimeUnit.NANOSECONDS.toMillis(headersNanos - startNanos));
+    }
+
+    @Override
+    public CompletionStage<T> getBody() {
+      return delegate.getBody();
+    }
+
+    @Override
+    public void onSubscribe(Flow.Subscription subscription) {
+      delegate.onSubscribe(subscription);
+    }
+
+    @Override
+    public void onNext(List<ByteBuffer> items) {
+      long offsetMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - headersNanos);
+      for (ByteBuffer item : items) {
+        byte[] bytes = new byte[item.remaining()];
+        item.duplicate().get(bytes);
+        interaction.addChunk(offsetMs, bytes);
+      }
+      delegate.onNext(items);
+    }
+
+    @Override
+    public void onError(Throwable throwable) {
+      delegate.onError(throwable); // A response that never finished is not worth replaying
+    }
+
+    @Override
+    public void onComplete() {
+      append(interaction);
+      delegate.onComplete();
+    }
+  }
+
+  /** Demand signalled by a replayed response's body subscriber. */
+  private static final class Demand implements Flow.Subscription {
+    private long requested;
+    private boolean cancelled;
+
+    @Override
+    public synchronized void request(long n) {
+      requested = n <= 0 || requested + n < 0 ? Long.MAX_VALUE : requested + n;
+      notifyAll();
+    }
+
+    @Override
+    public synchronized void cancel() {
+      cancelled = true;
+      notifyAll();
+    }
+
+    /** Waits until the subscriber wants another piece; false once it has cancelled. */
+    private synchronized boolean take() throws InterruptedException {
+      while (requested == 0 && !cancelled) {
+        wait();
+      }
+      if (cancelled) {
+        return false;
+      }
+      requested--;
+      return true;
+    }
+  }
+
+  /** One recorded response. */
+  private static final class Interaction {
+    private final String fingerprint;
+    private final int status;
+    private final String contentType;
+    private final String retryAfter;
+    private final long headerMs;
+    private final List<Chunk> chunks = new ArrayList<>();
+
+    private Interaction(
+        String fingerprint, int status, String contentType, String retryAfter, long headerMs) {
+      this.fingerprint = fingerprint;
+      this.status = status;
+      this.contentType = contentType;
+      this.retryAfter = retryAfter;
+      this.headerMs = headerMs;
+    }
+
+    private synchronized void addChunk(long offsetMs, byte[] bytes) {
+      Chunk last = chunks.isEmpty() ? null : chunks.get(chunks.size() - 1);
+      if (last != null && last.offsetMs == offsetMs) {
+        // Pieces that arrived together replay together, which keeps the cassette small
+        byte[] merged = new byte[last.bytes.length + bytes.length];
+        System.arraycopy(last.bytes, 0, merged, 0, last.bytes.length);
+        System.arraycopy(bytes, 0, merged, last.bytes.length, bytes.length);
+        chunks.set(chunks.size() - 1, new Chunk(offsetMs, merged));
+      } else {
+        chunks.add(new Chunk(offsetMs, bytes));
+      }
+    }
+
+    private HttpResponse.ResponseInfo toResponseInfo() {
+      Map<String, List<String>> headers = new HashMap<>();
+      if (contentType != null) {
+        headers.put("Content-Type", List.of(contentType));
+      }
+      if (retryAfter != null) {
+        headers.put("Retry-After", List.of(retryAfter));
+      }
+      HttpHeaders httpHeaders = HttpHeaders.of(headers, (name, value) -> true);
+      return new HttpResponse.ResponseInfo() {
+        @Override
+        public int statusCode() {
+          return status;
+        }
+
+        @Override
+        public HttpHeaders headers() {
+          return httpHeaders;
+        }
+
+        @Override
+        public HttpClient.Version version() {
+          return HttpClient.Version.HTTP_1_1;
+        }
+      };
+    }
+
+    private synchronized ObjectNode toJson(ObjectMapper mapper) {
+      ObjectNode json = mapper.createObjectNode();
+      json.put("fingerprint", fingerprint);
+      json.put("status", status);
+      json.put("contentType", contentType);
+      json.put("retryAfter", retryAfter);
+      json.put("headerMs", headerMs);
+      ArrayNode body = json.putArray("chunks");
+      Base64.Encoder base64 = Base64.getEncoder();
+      for (Chunk chunk : chunks) {
+        body.addArray().add(chunk.offsetMs).add(base64.encodeToString(chunk.bytes));
+      }
+      return json;
+    }
+
+    private static Interaction fromJson(JsonNode json) throws IOException {
+      if (!json.hasNonNull("fingerprint") || !json.path("chunks").isArray()) {
+        throw new IOException("Not a recorded response");
+      }
+      Interaction interaction =
+          new Interaction(
+              json.get("fingerprint").asText(),
+              json.path("status").asInt(),
+              json.hasNonNull("contentType") ? json.get("contentType").asText() : null,
+              json.hasNonNull("retryAfter") ? json.get("retryAfter").asText() : null,
+              json.path("headerMs").asLong());
+      Base64.Decoder base64 = Base64.getDecoder();
+      for (JsonNode chunk : json.get("chunks")) {
+        interaction.chunks.add(
+            new Chunk(chunk.path(0).asLong(), base64.decode(chunk.path(1).asText())));
+      }
+      return interaction;
+    }
+  }
+
+  /** A piece of a response body and when it arrived, after the headers. */
+  private static final class Chunk {
+    private final long offsetMs;
+    private final byte[] bytes;
+
+    private Chunk(long offsetMs, byte[] bytes) {
+      this.offsetMs = offsetMs;
+      this.bytes = bytes;
+    }
+  }
+
+  /** A response played back from the cassette. */
+  private static final class ReplayedResponse<T> implements HttpResponse<T> {
+    private final HttpRequest request;
+    private final HttpResponse.ResponseInfo info;
+    private final T body;
+
+    private ReplayedResponse(HttpRequest request, HttpResponse.ResponseInfo info, T body) {
+      this.request = request;
+      this.info = info;
+      this.body = body;
+    }
+
+    @Override
+    public int statusCode() {
+      return info.statusCode();
+    }
+
+    @Override
+    public HttpRequest request() {
+      return request;
+    }
+
+    @Override
+    public Optional<HttpResponse<T>> previousResponse() {
+      return Optional.empty();
+    }
+
+    @Override
+    public HttpHeaders headers() {
+      return info.headers();
+    }
+
+    @Override
+    public T body() {
+      return body;
+    }
+
+    @Override
+    public Optional<SSLSession> sslSession() {
+      return Optional.empty();
+    }
+
+    @Override
+    public URI uri() {
+      return request.uri();
+    }
+
+    @Override
+    public HttpClient.Version version() {
+      return info.version();
+    }
+  }
+}
@@ -0,0 +1,125 @@
+package nz.ac.auckland.apiproxy.service;
+
+/**
+ * Per-endpoint circuit breaker. After a run of consecutive failures the breaker opens and calls
+ * fail immediately instead of tying up a thread each. Once the cool-down has passed, a single trial
+ * call is let through; its outcome closes the breaker again or restarts the cool-down.
+ *
+ * <p>Configured with the {@code apiproxy.breaker.failureThreshold} (default 5) and {@code
+ * apiproxy.breaker.openMs} (default 15000) system properties.
+ */
+public final class CircuitBreaker {
+
+  /** The states a breaker moves through. */
+  public enum State {
+    /** Calls flow normally. */
+    CLOSED,
+    /** Calls fail fast until the cool-down ends. */
+    OPEN,
+    /** One trial call is deciding whether to close again. */
+    HALF_OPEN
+  }
+
+  private final String endpoint;
+  private final int failureThreshold;
+  private final long openMs;
+
+  private State state = State.CLOSED;
+  private int consecutiveFailures;
+  private long openedAtMs;
+  private boolean trialInFlight;
+
+  /**
+   * Creates a breaker in the closed state.
+   *
+   * @param endpoint the endpoint this breaker guards, used in messages
+   * @param failureThreshold the consecutive failures that open the breaker
+   * @param openMs how long the breaker stays open before allowing a trial call
+   */
+  public CircuitBreaker(String endpoint, int failureThreshold, long openMs) {
+    this.endpoint = endpoint;
+    this.failureThreshold = failureThreshold;
+    this.openMs = openMs;
+  }
+
+  public String getEndpoint() {
+    return endpoint;
+  }
+
+  /**
+   * Returns the current state, moving from open to half-open if the cool-down has passed.
+   *
+   * @return the current state
+   */
+  public synchronized State getState() {
+    if (state == State.OPEN && System.currentTimeMillis() - openedAtMs >= openMs) {
+      state = State.HALF_OPEN;
+      trialInFlight = false;
+    }
+    return state;
+  }
+
+  /**
+   * Returns whether a call would currently be let through. Controllers can use this to show a
+   * fallback before even trying.
+   *
+   * @return false while the breaker is open or its trial call is in flight
+   */
+  public synchronized boolean isCallPermitted() {
+    State current = getState();
+    return current == State.CLOSED || (current == State.HALF_OPEN && !trialInFlight);
+  }
+
+  /**
+   * Returns how long until the breaker allows a trial call.
+   *
+   * @return the remaining cool-down in milliseconds, or 0 if calls are permitted
+   */
+  public synchronized long getRetryAfterMs() {
+    if (getState() != State.OPEN) {
+      return 0;
+    }
+    return Math.max(0, openMs - (System.currentTimeMillis() - openedAtMs));
+  }
+
+  /**
+   * Claims permission for one call. Every successful claim must be followed by {@link
+   * #recordSuccess()} or {@link #recordFailure()}.
+   *
+   * @return true if the call may go ahead
+   */
+  synchronized boolean tryAcquire() {
+    State current = getState();
+    if (current == State.CLOSED) {
+      return true;
+    }
+    if (current == State.HALF_OPEN && !trialInFlight) {
+      trialInFlight = true;
+      return true;
+    }
+    return false;
+  }
+
+  synchronized void recordSuccess() {
+    state = State.CLOSED;
+    consecutiveFailures = 0;
+    trialInFlight = false;
+  }
+
+  /** Gives back a claim whose call was cancelled, so it counts as neither outcome. */
+  synchronized void recordCancelled() {
+    trialInFlight = false;
+  }
+
+  synchronized void recordFailure() {
+    consecutiveFailures++;
+    if (state == State.HALF_OPEN || consecutiveFailures >= failureThreshold) {
+      if (state != State.OPEN) {
+        System.err.println("Circuit breaker opened for " + endpoint);
+      }
+      state = State.OPEN;
+      openedAtMs = System.currentTimeMillis();
+      trialInFlight = false;
+    }
+  }
+}
@@ -1,8 +1,51 @@
 package nz.ac.auckland.apiproxy.service;
 
+/**
+ * The proxy endpoints. They all live under one base URL, which defaults to the cloud proxy and can
+ * be changed with the {@code apiproxy.baseUrl} system property, or at run time with {@link
+ * #setBaseUrl}, for example to point the game, tests or benchmarks at a {@link LocalProxyServer}.
+ */
 public class EndPoints {
-  public static final String PROXY_OPENAI_CHAT_COMPLETIONS =
-      "https://us-central1-api-proxies-and-wrappers.cloudfunctions.net/proxy/openai-chat-completion";
-  public static final String PROXY_TEXT_TO_SPEECH =
-      "https://us-central1-api-proxies-and-wrappers.cloudfunctions.net/proxy/text-to-speech";
+
+  public static final String DEFAULT_BASE_URL =
+      "https://us-central1-api-proxies-and-wrappers.cloudfunctions.net/proxy";
+
+  static final String OPENAI_CHAT_COMPLETION_PATH = "/openai-chat-completion";
+  static final String TEXT_TO_SPEECH_PATH = "/text-to-speech";
+
+  private static volatile String baseUrl = configuredBaseUrl();
+
+  /**
+   * Returns the base URL every endpoint is resolved against.
+   *
+   * @return the base URL, without a trailing slash
+   */
+  public static String getBaseUrl() {
+    return baseUrl;
+  }
+
+  /**
+   * Points every endpoint at another proxy. Requests already sent are not affected.
+   *
+   * @param url the new base URL, or null to go back to the configured one
+   */
+  public static void setBaseUrl(String url) {
+    baseUrl = url == null ? configuredBaseUrl() : stripTrailingSlash(url);
+  }
+
+  public static String getOpenAiChatCompletions() {
+    return baseUrl + OPENAI_CHAT_COMPLETION_PATH;
+  }
+
+  public static String getTextToSpeech() {
+    return baseUrl + TEXT_TO_SPEECH_PATH;
+  }
+
+  private static String configuredBaseUrl() {
+    return stripTrailingSlash(System.getProperty("apiproxy.baseUrl", DEFAULT_BASE_URL));
+  }
+
+  private static String stripTrailingSlash(String url) {
+    return url.endsWith("/") ? url.substring(0, url.length() - 1) : url;
+  }
 }
@@ -0,0 +1,490 @@
+package nz.ac.auckland.apiproxy.service;
+
+import com.fasterxml.jackson.core.JsonEncoding;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.net.http.HttpResponse.BodyHandlers;
+import java.time.Duration;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.zip.GZIPOutputStream;
+import nz.ac.auckland.apiproxy.exceptions.ApiProxyException;
+import nz.ac.auckland.apiproxy.exceptions.ProxyUnavailableException;
+
+/**
+ * Process-wide HTTP transport for the API proxy. Holds one {@link HttpClient} that prefers HTTP/2,
+ * so concurrent chat, speech and feedback calls are multiplexed over a single kept-alive TLS
+ * connection, and one Jackson mapper whose pre-built readers are shared by every request.
+ *
+ * <p>Timeouts can be tuned with the {@code apiproxy.connectTimeoutMs} and {@code
+ * apiproxy.readTimeoutMs} system properties. Setting {@code apiproxy.gzipRequests} to {@code true}
+ * compresses request bodies with {@code Content-Encoding: gzip}, for gateways that accept it.
+ *
+ * <p>Every request goes through a {@link RetryPolicy} and the {@link CircuitBreaker} of its
+ * endpoint, so transient proxy errors are retried and an outage fails fast. Each attempt can be
+ * recorded to, or replayed from, a {@link Cassette}.
+ */
+public final class HttpTransport {
+
+  private static final int DEFAULT_CONNECT_TIMEOUT_MS = 5_000;
+  private static final int DEFAULT_READ_TIMEOUT_MS = 60_000;
+
+  private static HttpTransport instance;
+
+  /** Writes a JSON request body token by token. */
+  @FunctionalInterface
+  public interface JsonBodyWriter {
+
+    /**
+     * Writes the complete body, including the outermost object.
+     *
+     * @param generator the generator to write to
+     * @throws IOException if the generator fails
+     */
+    void writeTo(JsonGenerator generator) throws IOException;
+  }
+
+  /**
+   * Returns the shared transport, creating it on first use.
+   *
+   * @return the process-wide transport
+   */
+  public static synchronized HttpTransport getInstance() {
+    if (instance == null) {
+      instance =
+          new HttpTransport(
+              RetryPolicy.fromSystemProperties(),
+              Integer.getInteger("apiproxy.breaker.failureThreshold", 5),
+              Long.getLong("apiproxy.breaker.openMs", 15_000));
+    }
+    return instance;
+  }
+
+  /** Closes the shared transport and releases its connections. */
+  public static synchronized void shutdown() {
+    if (instance != null) {
+      instance.close();
+      instance = null;
+    }
+  }
+
+  /**
+   * Unwraps the exception thrown by a failed future into the proxy's checked exception type.
+   *
+   * @param error the failure, possibly wrapped in a completion or execution exception
+   * @return an exception suitable to throw from a blocking {@code execute()}
+   */
+  public static ApiProxyException toApiProxyException(Throwable error) {
+    Throwable cause = error;
+    while ((cause instanceof CompletionException || cause instanceof ExecutionException)
+        && cause.getCause() != null) {
+      cause = cause.getCause();
+    }
+    if (cause instanceof ApiProxyException) {
+      return (ApiProxyException) cause;
+    }
+    return new ApiProxyException("Problem calling API: " + cause.getMessage(), cause);
+  }
+
+  private final ExecutorService executor;
+  private final HttpClient client;
+  private final ObjectMapper mapper;
+  private final Map<Class<?>, ObjectReader> readers = new ConcurrentHashMap<>();
+  private final Duration connectTimeout;
+  private final Duration readTimeout;
+  private final boolean gzipRequests;
+  private final RetryPolicy retryPolicy;
+  private final int breakerFailureThreshold;
+  private final long breakerOpenMs;
+  private final Map<String, CircuitBreaker> breakers = new ConcurrentHashMap<>();
+  private volatile Cassette cassette;
+
+  /**
+   * Creates a transport. Outside tests, use {@link #getInstance()}.
+   *
+   * @param retryPolicy decides which failures are retried
+   * @param breakerFailureThreshold the consecutive failures that open an endpoint's breaker
+   * @param breakerOpenMs how long an open breaker waits before a trial call
+   */
+  HttpTransport(RetryPolicy retryPolicy, int breakerFailureThreshold, long breakerOpenMs) {
+    this.retryPolicy = retryPolicy;
+    this.breakerFailureThreshold = breakerFailureThreshold;
+    this.breakerOpenMs = breakerOpenMs;
+
+    connectTimeout =
+        Duration.ofMillis(
+            Integer.getInteger("apiproxy.connectTimeoutMs", DEFAULT_CONNECT_TIMEOUT_MS));
+    readTimeout =
+        Duration.ofMillis(Integer.getInteger("apiproxy.readTimeoutMs", DEFAULT_READ_TIMEOUT_MS));
+    gzipRequests = Boolean.getBoolean("apiproxy.gzipRequests");
+
+    // Daemon threads so in-flight requests never keep the JVM alive after the window closes
+    AtomicInteger threadCount = new AtomicInteger();
+    executor =
+        Executors.newCachedThreadPool(
+            r -> {
+              Thread t = new Thread(r, "apiproxy-http-" + threadCount.incrementAndGet());
+              t.setDaemon(true);
+              return t;
+            });
+
+    client =
+        HttpClient.newBuilder()
+            .version(HttpClient.Version.HTTP_2)
+            .connectTimeout(connectTimeout)
+            .followRedirects(HttpClient.Redirect.NORMAL)
+            .executor(executor)
+            .build();
+
+    mapper = new ObjectMapper().configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false);
+    cassette = Cassette.fromSystemProperties();
+  }
+
+  public HttpClient getClient() {
+    return client;
+  }
+
+  public ObjectMapper getMapper() {
+    return mapper;
+  }
+
+  public Duration getConnectTimeout() {
+    return connectTimeout;
+  }
+
+  public Duration getReadTimeout() {
+    return readTimeout;
+  }
+
+  /**
+   * Returns the cassette requests are recorded to or replayed from.
+   *
+   * @return the cassette, or null if requests go to the proxy as usual
+   */
+  public Cassette getCassette() {
+    return cassette;
+  }
+
+  /**
+   * Records requests to, or replays them from, a cassette, for example in a benchmark. The
+   * previous cassette is not closed.
+   *
+   * @param cassette the cassette, or null to go to the proxy as usual
+   */
+  public void setCassette(Cassette cassette) {
+    this.cassette = cassette;
+  }
+
+  /**
+   * Returns the circuit breaker guarding an endpoint, so callers can check whether the proxy is
+   * currently considered down.
+   *
+   * @param endpoint the proxy URL, as in {@link EndPoints}
+   * @return the endpoint's breaker
+   */
+  public CircuitBreaker getCircuitBreaker(String endpoint) {
+    return breakers.computeIfAbsent(
+        endpoint, key -> new CircuitBreaker(key, breakerFailureThreshold, breakerOpenMs));
+  }
+
+  /**
+   * Returns a cached, thread-safe reader for the given response type.
+   *
+   * @param type the class to bind JSON into
+   * @return the shared reader for that type
+   */
+  public ObjectReader readerFor(Class<?> type) {
+    return readers.computeIfAbsent(type, mapper::readerFor);
+  }
+
+  /**
+   * Starts a JSON POST to the given endpoint with the transport's read timeout applied.
+   *
+   * @param endpoint the proxy URL
+   * @param body the JSON request body
+   * @param accept the media types the caller can handle
+   * @return a request ready to send
+   */
+  public HttpRequest newJsonPost(String endpoint, String body, String accept) {
+    return HttpRequest.newBuilder(URI.create(endpoint))
+        .timeout(readTimeout)
+        .header("Content-Type", "application/json; charset=utf-8")
+        .header("Accept", accept)
+        .POST(HttpRequest.BodyPublishers.ofString(body))
+        .build();
+  }
+
+  /**
+   * Starts a JSON POST whose body is written directly by a Jackson generator, skipping the
+   * intermediate JSON tree and string. The body is gzipped when {@code apiproxy.gzipRequests} is
+   * set.
+   *
+   * @param endpoint the proxy URL
+   * @param body writes the JSON request body
+   * @param accept the media types the caller can handle
+   * @return a request ready to send
+   * @throws UncheckedIOException if the body cannot be written
+   */
+  public HttpRequest newJsonPost(String endpoint, JsonBodyWriter body, String accept) {
+    HttpRequest.Builder builder =
+        HttpRequest.newBuilder(URI.create(endpoint))
+            .timeout(readTimeout)
+            .header("Content-Type", "application/json; charset=utf-8")
+            .header("Accept", accept);
+    if (gzipRequests) {
+      builder.header("Content-Encoding", "gzip");
+    }
+    return builder.POST(HttpRequest.BodyPublishers.ofByteArray(encode(body))).build();
+  }
+
+  /**
+   * Sends a request without blocking and collects the whole body.
+   *
+   * @param request the request to send
+   * @return a future completing with the response
+   */
+  public CompletableFuture<HttpResponse<byte[]>> sendAsync(HttpRequest request) {
+    return sendWithRetry(request, BodyHandlers.ofByteArray());
+  }
+
+  /**
+   * Sends a request and returns as soon as the headers arrive, leaving the body to be read
+   * incrementally by the caller.
+   *
+   * @param request the request to send
+   * @return the response with an open body stream
+   * @throws ApiProxyException if the request cannot be sent
+   */
+  public HttpResponse<InputStream> sendStreaming(HttpRequest request) throws ApiProxyException {
+    CompletableFuture<HttpResponse<InputStream>> response = sendStreamingAsync(request);
+    try {
+      return response.get();
+    } catch (InterruptedException e) {
+      response.cancel(true);
+      Thread.currentThread().interrupt();
+      throw new ApiProxyException("Problem calling API: interrupted", e);
+    } catch (Exception e) {
+      throw toApiProxyException(e);
+    }
+  }
+
+  /**
+   * Sends a request without blocking, completing as soon as the headers arrive and leaving the body
+   * to be read incrementally by the caller.
+   *
+   * @param request the request to send
+   * @return a future completing with the response and its open body stream
+   */
+  public CompletableFuture<HttpResponse<InputStream>> sendStreamingAsync(HttpRequest request) {
+    return sendWithRetry(request, BodyHandlers.ofInputStream());
+  }
+
+  /**
+   * Downloads a file, such as generated speech, with the same retries as proxy calls, so it is
+   * also recorded and replayed by a {@link Cassette}.
+   *
+   * @param url the file's URL
+   * @return the body, which the caller must close
+   * @throws ApiProxyException if the download fails
+   */
+  public InputStream openStream(String url) throws ApiProxyException {
+    HttpRequest request =
+        HttpRequest.newBuilder(URI.create(url)).timeout(readTimeout).GET().build();
+    HttpResponse<InputStream> response = sendStreaming(request);
+    if (response.statusCode() != 200) {
+      discard(response);
+      throw new ApiProxyException(
+          "Problem downloading " + url + ": HTTP " + response.statusCode());
+    }
+    return response.body();
+  }
+
+  /**
+   * Releases a response that will not be used. A streamed body must be closed or its connection
+   * stays tied up.
+   *
+   * @param response the unwanted response
+   */
+  public static void discard(HttpResponse<?> response) {
+    if (response.body() instanceof AutoCloseable) {
+      try {
+        ((AutoCloseable) response.body()).close();
+      } catch (Exception e) {
+        // Nothing useful to do; the response is being thrown away
+      }
+    }
+  }
+
+  /**
+   * Opens the connection to the proxy in the background so the first chat or speech request does
+   * not pay for the TCP and TLS handshake. Failures are ignored; the real request will simply
+   * connect as usual.
+   */
+  public void prewarm() {
+    Cassette current = cassette;
+    if (current != null && current.isReplaying()) {
+      return; // Replies come from the cassette, so there is nothing to connect to
+    }
+    // Warm one endpoint after the other so a shared host ends up with a single connection
+    CompletableFuture<Void> warmed = CompletableFuture.completedFuture(null);
+    for (String endpoint :
+        new String[] {EndPoints.getOpenAiChatCompletions(), EndPoints.getTextToSpeech()}) {
+      HttpRequest head =
+          HttpRequest.newBuilder(URI.create(endpoint))
+              .timeout(connectTimeout.multipliedBy(2))
+              .method("HEAD", HttpRequest.BodyPublishers.noBody())
+              .build();
+      warmed =
+          warmed.thenCompose(
+              ignored ->
+                  client
+                      .sendAsync(head, BodyHandlers.discarding())
+                      .handle(
+                          (response, e) -> {
+                            if (e != null) {
+                              System.err.println(
+                                  "Could not pre-warm " + endpoint + ": " + e.getMessage());
+                            }
+                            return null;
+                          }));
+    }
+  }
+
+  private <T> CompletableFuture<HttpResponse<T>> sendWithRetry(
+      HttpRequest request, HttpResponse.BodyHandler<T> handler) {
+    CompletableFuture<HttpResponse<T>> result = new CompletableFuture<>();
+    AtomicReference<CompletableFuture<HttpResponse<T>>> inFlight = new AtomicReference<>();
+    // Cancelling the caller's future aborts whichever attempt is running
+    result.whenComplete(
+        (response, error) -> {
+          CompletableFuture<HttpResponse<T>> attempt = inFlight.get();
+          if (result.isCancelled() && attempt != null) {
+            attempt.cancel(true);
+          }
+        });
+    attempt(request, handler, getCircuitBreaker(endpointOf(request)), 1, result, inFlight);
+    return result;
+  }
+
+  private <T> void attempt(
+      HttpRequest request,
+      HttpResponse.BodyHandler<T> handler,
+      CircuitBreaker breaker,
+      int attempt,
+      CompletableFuture<HttpResponse<T>> result,
+      AtomicReference<CompletableFuture<HttpResponse<T>>> inFlight) {
+    if (result.isDone()) {
+      return;
+    }
+    if (!breaker.tryAcquire()) {
+      result.completeExceptionally(
+          new ProxyUnavailableException(
+              "Proxy unavailable: " + breaker.getEndpoint() + " keeps failing",
+              breaker.getRetryAfterMs()));
+      return;
+    }
+
+    Cassette current = cassette;
+    CompletableFuture<HttpResponse<T>> call =
+        current == null
+            ? client.sendAsync(request, handler)
+            : current.send(client, request, handler);
+    inFlight.set(call);
+    call.whenComplete(
+        (response, error) -> {
+          if (error == null && !retryPolicy.isRetryable(response.statusCode())) {
+            // Any answer the proxy chose to give, even a 4xx, shows it is up
+            breaker.recordSuccess();
+            if (!result.complete(response)) {
+              discard(response); // The caller gave up on it
+            }
+            return;
+          }
+          if (result.isCancelled() || (error != null && RetryPolicy.isCancellation(error))) {
+            breaker.recordCancelled(); // Says nothing about the proxy either way
+            if (error != null) {
+              result.completeExceptionally(error);
+            } else {
+              discard(response);
+            }
+            return;
+          }
+          if (error != null && !retryPolicy.isRetryable(request, error)) {
+            breaker.recordFailure();
+            result.completeExceptionally(error);
+            return;
+          }
+
+          breaker.recordFailure();
+          if (attempt >= retryPolicy.getMaxAttempts() || result.isDone()) {
+            if (error != null) {
+              result.completeExceptionally(error);
+            } else {
+              result.complete(response);
+            }
+            return;
+          }
+
+          long delayMs = retryPolicy.delayMs(attempt, response);
+          if (response != null) {
+            discard(response);
+          }
+          System.err.println(
+              "Retrying "
+                  + breaker.getEndpoint()
+                  + " in "
+                  + delayMs
+                  + " ms after "
+                  + (error != null ? error.getMessage() : "HTTP " + response.statusCode()));
+          CompletableFuture.delayedExecutor(delayMs, TimeUnit.MILLISECONDS, executor)
+              .execute(() -> attempt(request, handler, breaker, attempt + 1, result, inFlight));
+        });
+  }
+
+  private static String endpointOf(HttpRequest request) {
+    URI uri = request.uri();
+    // Every download has a URL of its own, so downloads share one breaker per host
+    String path = "GET".equals(request.method()) ? "" : uri.getRawPath();
+    return uri.getScheme() + "://" + uri.getRawAuthority() + path;
+  }
+
+  private byte[] encode(JsonBodyWriter body) {
+    ByteArrayOutputStream buffer = new ByteArrayOutputStream(8192);
+    // Closing the generator flushes it and finishes the gzip trailer, if any
+    try (OutputStream out = gzipRequests ? new GZIPOutputStream(buffer, 8192) : buffer;
+        JsonGenerator generator = mapper.getFactory().createGenerator(out, JsonEncoding.UTF8)) {
+      body.writeTo(generator);
+    } catch (IOException e) {
+      throw new UncheckedIOException("Could not write request body", e);
+    }
+    return buffer.toByteArray();
+  }
+
+  void close() {
+    Cassette current = cassette;
+    if (current != null) {
+      current.close();
+    }
+    client.shutdownNow();
+    executor.shutdownNow();
+  }
+}
@@ -0,0 +1,748 @@
+package nz.ac.auckland.apiproxy.service;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPInputStream;
+import nz.ac.auckland.apiproxy.chat.openai.ChatCompletionPayload;
+import nz.ac.auckland.apiproxy.chat.openai.ChatCompletionRequest.Model;
+import nz.ac.auckland.apiproxy.chat.openai.ChatMessage;
+import nz.ac.auckland.apiproxy.chat.openai.ConversationCompactor;
+import nz.ac.auckland.apiproxy.tokenizer.BpeTokenizer;
+import nz.ac.auckland.apiproxy.tokenizer.Encoding;
+
+/**
+ * A stand-in for the cloud proxy that runs on the loopback interface, so the game, tests and
+ * benchmarks can run offline. It answers both proxy endpoints the way the real proxy does: chat
+ * completions, streamed or whole, with scripted or templated replies, and text to speech with the
+ * URL of a short silent clip it serves itself.
+ *
+ * <p>Latency, server errors and rate limiting can be injected, either at random with a seeded
+ * generator or one at a time with {@link #failNext}. Every chat reply reports token usage counted
+ * with the model's tokenizer, and the totals are kept in {@link #getUsage()}. Prompt caching is
+ * approximated by counting the messages a request shares with the start of the one before it.
+ *
+ * <p>Point the app at it with {@link EndPoints#setBaseUrl}, or start the game with {@code
+ * -Dapiproxy.local=true}; see {@link #fromSystemProperties()} for the other properties.
+ */
+public final class LocalProxyServer implements AutoCloseable {
+
+  /** Writes the reply to one chat request. */
+  public interface Responder {
+    /**
+     * Returns the reply text.
+     *
+     * @param messages the conversation sent with the request
+     * @param model the model the request asked for, or null
+     * @return the assistant's reply
+     */
+    String reply(List<ChatMessage> messages, String model);
+  }
+
+  /** A distribution of delays, in milliseconds. */
+  public interface Latency {
+    /**
+     * Draws one delay.
+     *
+     * @param random the server's generator, so seeded runs repeat
+     * @return the delay in milliseconds
+     */
+    long sampleMs(Random random);
+
+    static Latency none() {
+      return random -> 0;
+    }
+
+    static Latency fixed(long ms) {
+      return random -> ms;
+    }
+
+    static Latency uniform(long minMs, long maxMs) {
+      return random -> minMs + (long) (random.nextDouble() * (maxMs - minMs));
+    }
+
+    /**
+     * Returns a long-tailed distribution like real model latency: most delays sit near the median
+     * and a few are several times longer.
+     *
+     * @param medianMs the median delay
+     * @param sigma the spread; 0.5 puts the 99th percentile at about three times the median
+     * @return the distribution
+     */
+    static Latency logNormal(long medianMs, double sigma) {
+      return random -> Math.round(medianMs * Math.exp(sigma * random.nextGaussian()));
+    }
+  }
+
+  private static final String BASE_PATH = "/proxy";
+  private static final String AUDIO_PATH = "/audio/silence.mp3";
+  private static final int MESSAGE_PRIMING_TOKENS = 3;
+
+  // MPEG-1 Layer III, 128 kbps, 44.1 kHz; a frame of zeros after the header decodes as silence
+  private static final byte[] SILENT_FRAME_HEADER = {(byte) 0xFF, (byte) 0xFB, (byte) 0x90, 0x44};
+  private static final int SILENT_FRAME_BYTES = 417;
+  private static final int SILENT_FRAMES = 10;
+
+  /**
+   * Returns a builder configured by system properties: {@code apiproxy.local.port} (default 0, any
+   * free port), {@code apiproxy.local.latencyMs} (median of a log-normal delay, default 0), {@code
+   * apiproxy.local.chunkDelayMs} (between streamed pieces, default 0), {@code
+   * apiproxy.local.errorRate} and {@code apiproxy.local.rateLimitRate} (fractions of requests
+   * answered 503 and 429, default 0), {@code apiproxy.local.seed} and {@code
+   * apiproxy.local.template}.
+   *
+   * @return the configured builder
+   */
+  public static Builder fromSystemProperties() {
+    Builder builder =
+        builder()
+            .port(Integer.getInteger("apiproxy.local.port", 0))
+            .errorRate(Double.parseDouble(System.getProperty("apiproxy.local.errorRate", "0")))
+            .rateLimitRate(
+                Double.parseDouble(System.getProperty("apiproxy.local.rateLimitRate", "0")));
+    long latencyMs = Long.getLong("apiproxy.local.latencyMs", 0L);
+    if (latencyMs > 0) {
+      builder.latency(Latency.logNormal(latencyMs, 0.5));
+    }
+    long chunkDelayMs = Long.getLong("apiproxy.local.chunkDelayMs", 0L);
+    if (chunkDelayMs > 0) {
+      builder.chunkDelay(Latency.fixed(chunkDelayMs));
+    }
+    Long seed = Long.getLong("apiproxy.local.seed");
+    if (seed != null) {
+      builder.seed(seed);
+    }
+    String template = System.getProperty("apiproxy.local.template");
+    if (template != null) {
+      builder.template(template);
+    }
+    return builder;
+  }
+
+  public static Builder builder() {
+    return new Builder();
+  }
+
+  /**
+   * Runs the server on its own until the process is killed, for pointing a separately started game
+   * at it with {@code -Dapiproxy.baseUrl}.
+   *
+   * @param args unused
+   * @throws IOException if the server cannot start
+   */
+  public static void main(String[] args) throws IOException {
+    LocalProxyServer server = fromSystemProperties().start();
+    System.out.println("Local proxy listening at " + server.getBaseUrl());
+  }
+
+  private final HttpServer server;
+  private final ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor();
+  private final ObjectMapper mapper = new ObjectMapper();
+  private final Random random;
+  private final Latency latency;
+  private final Latency chunkDelay;
+  private final double errorRate;
+  private final double rateLimitRate;
+  private final int retryAfterSeconds;
+  private final Responder responder;
+  private final Deque<Integer> scriptedFaults = new ArrayDeque<>();
+  private final Usage usage = new Usage();
+
+  // The previous chat request's messages, to work out how much of the next prompt was cached
+  private List<ChatMessage> previousMessages = List.of();
+
+  private LocalProxyServer(Builder builder) throws IOException {
+    random = builder.seed == null ? new Random() : new Random(builder.seed);
+    latency = builder.latency;
+    chunkDelay = builder.chunkDelay;
+    errorRate = builder.errorRate;
+    rateLimitRate = builder.rateLimitRate;
+    retryAfterSeconds = builder.retryAfterSeconds;
+    responder =
+        builder.responder != null
+            ? builder.responder
+            : new ScriptedResponder(builder.script, builder.template);
+
+    server =
+        HttpServer.create(
+            new InetSocketAddress(InetAddress.getLoopbackAddress(), builder.port), 0);
+    server.createContext(BASE_PATH + EndPoints.OPENAI_CHAT_COMPLETION_PATH, this::handleChat);
+    server.createContext(BASE_PATH + EndPoints.TEXT_TO_SPEECH_PATH, this::handleSpeech);
+    server.createContext(BASE_PATH + AUDIO_PATH, this::handleAudio);
+    server.setExecutor(executor);
+    server.start();
+  }
+
+  /**
+   * Returns the base URL to hand to {@link EndPoints#setBaseUrl}.
+   *
+   * @return the base URL of this server's endpoints
+   */
+  public String getBaseUrl() {
+    return "http://"
+        + server.getAddress().getAddress().getHostAddress()
+        + ":"
+        + server.getAddress().getPort()
+        + BASE_PATH;
+  }
+
+  /**
+   * Answers the next requests with the given statuses, in order, before any random faults.
+   *
+   * @param statuses the HTTP statuses to answer with, such as 429 or 503
+   */
+  public void failNext(int... statuses) {
+    synchronized (scriptedFaults) {
+      for (int status : statuses) {
+        scriptedFaults.add(status);
+      }
+    }
+  }
+
+  /**
+   * Returns the running totals of requests, faults and tokens.
+   *
+   * @return the usage so far
+   */
+  public Usage getUsage() {
+    return usage;
+  }
+
+  /** Stops the server straight away. Requests still being answered are cut off. */
+  @Override
+  public void close() {
+    server.stop(0);
+    executor.shutdownNow();
+  }
+
+  private void handleChat(HttpExchange exchange) throws IOException {
+    try (exchange) {
+      if (answeredWithoutBody(exchange)) {
+        return;
+      }
+      JsonNode body = mapper.readTree(requestBody(exchange));
+      usage.chatRequests.incrementAndGet();
+      String model = body.path("model").isTextual() ? body.get("model").asText() : null;
+      List<ChatMessage> messages = new ArrayList<>();
+      for (JsonNode message : body.path("messages")) {
+        messages.add(
+            new ChatMessage(
+                message.path("role").asText(),
+                message.path("content").isNull() ? null : message.path("content").asText()));
+      }
+
+      Encoding encoding = encodingOf(model);
+      int promptTokens =
+          ConversationCompactor.estimateTokens(messages, encoding) + MESSAGE_PRIMING_TOKENS;
+      int cachedTokens = countCachedTokens(messages, encoding);
+      String reply = responder.reply(messages, model);
+      String finishReason = "stop";
+      int maxTokens = body.path("max_tokens").asInt(0);
+      if (maxTokens > 0 && BpeTokenizer.countTokens(encoding, reply) > maxTokens) {
+        reply = truncate(reply, maxTokens, encoding);
+        finishReason = "length";
+      }
+      int choices = Math.max(1, body.path("n").asInt(1));
+      int completionTokens = BpeTokenizer.countTokens(encoding, reply) * choices;
+      usage.promptTokens.addAndGet(promptTokens);
+      usage.cachedTokens.addAndGet(cachedTokens);
+      usage.completionTokens.addAndGet(completionTokens);
+      ChatCompletionPayload.Usage replyUsage =
+          new ChatCompletionPayload.Usage(
+              promptTokens,
+              completionTokens,
+              promptTokens + completionTokens,
+              new ChatCompletionPayload.PromptTokensDetails(cachedTokens));
+
+      sleep(latency);
+      if (body.path("stream").asBoolean(false)) {
+        streamReply(exchange, model, reply, finishReason, replyUsage);
+        return;
+      }
+      List<ChatCompletionPayload.ChoicePayload> payloadChoices = new ArrayList<>();
+      for (int i = 0; i < choices; i++) {
+        payloadChoices.add(
+            new ChatCompletionPayload.ChoicePayload(
+                i, finishReason, new ChatCompletionPayload.MessagePayload("assistant", reply)));
+      }
+      ChatCompletionPayload completion =
+          new ChatCompletionPayload(
+              model == null ? "local" : model,
+              System.currentTimeMillis() / 1000,
+              replyUsage,
+              payloadChoices);
+      Map<String, Object> response = success();
+      response.put("chat_completion", completion);
+      sendJson(exchange, 200, response);
+    } catch (IOException | RuntimeException e) {
+      System.err.println("Local proxy could not answer a chat request: " + e.getMessage());
+    }
+  }
+
+  private void streamReply(
+      HttpExchange exchange,
+      String model,
+      String reply,
+      String finishReason,
+      ChatCompletionPayload.Usage replyUsage)
+      throws IOException {
+    exchange.getResponseHeaders().set("Content-Type", "text/event-stream");
+    exchange.sendResponseHeaders(200, 0);
+    OutputStream out = exchange.getResponseBody();
+    writeEvent(out, chunk(model, Map.of("role", "assistant"), null, null));
+    // Stream a word at a time, keeping the spaces, the way a model emits tokens
+    int start = 0;
+    while (start < reply.length()) {
+      int end = reply.indexOf(' ', start + 1);
+      end = end < 0 ? reply.length() : end;
+      sleep(chunkDelay);
+      writeEvent(out, chunk(model, Map.of("content", reply.substring(start, end)), null, null));
+      start = end;
+    }
+    writeEvent(out, chunk(model, Map.of(), finishReason, replyUsage));
+    out.write("data: [DONE]\n\n".getBytes(StandardCharsets.UTF_8));
+    out.flush();
+  }
+
+  private Map<String, Object> chunk(
+      String model,
+      Map<String, String> delta,
+      String finishReason,
+      ChatCompletionPayload.Usage replyUsage) {
+    Map<String, Object> choice = new LinkedHashMap<>();
+    choice.put("index", 0);
+    choice.put("delta", delta);
+    choice.put("finish_reason", finishReason);
+    Map<String, Object> chunk = new LinkedHashMap<>();
+    chunk.put("model", model == null ? "local" : model);
+    chunk.put("choices", List.of(choice));
+    if (replyUsage != null) {
+      chunk.put("usage", replyUsage);
+    }
+    return chunk;
+  }
+
+  private void writeEvent(OutputStream out, Object data) throws IOException {
+    out.write("data: ".getBytes(StandardCharsets.UTF_8));
+    out.write(mapper.writeValueAsBytes(data));
+    out.write("\n\n".getBytes(StandardCharsets.UTF_8));
+    out.flush();
+  }
+
+  /** Returns the request body, unzipped if the client sent it with apiproxy.gzipRequests. */
+  private static InputStream requestBody(HttpExchange exchange) throws IOException {
+    InputStream body = exchange.getRequestBody();
+    String encoding = exchange.getRequestHeaders().getFirst("Content-Encoding");
+    return "gzip".equalsIgnoreCase(encoding) ? new GZIPInputStream(body) : body;
+  }
+
+  private void handleSpeech(HttpExchange exchange) throws IOException {
+    try (exchange) {
+      if (answeredWithoutBody(exchange)) {
+        return;
+      }
+      JsonNode body = mapper.readTree(requestBody(exchange));
+      usage.speechRequests.incrementAndGet();
+      usage.speechCharacters.addAndGet(body.path("text").asText("").length());
+      sleep(latency);
+      Map<String, Object> response = success();
+      response.put("audio", getBaseUrl() + AUDIO_PATH);
+      sendJson(exchange, 200, response);
+    } catch (IOException | RuntimeException e) {
+      System.err.println("Local proxy could not answer a speech request: " + e.getMessage());
+    }
+  }
+
+  private void handleAudio(HttpExchange exchange) throws IOException {
+    try (exchange) {
+      byte[] clip = new byte[SILENT_FRAME_BYTES * SILENT_FRAMES];
+      for (int frame = 0; frame < SILENT_FRAMES; frame++) {
+        System.arraycopy(
+            SILENT_FRAME_HEADER, 0, clip, frame * SILENT_FRAME_BYTES, SILENT_FRAME_HEADER.length);
+      }
+      exchange.getResponseHeaders().set("Content-Type", "audio/mpeg");
+      exchange.sendResponseHeaders(200, clip.length);
+      exchange.getResponseBody().write(clip);
+    }
+  }
+
+  /**
+   * Answers connection pre-warming and injected faults, which carry no proxy payload.
+   *
+   * @return true if the exchange has been answered
+   */
+  private boolean answeredWithoutBody(HttpExchange exchange) throws IOException {
+    usage.requests.incrementAndGet();
+    if ("HEAD".equals(exchange.getRequestMethod())) {
+      exchange.sendResponseHeaders(200, -1);
+      return true;
+    }
+    Integer status;
+    synchronized (scriptedFaults) {
+      status = scriptedFaults.poll();
+    }
+    if (status == null) {
+      double roll = random.nextDouble();
+      if (roll < rateLimitRate) {
+        status = 429;
+      } else if (roll < rateLimitRate + errorRate) {
+        status = 503;
+      }
+    }
+    if (status == null) {
+      return false;
+    }
+
+    exchange.getRequestBody().transferTo(OutputStream.nullOutputStream());
+    sleep(latency);
+    if (status == 429) {
+      usage.rateLimited.incrementAndGet();
+      exchange.getResponseHeaders().set("Retry-After", Integer.toString(retryAfterSeconds));
+    } else {
+      usage.errors.incrementAndGet();
+    }
+    Map<String, Object> response = new LinkedHashMap<>();
+    response.put("success", false);
+    response.put("code", status);
+    response.put("message", "Injected by the local proxy");
+    sendJson(exchange, status, response);
+    return true;
+  }
+
+  private int countCachedTokens(List<ChatMessage> messages, Encoding encoding) {
+    List<ChatMessage> previous;
+    synchronized (this) {
+      previous = previousMessages;
+      previousMessages = messages;
+    }
+    int cached = 0;
+    for (int i = 0; i < messages.size() && i < previous.size(); i++) {
+      ChatMessage message = messages.get(i);
+      ChatMessage earlier = previous.get(i);
+      if (!message.getRole().equals(earlier.getRole())
+          || !String.valueOf(message.getContent()).equals(String.valueOf(earlier.getContent()))) {
+        break;
+      }
+      cached += ConversationCompactor.estimateTokens(message, encoding);
+    }
+    return cached;
+  }
+
+  private static String truncate(String reply, int maxTokens, Encoding encoding) {
+    String truncated = reply;
+    while (!truncated.isEmpty() && BpeTokenizer.countTokens(encoding, truncated) > maxTokens) {
+      int space = truncated.lastIndexOf(' ');
+      truncated = space < 0 ? "" : truncated.substring(0, space);
+    }
+    return truncated;
+  }
+
+  private static Encoding encodingOf(String model) {
+    for (Model known : Model.values()) {
+      if (known.getModelName().equals(model)) {
+        return known.getEncoding();
+      }
+    }
+    return Encoding.O200K_BASE;
+  }
+
+  private static Map<String, Object> success() {
+    Map<String, Object> response = new LinkedHashMap<>();
+    response.put("success", true);
+    response.put("code", 0);
+    response.put("message", "");
+    return response;
+  }
+
+  private void sendJson(HttpExchange exchange, int status, Object response) throws IOException {
+    byte[] bytes = mapper.writeValueAsBytes(response);
+    exchange.getResponseHeaders().set("Content-Type", "application/json");
+    exchange.sendResponseHeaders(status, bytes.length);
+    exchange.getResponseBody().write(bytes);
+  }
+
+  private void sleep(Latency delay) {
+    long ms = delay.sampleMs(random);
+    if (ms <= 0) {
+      return;
+    }
+    try {
+      TimeUnit.MILLISECONDS.sleep(ms);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  /** Replies from a script, in order, then from a template once the script runs out. */
+  private static final class ScriptedResponder implements Responder {
+    private final Deque<String> script;
+    private final String template;
+    private final AtomicInteger turn = new AtomicInteger();
+
+    private ScriptedResponder(List<String> script, String template) {
+      this.script = new ArrayDeque<>(script);
+      this.template = template;
+    }
+
+    @Override
+    public String reply(List<ChatMessage> messages, String model) {
+      int number = turn.incrementAndGet();
+      synchronized (script) {
+        if (!script.isEmpty()) {
+          return script.poll();
+        }
+      }
+      String user = "";
+      for (int i = messages.size() - 1; i >= 0; i--) {
+        if ("user".equals(messages.get(i).getRole()) && messages.get(i).getContent() != null) {
+          user = messages.get(i).getContent();
+          break;
+        }
+      }
+      return template
+          .replace("{user}", user)
+          .replace("{model}", model == null ? "local" : model)
+          .replace("{turn}", Integer.toString(number));
+    }
+  }
+
+  /** Running totals kept by the server. */
+  public static final class Usage {
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLong chatRequests = new AtomicLong();
+    private final AtomicLong speechRequests = new AtomicLong();
+    private final AtomicLong errors = new AtomicLong();
+    private final AtomicLong rateLimited = new AtomicLong();
+    private final AtomicLong promptTokens = new AtomicLong();
+    private final AtomicLong cachedTokens = new AtomicLong();
+    private final AtomicLong completionTokens = new AtomicLong();
+    private final AtomicLong speechCharacters = new AtomicLong();
+
+    private Usage() {}
+
+    public long getRequests() {
+      return requests.get();
+    }
+
+    public long getChatRequests() {
+      return chatRequests.get();
+    }
+
+    public long getSpeechRequests() {
+      return speechRequests.get();
+    }
+
+    public long getErrors() {
+      return errors.get();
+    }
+
+    public long getRateLimited() {
+      return rateLimited.get();
+    }
+
+    public long getPromptTokens() {
+      return promptTokens.get();
+    }
+
+    public long getCachedTokens() {
+      return cachedTokens.get();
+    }
+
+    public long getCompletionTokens() {
+      return completionTokens.get();
+    }
+
+    public long getSpeechCharacters() {
+      return speechCharacters.get();
+    }
+
+    @Override
+    public String toString() {
+      return requests.get()
+          + " requests ("
+          + chatRequests.get()
+          + " chat, "
+          + speechRequests.get()
+          + " speech, "
+          + errors.get()
+          + " errors and "
+          + rateLimited.get()
+          + " rate limited injected), "
+          + promptTokens.get()
+          + " prompt tokens of which "
+          + cachedTokens.get()
+          + " cached, "
+          + completionTokens.get()
+          + " completion tokens, "
+          + speechCharacters.get()
+          + " characters spoken";
+    }
+  }
+
+  /** Configures a {@link LocalProxyServer}. */
+  public static final class Builder {
+    private int port = 0;
+    private Long seed = null;
+    private Latency latency = Latency.none();
+    private Latency chunkDelay = Latency.none();
+    private double errorRate = 0;
+    private double rateLimitRate = 0;
+    private int retryAfterSeconds = 0;
+    private Responder responder = null;
+    private final List<String> script = new ArrayList<>();
+    private String template = "This is a local reply to: {user}";
+
+    private Builder() {}
+
+    /**
+     * Sets the port to listen on.
+     *
+     * @param port the port, or 0 for any free port
+     * @return this builder
+     */
+    public Builder port(int port) {
+      this.port = port;
+      return this;
+    }
+
+    /**
+     * Seeds the generator behind latency and random faults, so a run can be repeated.
+     *
+     * @param seed the seed
+     * @return this builder
+     */
+    public Builder seed(long seed) {
+      this.seed = seed;
+      return this;
+    }
+
+    /**
+     * Sets how long each request waits before it is answered.
+     *
+     * @param latency the delay before the response starts
+     * @return this builder
+     */
+    public Builder latency(Latency latency) {
+      this.latency = latency;
+      return this;
+    }
+
+    /**
+     * Sets the delay between the pieces of a streamed reply.
+     *
+     * @param chunkDelay the delay before each piece
+     * @return this builder
+     */
+    public Builder chunkDelay(Latency chunkDelay) {
+      this.chunkDelay = chunkDelay;
+      return this;
+    }
+
+    /**
+     * Sets the fraction of requests answered with HTTP 503.
+     *
+     * @param errorRate between 0 and 1
+     * @return this builder
+     */
+    public Builder errorRate(double errorRate) {
+      this.errorRate = checkRate("errorRate", errorRate);
+      return this;
+    }
+
+    /**
+     * Sets the fraction of requests answered with HTTP 429.
+     *
+     * @param rateLimitRate between 0 and 1
+     * @return this builder
+     */
+    public Builder rateLimitRate(double rateLimitRate) {
+      this.rateLimitRate = checkRate("rateLimitRate", rateLimitRate);
+      return this;
+    }
+
+    /**
+     * Sets the {@code Retry-After} sent with a 429.
+     *
+     * @param retryAfterSeconds the wait the client is asked for
+     * @return this builder
+     */
+    public Builder retryAfterSeconds(int retryAfterSeconds) {
+      this.retryAfterSeconds = retryAfterSeconds;
+      return this;
+    }
+
+    /**
+     * Adds replies given to the next chat requests, in order, before the template is used.
+     *
+     * @param replies the replies
+     * @return this builder
+     */
+    public Builder script(String... replies) {
+      script.addAll(List.of(replies));
+      return this;
+    }
+
+    /**
+     * Sets the reply used once the script runs out. {@code {user}} is replaced with the latest user
+     * message, {@code {model}} with the model and {@code {turn}} with the request number.
+     *
+     * @param template the reply template
+     * @return this builder
+     */
+    public Builder template(String template) {
+      this.template = template;
+      return this;
+    }
+
+    /**
+     * Replaces the script and template with custom replies.
+     *
+     * @param responder writes each reply
+     * @return this builder
+     */
+    public Builder responder(Responder responder) {
+      this.responder = responder;
+      return this;
+    }
+
+    /**
+     * Starts the server.
+     *
+     * @return the running server
+     * @throws IOException if the port cannot be bound
+     */
+    public LocalProxyServer start() throws IOException {
+      if (errorRate + rateLimitRate > 1) {
+        throw new IllegalArgumentException("errorRate and rateLimitRate add up to more than 1");
+      }
+      return new LocalProxyServer(this);
+    }
+
+    private static double checkRate(String name, double rate) {
+      if (rate < 0 || rate > 1) {
+        throw new IllegalArgumentException(
+            "'" + name + "' must be between 0 and 1 inclusive, but was given " + rate);
+      }
+      return rate;
+    }
+  }
+}
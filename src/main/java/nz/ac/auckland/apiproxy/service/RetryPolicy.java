@@ -0,0 +1,132 @@
+package nz.ac.auckland.apiproxy.service;
+
+import java.io.IOException;
+import java.net.http.HttpConnectTimeoutException;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.net.http.HttpTimeoutException;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Decides which proxy failures are worth retrying and how long to wait between attempts. Only
+ * failures that cannot have produced a reply are retried: I/O errors, timeouts and the 429, 502,
+ * 503 and 504 statuses. A POST that timed out waiting for its response is not retried, since the
+ * proxy may still be generating the reply and each attempt could wait out the whole read timeout
+ * again. Delays use exponential backoff with full jitter so clients that failed together do not
+ * retry together.
+ *
+ * <p>Configured with the {@code apiproxy.retry.maxAttempts} (default 3), {@code
+ * apiproxy.retry.baseDelayMs} (default 250) and {@code apiproxy.retry.maxDelayMs} (default 4000)
+ * system properties.
+ */
+public final class RetryPolicy {
+
+  /**
+   * Creates the policy described by the system properties.
+   *
+   * @return the configured policy
+   */
+  public static RetryPolicy fromSystemProperties() {
+    return new RetryPolicy(
+        Integer.getInteger("apiproxy.retry.maxAttempts", 3),
+        Long.getLong("apiproxy.retry.baseDelayMs", 250),
+        Long.getLong("apiproxy.retry.maxDelayMs", 4_000));
+  }
+
+  private final int maxAttempts;
+  private final long baseDelayMs;
+  private final long maxDelayMs;
+
+  /**
+   * Creates a policy.
+   *
+   * @param maxAttempts the total number of attempts, including the first
+   * @param baseDelayMs the backoff ceiling after the first failure
+   * @param maxDelayMs the largest delay ever waited
+   */
+  public RetryPolicy(int maxAttempts, long baseDelayMs, long maxDelayMs) {
+    if (maxAttempts < 1) {
+      throw new IllegalArgumentException("maxAttempts must be at least 1, but was " + maxAttempts);
+    }
+    this.maxAttempts = maxAttempts;
+    this.baseDelayMs = baseDelayMs;
+    this.maxDelayMs = maxDelayMs;
+  }
+
+  public int getMaxAttempts() {
+    return maxAttempts;
+  }
+
+  /**
+   * Returns whether a response status means the proxy or its upstream is temporarily unable to
+   * answer.
+   *
+   * @param status the HTTP status code
+   * @return true if the same request may succeed later
+   */
+  public boolean isRetryable(int status) {
+    return status == 429 || status == 502 || status == 503 || status == 504;
+  }
+
+  /**
+   * Returns whether a transport failure of the given request is worth retrying. Read timeouts are
+   * only retried for requests without side effects.
+   *
+   * @param request the request that failed
+   * @param error the failure, possibly wrapped by a future
+   * @return true if the same request may succeed later
+   */
+  public boolean isRetryable(HttpRequest request, Throwable error) {
+    Throwable cause = unwrap(error);
+    if (cause instanceof HttpTimeoutException && !(cause instanceof HttpConnectTimeoutException)) {
+      return "GET".equals(request.method()) || "HEAD".equals(request.method());
+    }
+    return cause instanceof IOException;
+  }
+
+  /**
+   * Returns whether a failure is only the call being cancelled, for example a hedge that lost or a
+   * turn the player abandoned. Such a call says nothing about the proxy's health.
+   *
+   * @param error the failure, possibly wrapped by a future
+   * @return true if the call was cancelled
+   */
+  public static boolean isCancellation(Throwable error) {
+    return unwrap(error) instanceof CancellationException;
+  }
+
+  private static Throwable unwrap(Throwable error) {
+    Throwable cause = error;
+    while ((cause instanceof CompletionException || cause instanceof ExecutionException)
+        && cause.getCause() != null) {
+      cause = cause.getCause();
+    }
+    return cause;
+  }
+
+  /**
+   * Returns how long to wait before the next attempt.
+   *
+   * @param attempt the attempt that just failed, starting at 1
+   * @param response the failed response, or null if none arrived
+   * @return the delay in milliseconds
+   */
+  public long delayMs(int attempt, HttpResponse<?> response) {
+    // Honour a server-supplied Retry-After (in seconds) when it is within our limit
+    if (response != null) {
+      String retryAfter = response.headers().firstValue("Retry-After").orElse(null);
+      if (retryAfter != null) {
+        try {
+          return Math.min(maxDelayMs, Math.max(0, Long.parseLong(retryAfter.trim()) * 1000));
+        } catch (NumberFormatException e) {
+          // An HTTP date; fall back to our own backoff
+        }
+      }
+    }
+    long ceiling = Math.min(maxDelayMs, baseDelayMs << Math.min(attempt - 1, 20));
+    return ThreadLocalRandom.current().nextLong(ceiling + 1);
+  }
+}
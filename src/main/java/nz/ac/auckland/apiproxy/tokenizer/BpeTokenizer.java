@@ -0,0 +1,348 @@
+package nz.ac.auckland.apiproxy.tokenizer;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Matcher;
+
+/**
+ * Byte-pair encoding tokenizer compatible with OpenAI's tiktoken vocabularies, so prompt sizes can
+ * be known before a request is sent. Vocabularies are loaded once from the classpath into a single
+ * byte pool with an open-addressing index, so looking up a byte sequence never allocates.
+ *
+ * <p>If an encoding's vocabulary is not on the classpath, {@link #get(Encoding)} returns null and
+ * callers fall back to {@link #estimateWithoutVocabulary(String)}.
+ */
+public final class BpeTokenizer {
+
+  // Each encoding is loaded once; an empty value records a vocabulary that is unavailable
+  private static final Map<Encoding, Optional<BpeTokenizer>> loaded = new ConcurrentHashMap<>();
+
+  /**
+   * Returns the tokenizer for an encoding, loading its vocabulary on first use. Only callers that
+   * arrive while an encoding is loading wait for it; afterwards this never blocks.
+   *
+   * @param encoding the encoding to load
+   * @return the tokenizer, or null if the vocabulary is unavailable
+   */
+  public static BpeTokenizer get(Encoding encoding) {
+    Optional<BpeTokenizer> tokenizer = loaded.get(encoding);
+    if (tokenizer == null) {
+      tokenizer = loaded.computeIfAbsent(encoding, BpeTokenizer::load);
+    }
+    return tokenizer.orElse(null);
+  }
+
+  private static Optional<BpeTokenizer> load(Encoding encoding) {
+    try (InputStream in = BpeTokenizer.class.getResourceAsStream(encoding.getResourcePath())) {
+      if (in == null) {
+        throw new IOException("resource " + encoding.getResourcePath() + " not found");
+      }
+      return Optional.of(new BpeTokenizer(encoding, in));
+    } catch (IOException | RuntimeException e) {
+      System.err.println(
+          "Token counts for " + encoding.getEncodingName() + " are estimates: " + e.getMessage());
+      return Optional.empty();
+    }
+  }
+
+  /**
+   * Counts tokens with the given encoding, or estimates them if its vocabulary is unavailable.
+   *
+   * @param encoding the encoding to use
+   * @param text the text to measure
+   * @return the token count
+   */
+  public static int countTokens(Encoding encoding, String text) {
+    BpeTokenizer tokenizer = get(encoding);
+    return tokenizer == null ? estimateWithoutVocabulary(text) : tokenizer.countTokens(text);
+  }
+
+  /**
+   * Estimates a token count at roughly four characters per token, as a fallback.
+   *
+   * @param text the text to measure
+   * @return the estimated token count
+   */
+  public static int estimateWithoutVocabulary(String text) {
+    return text == null ? 0 : (text.length() + 3) / 4;
+  }
+
+  private final Encoding encoding;
+
+  // Token bytes for every rank, stored back to back
+  private final byte[] pool;
+  private final int[] offsets;
+  private final int[] lengths;
+
+  // Open-addressing index from byte sequence to rank + 1 (0 marks an empty slot)
+  private final int[] slots;
+  private final int mask;
+
+  private BpeTokenizer(Encoding encoding, InputStream vocabulary) throws IOException {
+    this.encoding = encoding;
+
+    byte[] bytes = new byte[1 << 21];
+    int used = 0;
+    int[] tokenOffsets = new int[1 << 18];
+    int[] tokenLengths = new int[1 << 18];
+    int maxRank = -1;
+
+    Base64.Decoder decoder = Base64.getDecoder();
+    BufferedReader reader =
+        new BufferedReader(new InputStreamReader(vocabulary, StandardCharsets.US_ASCII));
+    String line;
+    while ((line = reader.readLine()) != null) {
+      int space = line.indexOf(' ');
+      if (space <= 0) {
+        continue;
+      }
+      byte[] token = decoder.decode(line.substring(0, space));
+      int rank = Integer.parseInt(line.substring(space + 1).trim());
+      if (rank >= tokenOffsets.length) {
+        int size = Math.max(rank + 1, tokenOffsets.length * 2);
+        tokenOffsets = Arrays.copyOf(tokenOffsets, size);
+        tokenLengths = Arrays.copyOf(tokenLengths, size);
+      }
+      if (used + token.length > bytes.length) {
+        bytes = Arrays.copyOf(bytes, Math.max(used + token.length, bytes.length * 2));
+      }
+      System.arraycopy(token, 0, bytes, used, token.length);
+      tokenOffsets[rank] = used;
+      tokenLengths[rank] = token.length;
+      used += token.length;
+      maxRank = Math.max(maxRank, rank);
+    }
+
+    pool = Arrays.copyOf(bytes, used);
+    offsets = Arrays.copyOf(tokenOffsets, maxRank + 1);
+    lengths = Arrays.copyOf(tokenLengths, maxRank + 1);
+
+    // Keep the index at most half full so probe chains stay short
+    int capacity = Integer.highestOneBit(Math.max(16, (maxRank + 1) * 2)) << 1;
+    slots = new int[capacity];
+    mask = capacity - 1;
+    for (int rank = 0; rank <= maxRank; rank++) {
+      if (lengths[rank] == 0) {
+        continue; // A gap in the ranks
+      }
+      int slot = hash(pool, offsets[rank], lengths[rank]) & mask;
+      while (slots[slot] != 0) {
+        slot = (slot + 1) & mask;
+      }
+      slots[slot] = rank + 1;
+    }
+  }
+
+  public Encoding getEncoding() {
+    return encoding;
+  }
+
+  /**
+   * Returns the number of vocabulary entries.
+   *
+   * @return the vocabulary size
+   */
+  public int getVocabularySize() {
+    return offsets.length;
+  }
+
+  /**
+   * Counts the tokens in a piece of text without building the token list.
+   *
+   * @param text the text to measure
+   * @return the token count
+   */
+  public int countTokens(String text) {
+    if (text == null || text.isEmpty()) {
+      return 0;
+    }
+    Scratch scratch = new Scratch();
+    Matcher matcher = encoding.getPattern().matcher(text);
+    int count = 0;
+    while (matcher.find()) {
+      int length = scratch.encodeUtf8(text, matcher.start(), matcher.end());
+      count += merge(scratch, length);
+    }
+    return count;
+  }
+
+  /**
+   * Encodes a piece of text into token ranks.
+   *
+   * @param text the text to encode
+   * @return the tokens, in order
+   */
+  public int[] encode(String text) {
+    if (text == null || text.isEmpty()) {
+      return new int[0];
+    }
+    Scratch scratch = new Scratch();
+    int[] tokens = new int[Math.max(16, text.length() / 3)];
+    int count = 0;
+    Matcher matcher = encoding.getPattern().matcher(text);
+    while (matcher.find()) {
+      int length = scratch.encodeUtf8(text, matcher.start(), matcher.end());
+      int parts = merge(scratch, length);
+      if (count + parts > tokens.length) {
+        tokens = Arrays.copyOf(tokens, Math.max(count + parts, tokens.length * 2));
+      }
+      for (int i = 0; i < parts; i++) {
+        int start = scratch.positions[i];
+        tokens[count++] = rank(scratch.bytes, start, scratch.positions[i + 1] - start);
+      }
+    }
+    return Arrays.copyOf(tokens, count);
+  }
+
+  /**
+   * Decodes token ranks back into text.
+   *
+   * @param tokens the tokens to decode
+   * @return the text
+   */
+  public String decode(int[] tokens) {
+    int size = 0;
+    for (int token : tokens) {
+      size += lengths[token];
+    }
+    byte[] bytes = new byte[size];
+    int position = 0;
+    for (int token : tokens) {
+      System.arraycopy(pool, offsets[token], bytes, position, lengths[token]);
+      position += lengths[token];
+    }
+    return new String(bytes, StandardCharsets.UTF_8);
+  }
+
+  /**
+   * Merges the bytes of one piece pairwise, always merging the lowest-ranked adjacent pair first,
+   * until no pair is in the vocabulary. Leaves the part boundaries in {@code scratch.positions}.
+   *
+   * @return the number of tokens the piece encodes to
+   */
+  private int merge(Scratch scratch, int length) {
+    byte[] bytes = scratch.bytes;
+    int[] positions = scratch.positions;
+    if (rank(bytes, 0, length) >= 0) {
+      positions[0] = 0;
+      positions[1] = length;
+      return 1; // Most words are a single token
+    }
+
+    // ranks[i] is the rank of the bytes spanning parts i and i + 1
+    int[] ranks = scratch.ranks;
+    int parts = length;
+    for (int i = 0; i <= length; i++) {
+      positions[i] = i;
+    }
+    for (int i = 0; i < parts; i++) {
+      ranks[i] = i + 2 <= length ? rank(bytes, i, 2) : -1;
+    }
+
+    while (parts > 1) {
+      int best = -1;
+      int bestRank = Integer.MAX_VALUE;
+      for (int i = 0; i < parts - 1; i++) {
+        if (ranks[i] >= 0 && ranks[i] < bestRank) {
+          bestRank = ranks[i];
+          best = i;
+        }
+      }
+      if (best < 0) {
+        break;
+      }
+
+      // Remove the boundary between parts best and best + 1
+      System.arraycopy(positions, best + 2, positions, best + 1, parts - best - 1);
+      System.arraycopy(ranks, best + 2, ranks, best + 1, Math.max(0, parts - best - 2));
+      parts--;
+      ranks[best] = pairRank(bytes, positions, best, parts);
+      if (best > 0) {
+        ranks[best - 1] = pairRank(bytes, positions, best - 1, parts);
+      }
+    }
+    return parts;
+  }
+
+  private int pairRank(byte[] bytes, int[] positions, int part, int parts) {
+    if (part + 2 > parts) {
+      return -1;
+    }
+    int start = positions[part];
+    return rank(bytes, start, positions[part + 2] - start);
+  }
+
+  private int rank(byte[] bytes, int offset, int length) {
+    int slot = hash(bytes, offset, length) & mask;
+    int entry;
+    while ((entry = slots[slot]) != 0) {
+      int rank = entry - 1;
+      if (lengths[rank] == length
+          && Arrays.equals(
+              pool, offsets[rank], offsets[rank] + length, bytes, offset, offset + length)) {
+        return rank;
+      }
+      slot = (slot + 1) & mask;
+    }
+    return -1;
+  }
+
+  private static int hash(byte[] bytes, int offset, int length) {
+    int h = 0x811c9dc5; // FNV-1a
+    for (int i = offset; i < offset + length; i++) {
+      h = (h ^ (bytes[i] & 0xff)) * 0x01000193;
+    }
+    return h ^ (h >>> 16);
+  }
+
+  /** Buffers reused across the pieces of one call. */
+  private static final class Scratch {
+    private byte[] bytes = new byte[64];
+    private int[] positions = new int[65];
+    private int[] ranks = new int[65];
+
+    /** Writes the UTF-8 bytes of {@code text[start, end)} into {@link #bytes}. */
+    private int encodeUtf8(String text, int start, int end) {
+      int needed = (end - start) * 3;
+      if (needed > bytes.length) {
+        bytes = new byte[needed];
+        positions = new int[needed + 1];
+        ranks = new int[needed + 1];
+      }
+      int length = 0;
+      for (int i = start; i < end; i++) {
+        char c = text.charAt(i);
+        if (c < 0x80) {
+          bytes[length++] = (byte) c;
+        } else if (c < 0x800) {
+          bytes[length++] = (byte) (0xc0 | (c >> 6));
+          bytes[length++] = (byte) (0x80 | (c & 0x3f));
+        } else if (Character.isHighSurrogate(c)
+            && i + 1 < end
+            && Character.isLowSurrogate(text.charAt(i + 1))) {
+          int codePoint = Character.toCodePoint(c, text.charAt(++i));
+          bytes[length++] = (byte) (0xf0 | (codePoint >> 18));
+          bytes[length++] = (byte) (0x80 | ((codePoint >> 12) & 0x3f));
+          bytes[length++] = (byte) (0x80 | ((codePoint >> 6) & 0x3f));
+          bytes[length++] = (byte) (0x80 | (codePoint & 0x3f));
+        } else {
+          if (Character.isSurrogate(c)) {
+            c = '\uFFFD'; // Unpaired surrogate, encoded as the replacement character
+          }
+          bytes[length++] = (byte) (0xe0 | (c >> 12));
+          bytes[length++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+          bytes[length++] = (byte) (0x80 | (c & 0x3f));
+        }
+      }
+      return length;
+    }
+  }
+}
@@ -0,0 +1,48 @@
+package nz.ac.auckland.apiproxy.tokenizer;
+
+import java.util.regex.Pattern;
+
+/**
+ * The byte-pair encodings used by OpenAI models. Each one is a vocabulary file in tiktoken format
+ * ({@code base64-token rank} per line) on the classpath under {@code /tokenizers/}, plus the
+ * regular expression that splits text into pieces before merging.
+ */
+public enum Encoding {
+  CL100K_BASE(
+      "cl100k_base",
+      "(?i:'s|'t|'re|'ve|'m|'ll|'d)|[^\\r\\n\\p{L}\\p{N}]?\\p{L}+|\\p{N}{1,3}"
+          + "| ?[^\\s\\p{L}\\p{N}]+[\\r\\n]*|\\s*[\\r\\n]+|\\s+(?!\\S)|\\s+"),
+  O200K_BASE(
+      "o200k_base",
+      "[^\\r\\n\\p{L}\\p{N}]?[\\p{Lu}\\p{Lt}\\p{Lm}\\p{Lo}\\p{M}]*"
+          + "[\\p{Ll}\\p{Lm}\\p{Lo}\\p{M}]+(?i:'s|'t|'re|'ve|'m|'ll|'d)?"
+          + "|[^\\r\\n\\p{L}\\p{N}]?[\\p{Lu}\\p{Lt}\\p{Lm}\\p{Lo}\\p{M}]+"
+          + "[\\p{Ll}\\p{Lm}\\p{Lo}\\p{M}]*(?i:'s|'t|'re|'ve|'m|'ll|'d)?"
+          + "|\\p{N}{1,3}| ?[^\\s\\p{L}\\p{N}]+[\\r\\n/]*|\\s*[\\r\\n]+|\\s+(?!\\S)|\\s+");
+
+  private final String encodingName;
+  private final Pattern pattern;
+
+  Encoding(String encodingName, String regex) {
+    this.encodingName = encodingName;
+    // Unicode classes so \s matches the same whitespace as the reference implementation
+    this.pattern = Pattern.compile(regex, Pattern.UNICODE_CHARACTER_CLASS);
+  }
+
+  public String getEncodingName() {
+    return encodingName;
+  }
+
+  /**
+   * Returns the classpath location of this encoding's vocabulary.
+   *
+   * @return the resource path
+   */
+  public String getResourcePath() {
+    return "/tokenizers/" + encodingName + ".tiktoken";
+  }
+
+  Pattern getPattern() {
+    return pattern;
+  }
+}
@@ -1,16 +1,17 @@
 package nz.ac.auckland.apiproxy.tts;
 
-import com.fasterxml.jackson.databind.ObjectMapper;
+import java.io.IOException;
+import java.net.http.HttpRequest;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import javax.json.Json;
 import javax.json.JsonObject;
 import javax.json.JsonObjectBuilder;
 import nz.ac.auckland.apiproxy.config.ApiProxyConfig;
 import nz.ac.auckland.apiproxy.exceptions.ApiProxyException;
 import nz.ac.auckland.apiproxy.service.EndPoints;
-import org.apache.http.client.methods.HttpPost;
-import org.apache.http.entity.StringEntity;
-import org.apache.http.impl.client.CloseableHttpClient;
-import org.apache.http.impl.client.HttpClients;
+import nz.ac.auckland.apiproxy.service.HttpTransport;
 
 public class TextToSpeechRequest {
 
@@ -117,11 +118,32 @@ public class TextToSpeechRequest {
     return this;
   }
 
-  @SuppressWarnings("resource")
+  /**
+   * Executes the request and blocks until the audio URL arrives. This is a thin wrapper around
+   * {@link #executeAsync()}.
+   *
+   * @return the speech result
+   * @throws ApiProxyException if the request is invalid or fails
+   */
   public TextToSpeechResult execute() throws ApiProxyException {
+    try {
+      return executeAsync().join();
+    } catch (CompletionException | CancellationException e) {
+      throw HttpTransport.toApiProxyException(e);
+    }
+  }
+
+  /**
+   * Executes the request without blocking the calling thread.
+   *
+   * @return a future completing with the result, or exceptionally with an {@link
+   *     ApiProxyException}
+   */
+  public CompletableFuture<TextToSpeechResult> executeAsync() {
 
     if (isEmpty(text)) {
-      throw new ApiProxyException("The text is missing or empty.");
+      return CompletableFuture.failedFuture(
+          new ApiProxyException("The text is missing or empty."));
     }
 
     if (provider == null) {
@@ -136,52 +158,53 @@ public class TextToSpeechRequest {
     String providerName = provider.name();
     String voiceName = voice.name();
     if (!voiceName.startsWith(providerName)) {
-      throw new ApiProxyException(
-          "The voice '"
-              + voiceName
-              + "' is not supported by the provider '"
-              + providerName
-              + "'. Please choose a different voice starting with '"
-              + providerName
-              + "_xxx'.");
+      return CompletableFuture.failedFuture(
+          new ApiProxyException(
+              "The voice '"
+                  + voiceName
+                  + "' is not supported by the provider '"
+                  + providerName
+                  + "'. Please choose a different voice starting with '"
+                  + providerName
+                  + "_xxx'."));
     }
 
-    try {
-      JsonObjectBuilder jsonOverallBuilder =
-          Json.createObjectBuilder() //
-              .add("provider", provider.getProviderCode()) //
-              .add("text", text);
-
-      jsonOverallBuilder.add("voice", voice.getVoiceCode());
-      jsonOverallBuilder.add("access_token", config.getApiKey()).add("email", config.getEmail());
-
-      CloseableHttpClient client = HttpClients.createDefault();
-
-      ResponseTtsViaProxy responseTts = null;
-      JsonObject value = jsonOverallBuilder.build();
-
-      HttpPost httpPost = new HttpPost(EndPoints.PROXY_TEXT_TO_SPEECH);
-      httpPost.setHeader("Content-Type", "application/json");
-      httpPost.setHeader("Accept", "application/json");
-      httpPost.setEntity(new StringEntity(value.toString()));
-      ObjectMapper mapperApiMapper = new ObjectMapper();
-
-      responseTts =
-          (ResponseTtsViaProxy)
-              client.execute(
-                  httpPost,
-                  httpResponse ->
-                      mapperApiMapper.readValue(
-                          httpResponse.getEntity().getContent(), ResponseTtsViaProxy.class));
-
-      if (!responseTts.success && responseTts.code != 0) {
-        throw new ApiProxyException("Problem calling API: " + responseTts.message);
-      }
-      return new TextToSpeechResult(responseTts.audio);
-
-    } catch (Exception e) {
-      throw new ApiProxyException("Problem calling API: " + e.getMessage());
-    }
+    JsonObjectBuilder jsonOverallBuilder =
+        Json.createObjectBuilder() //
+            .add("provider", provider.getProviderCode()) //
+            .add("text", text);
+
+    jsonOverallBuilder.add("voice", voice.getVoiceCode());
+    jsonOverallBuilder.add("access_token", config.getApiKey()).add("email", config.getEmail());
+
+    HttpTransport transport = HttpTransport.getInstance();
+    JsonObject value = jsonOverallBuilder.build();
+    HttpRequest request =
+        transport.newJsonPost(EndPoints.getTextToSpeech(), value.toString(), "application/json");
+
+    return transport
+        .sendAsync(request)
+        .thenApply(
+            response -> {
+              ResponseTtsViaProxy responseTts;
+              try {
+                responseTts =
+                    transport.readerFor(ResponseTtsViaProxy.class).readValue(response.body());
+              } catch (IOException e) {
+                throw new CompletionException(
+                    new ApiProxyException(
+                        "Problem calling API: HTTP "
+                            + response.statusCode()
+                            + " with unreadable body: "
+                            + e.getMessage(),
+                        e));
+              }
+              if (!responseTts.success && responseTts.code != 0) {
+                throw new CompletionException(
+                    new ApiProxyException("Problem calling API: " + responseTts.message));
+              }
+              return new TextToSpeechResult(responseTts.audio);
+            });
   }
 
   private boolean isEmpty(String text) {
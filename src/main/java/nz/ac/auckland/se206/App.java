@@ -10,9 +10,22 @@ import javafx.scene.Parent;
 import javafx.scene.Scene;
 import javafx.scene.input.MouseEvent;
 import javafx.stage.Stage;
+import nz.ac.auckland.apiproxy.chat.openai.HedgeMetrics;
+import nz.ac.auckland.apiproxy.service.EndPoints;
+import nz.ac.auckland.apiproxy.service.HttpTransport;
+import nz.ac.auckland.apiproxy.service.LocalProxyServer;
+import nz.ac.auckland.apiproxy.tokenizer.BpeTokenizer;
+import nz.ac.auckland.apiproxy.tokenizer.Encoding;
 import nz.ac.auckland.se206.controllers.DefendantMemoryMechanismController;
+import nz.ac.auckland.se206.controllers.HumanWitnessController;
 import nz.ac.auckland.se206.controllers.RoomController;
+import nz.ac.auckland.se206.controllers.VerdictController;
+import nz.ac.auckland.se206.services.ConversationStore;
+import nz.ac.auckland.se206.services.IntroPrefetcher;
+import nz.ac.auckland.se206.services.TaskService;
+import nz.ac.auckland.se206.services.TaskService.TaskClass;
 import nz.ac.auckland.se206.services.TimerService;
+import nz.ac.auckland.se206.services.TranscriptLog;
 
 /**
  * This is the entry point of the JavaFX application. This class initializes and runs the JavaFX
@@ -21,6 +34,7 @@ import nz.ac.auckland.se206.services.TimerService;
 public class App extends Application {
   private static Scene scene;
   private static GameStateContext globalContext;
+  private static LocalProxyServer localProxy;
 
   public static GameStateContext getContext() {
     if (globalContext == null) {
@@ -51,6 +65,8 @@ public class App extends Application {
    */
   public static void setRoot(String fxml) throws IOException {
     System.out.println("App.setRoot called with: " + fxml);
+    // Work the old scene queued but never started is dropped; the new controllers get a new scope
+    TaskService.getInstance().openSceneScope(fxml);
     FXMLLoader loader = new FXMLLoader(App.class.getResource("/fxml/" + fxml + ".fxml"));
     Parent root = loader.load();
 
@@ -86,6 +102,7 @@ public class App extends Application {
       return;
     }
 
+    TaskService.getInstance().openSceneScope("defendantMemoryMechanism");
     FXMLLoader loader =
         new FXMLLoader(
             App.class.getResource("src/main/resources/fxml/defendantMemoryMechanism.fxml"));
@@ -99,6 +116,20 @@ public class App extends Application {
     scene.getProperties().put("controller", chat);
   }
 
+  /**
+   * Starts generating every character's introduction in the background, so each chat can show its
+   * introduction as soon as it is first opened. Introductions left over from a previous game are
+   * discarded first.
+   */
+  public static void prefetchIntros() {
+    IntroPrefetcher prefetcher = IntroPrefetcher.getInstance();
+    prefetcher.discardAll();
+    prefetcher.prefetch(
+        ConversationStore.AI_DEFENDANT, DefendantMemoryMechanismController::createIntroRequest);
+    prefetcher.prefetch(
+        ConversationStore.HUMAN_WITNESS, HumanWitnessController::createIntroRequest);
+  }
+
   /**
    * This method is invoked when the application starts. It loads and shows the "room" scene.
    *
@@ -110,10 +141,30 @@ public class App extends Application {
     // Initialize the global context FIRST
     globalContext = new GameStateContext();
 
+    // Play against an embedded stand-in for the proxy, e.g. offline or to test slow replies
+    if (Boolean.getBoolean("apiproxy.local")) {
+      localProxy = LocalProxyServer.fromSystemProperties().start();
+      EndPoints.setBaseUrl(localProxy.getBaseUrl());
+      System.out.println("Using the local proxy at " + localProxy.getBaseUrl());
+    }
+
+    // Open the proxy connection while the room loads so the first reply skips the handshake
+    HttpTransport.getInstance().prewarm();
+
+    // Load the tokenizer vocabulary in the background so the first prompt is not delayed by it
+    TaskService.getInstance()
+        .getAppScope()
+        .run(TaskClass.BACKGROUND, () -> BpeTokenizer.get(Encoding.O200K_BASE));
+
     // Clear chat histories at the start of the game
     DefendantMemoryMechanismController.clearAllChatHistories();
     nz.ac.auckland.se206.controllers.AiWitnessMemoryController.clearChatHistory();
 
+    // Generate the introductions while the player looks around the room
+    prefetchIntros();
+    VerdictController.prefetchPrompt();
+
+    TaskService.getInstance().openSceneScope("room");
     FXMLLoader loader = new FXMLLoader(App.class.getResource("/fxml/room.fxml"));
     Parent root = loader.load();
 
@@ -154,12 +205,23 @@ public class App extends Application {
 
   @Override
   public void stop() throws Exception {
-    // Delete the chat history when the program exits. To do: add other chat history files.
+    // Delete the reveal state when the program exits
     try {
-      Files.deleteIfExists(Paths.get("target/humanWitness_chatHistory.txt"));
       Files.deleteIfExists(Paths.get("se206/humanWitness_revealComment.txt"));
     } catch (IOException e) {
       e.printStackTrace();
     }
+    // Report hedging so the threshold and backup spend can be tuned
+    System.out.println("Hedging (completions): " + HedgeMetrics.getCompletionMetrics());
+    System.out.println("Hedging (streams): " + HedgeMetrics.getStreamMetrics());
+    System.out.println("Intro prefetch: " + IntroPrefetcher.getInstance());
+    System.out.println("Background tasks: " + TaskService.getInstance());
+    HttpTransport.shutdown();
+    if (localProxy != null) {
+      System.out.println("Local proxy: " + localProxy.getUsage());
+      localProxy.close();
+    }
+    TranscriptLog.shutdown();
+    TaskService.shutdown();
   }
 }
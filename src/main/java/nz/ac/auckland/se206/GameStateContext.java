@@ -2,9 +2,6 @@ package nz.ac.auckland.se206;
 
 import java.io.IOException;
 import java.io.InputStream;
-import java.nio.file.Files;
-import java.nio.file.Path;
-import java.nio.file.Paths;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
@@ -13,6 +10,7 @@ import java.util.Random;
 import java.util.Set;
 import javafx.scene.input.MouseEvent;
 import nz.ac.auckland.se206.model.Participant;
+import nz.ac.auckland.se206.services.ConversationStore;
 import nz.ac.auckland.se206.states.GameOver;
 import nz.ac.auckland.se206.states.GameStarted;
 import nz.ac.auckland.se206.states.GameState;
@@ -277,73 +275,15 @@ public class GameStateContext {
   }
 
   /**
-   * Checks if all three participants have been asked questions by examining their chat history
-   * files.
+   * Checks if all three participants have been asked questions, using the conversations recorded
+   * in {@link ConversationStore}.
    *
    * @return true if all participants (AI-Defendant, HumanWitness, aiwitness) have been questioned
    */
   public boolean areAllParticipantsQuestioned() {
-    return hasUserQuestionDefendant()
-        && hasUserQuestionHumanWitness()
-        && hasUserQuestionAiWitness();
-  }
-
-  /**
-   * Checks if the AI-Defendant has been asked a question by looking for "user:" messages in their
-   * chat history.
-   *
-   * @return true if target/chat_history_AI-Defendant.txt contains at least one "user:" message
-   */
-  private boolean hasUserQuestionDefendant() {
-    try {
-      Path filePath = Paths.get("target/chat_history_AI-Defendant.txt"); // Corrected filename
-      if (!Files.exists(filePath)) {
-        return false; // File doesn't exist
-      }
-      List<String> lines = Files.readAllLines(filePath);
-      return lines.stream().anyMatch(line -> line.startsWith("user:")); // Check for "user:" prefix
-    } catch (Exception e) {
-      return false; // In case of any error, assume no questions have been asked
-    }
-  }
-
-  /**
-   * Checks if the Human Witness has been asked a question by looking for "[You]" messages in their
-   * chat history.
-   *
-   * @return true if target/humanWitness_chatHistory.txt contains at least one "[You]" message
-   */
-  private boolean hasUserQuestionHumanWitness() {
-    try {
-      // Checking for the human witness chat history file.
-      Path filePath = Paths.get("target/humanWitness_chatHistory.txt");
-      if (!Files.exists(filePath)) {
-        return false;
-      }
-      List<String> lines = Files.readAllLines(filePath);
-      return lines.stream().anyMatch(line -> line.contains("[You]"));
-    } catch (Exception e) {
-      return false; // In case of any error, assume no questions have been asked
-    }
-  }
-
-  /**
-   * Checks if the AI Witness has been asked a question by looking for "user:" messages in their
-   * chat history.
-   *
-   * @return true if target/chat_history_aiwitness.txt contains at least one "user:" message
-   */
-  private boolean hasUserQuestionAiWitness() {
-    // Checking if AI witness chat history file exists
-    try {
-      Path filePath = Paths.get("target/chat_history_aiwitness.txt");
-      if (!Files.exists(filePath)) {
-        return false;
-      }
-      List<String> lines = Files.readAllLines(filePath);
-      return lines.stream().anyMatch(line -> line.startsWith("user:")); // Check for "user:" prefix
-    } catch (Exception e) {
-      return false; // In case of any error, assume no questions have been asked
-    }
+    ConversationStore store = ConversationStore.getInstance();
+    return store.hasUserQuestioned(ConversationStore.AI_DEFENDANT)
+        && store.hasUserQuestioned(ConversationStore.HUMAN_WITNESS)
+        && store.hasUserQuestioned(ConversationStore.AI_WITNESS);
   }
 }
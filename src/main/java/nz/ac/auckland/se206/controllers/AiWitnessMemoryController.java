@@ -1,16 +1,8 @@
 package nz.ac.auckland.se206.controllers;
 
 import java.io.IOException;
-import java.nio.charset.StandardCharsets;
-import java.nio.file.Files;
-import java.nio.file.Paths;
-import java.util.ArrayList;
 import java.util.HashMap;
-import java.util.List;
 import java.util.Map;
-import java.util.concurrent.CompletableFuture;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 import javafx.animation.KeyFrame;
 import javafx.animation.Timeline;
 import javafx.application.Platform;
@@ -35,12 +27,15 @@ import javafx.scene.text.Text;
 import javafx.scene.text.TextFlow;
 import javafx.util.Duration;
 import nz.ac.auckland.apiproxy.chat.openai.ChatCompletionRequest;
-import nz.ac.auckland.apiproxy.chat.openai.ChatCompletionResult;
 import nz.ac.auckland.apiproxy.chat.openai.ChatMessage;
-import nz.ac.auckland.apiproxy.chat.openai.Choice;
 import nz.ac.auckland.apiproxy.config.ApiProxyConfig;
 import nz.ac.auckland.apiproxy.exceptions.ApiProxyException;
 import nz.ac.auckland.se206.App;
+import nz.ac.auckland.se206.prompts.TemplateRegistry;
+import nz.ac.auckland.se206.services.ConversationService;
+import nz.ac.auckland.se206.services.ConversationStore;
+import nz.ac.auckland.se206.services.ScriptedResponses;
+import nz.ac.auckland.se206.services.SummaryService;
 import nz.ac.auckland.se206.services.TimerService;
 import nz.ac.auckland.se206.utils.ChatHistoryUtil;
 
@@ -50,14 +45,13 @@ import nz.ac.auckland.se206.utils.ChatHistoryUtil;
  */
 public class AiWitnessMemoryController {
 
+  private static final String FILE_OPENED = "fileOpened";
+
   /** Static method to clear chat history for new game starts */
   public static void clearChatHistory() {
-    try {
-      Files.deleteIfExists(Paths.get("target/chat_history_aiwitness.txt"));
-      System.out.println("AI witness chat history cleared");
-    } catch (IOException e) {
-      System.err.println("Failed to clear AI witness chat history: " + e.getMessage());
-    }
+    ConversationStore.getInstance().clear(ConversationStore.AI_WITNESS);
+    ConversationService.getInstance().discard(ConversationStore.AI_WITNESS);
+    System.out.println("AI witness chat history cleared");
   }
 
   @FXML private TreeView<String> fileTreeView;
@@ -74,34 +68,71 @@ public class AiWitnessMemoryController {
 
   private Map<String, String> fileContents;
   private TreeItem<String> rootItem;
-  private String archiverPrompt;
-  private ExecutorService executorService;
-  private ChatCompletionRequest chatCompletionRequest;
+  private ConversationService.Session session;
   private String currentlyViewedFile = null;
   private String currentlyViewedContent = null;
   private HBox typingIndicator = null; // Track the typing indicator bubble
-  private List<ChatMessage> chatHistory = new ArrayList<>(); // Store chat history for persistence
   private boolean chatInitialized = false; // Track if chat has been initialized before
   private boolean isFirstRoomVisit = true; // Will be set based on chat history existence
 
+  // Shows the session's replies in chat bubbles while this scene is on screen
+  private final ConversationService.ChatView chatView =
+      new ConversationService.ChatView() {
+        private Text replyText;
+
+        @Override
+        public void onThinking() {
+          showTypingIndicator();
+        }
+
+        @Override
+        public void onReplyDelta(String delta, boolean first) {
+          if (first || replyText == null) {
+            hideTypingIndicator(); // First token replaces the typing indicator
+            replyText = addChatBubble("", false);
+          }
+          replyText.setText(replyText.getText() + delta);
+          scrollToBottom();
+        }
+
+        @Override
+        public void onReply(ChatMessage reply) {
+          if (replyText == null) {
+            // The reply was not streamed here
+            hideTypingIndicator();
+            appendChatMessage(reply);
+          }
+          replyText = null;
+          System.out.println("GPT Response: " + reply.getContent());
+        }
+
+        @Override
+        public void onReplyFailed(Exception error) {
+          replyText = null;
+          hideTypingIndicator();
+          String errorMsg = ConversationService.describeFailure("The AI witness", error);
+          appendChatMessage(new ChatMessage("assistant", errorMsg));
+        }
+      };
+
   // Public methods
 
   @FXML
   public void initialize() {
-    // Create executor service with daemon thread to prevent blocking JVM shutdown
-    executorService =
-        Executors.newSingleThreadExecutor(
-            r -> {
-              Thread t = new Thread(r, "ai-witness-chat");
-              t.setDaemon(true);
-              return t;
-            });
-    loadArchiverPrompt();
-    initializeChatRequest();
+    ScriptedResponses.getInstance()
+        .register(
+            ConversationStore.AI_WITNESS,
+            FILE_OPENED,
+            "You've clicked on the file '{file}'. This is part of the defendant AI's archived data."
+                + " What would you like to know about this file or its contents?");
+    initializeSession();
     setupFileSystem();
     configureEventHandlers(); // Updated method name
     loadChatHistory(); // Load chat history before initializing chat
     initializeChat();
+    if (session != null) {
+      session.attach(chatView); // Pick up any reply still on its way
+    }
 
     // Fix the timer binding - don't create a new context
     if (timerLabel != null) {
@@ -116,27 +147,42 @@ public class AiWitnessMemoryController {
     }
   }
 
-  private void loadArchiverPrompt() {
+  private static String loadArchiverPrompt() {
     try {
-      archiverPrompt =
-          Files.readString(
-              Paths.get("src/main/resources/prompts/archiver.txt"), StandardCharsets.UTF_8);
-    } catch (IOException e) {
-      archiverPrompt = "You are an AI Archiver. Keep responses short and concise.";
+      return TemplateRegistry.getInstance().getText("archiver.txt");
+    } catch (IllegalArgumentException e) {
+      return "You are an AI Archiver. Keep responses short and concise.";
     }
   }
 
-  private void initializeChatRequest() {
+  private static ChatCompletionRequest createSessionRequest() throws ApiProxyException {
+    ChatCompletionRequest request =
+        new ChatCompletionRequest(ApiProxyConfig.readConfig())
+            .setModel(ChatCompletionRequest.Model.GPT_4_1_MINI)
+            .setMaxTokens(100)
+            .setTemperature(0.7)
+            .setTopP(0.5)
+            .setHedged(true) // Race slow replies against a faster model
+            .setHedgeModel(ChatCompletionRequest.Model.GPT_4_1_NANO);
+
+    // Add system prompt
+    request.addMessage(new ChatMessage("system", loadArchiverPrompt()));
+    ChatHistoryUtil.pinContextPreamble(request, ConversationStore.AI_WITNESS);
+    // Add the conversation so far for AI context
+    for (ChatMessage msg :
+        ConversationStore.getInstance().getMessages(ConversationStore.AI_WITNESS)) {
+      request.addMessage(msg);
+    }
+    return request;
+  }
+
+  private void initializeSession() {
     try {
-      chatCompletionRequest =
-          new ChatCompletionRequest(ApiProxyConfig.readConfig())
-              .setModel(ChatCompletionRequest.Model.GPT_4_1_MINI)
-              .setMaxTokens(100)
-              .setTemperature(0.7)
-              .setTopP(0.5);
-
-      // Add system prompt
-      chatCompletionRequest.addMessage(new ChatMessage("system", archiverPrompt));
+      // The session outlives this scene, so a reply still on its way is not lost
+      session =
+          ConversationService.getInstance()
+              .getSession(
+                  ConversationStore.AI_WITNESS, AiWitnessMemoryController::createSessionRequest);
     } catch (ApiProxyException e) {
       System.err.println("Failed to initialize chat: " + e.getMessage());
     }
@@ -434,8 +480,10 @@ public class AiWitnessMemoryController {
               "Hello, I am the AI Archive Manager responsible for data logging and file management"
                   + " for CreativeSynth Inc. You can ask me about the defendant's digital records"
                   + " or browse the files yourself.");
-      chatCompletionRequest.addMessage(introMessage);
-      chatHistory.add(introMessage);
+      if (session != null) {
+        session.getRequest().addMessage(introMessage);
+      }
+      ConversationStore.getInstance().append(ConversationStore.AI_WITNESS, introMessage);
       chatInitialized = true;
     } else {
       // Restore previous chat messages to the UI
@@ -443,50 +491,13 @@ public class AiWitnessMemoryController {
     }
   }
 
-  private void saveChatHistory() {
-    // Saves the current chat history to a text file for persistence. Formats each message as
-    // "role:content" and writes to target/chat_history_aiwitness.txt.
-    StringBuilder sb = new StringBuilder();
-    for (ChatMessage msg : chatHistory) {
-      sb.append(msg.getRole()).append(": ").append(msg.getContent()).append("\n");
-    }
-    try {
-      Files.write(
-          // writes it to the chat_history_aiwitness.txts
-          Paths.get("target/chat_history_aiwitness.txt"),
-          sb.toString().getBytes(StandardCharsets.UTF_8));
-    } catch (IOException e) {
-      System.err.println("Failed to save AI witness chat history: " + e.getMessage());
-    }
-  }
-
   private void loadChatHistory() {
-    chatHistory.clear();
-    String filename = "target/chat_history_aiwitness.txt";
-    try {
-      List<String> lines = Files.readAllLines(Paths.get(filename), StandardCharsets.UTF_8);
-      if (!lines.isEmpty()) {
-        // Chat history exists and has content, so this is not the first visit
-        isFirstRoomVisit = false;
-      }
-      for (String line : lines) {
-        // Simple parsing: "role: message"
-        int sep = line.indexOf(": ");
-        if (sep > 0) {
-          String role = line.substring(0, sep);
-          String content = line.substring(sep + 2);
-          ChatMessage msg = new ChatMessage(role, content);
-          chatHistory.add(msg);
-          // Add to chat request for AI context
-          chatCompletionRequest.addMessage(msg);
-        }
-      }
-      if (!chatHistory.isEmpty()) {
-        chatInitialized = true;
-      }
-    } catch (IOException e) {
-      // File doesn't exist or can't be read - this means it's the first visit
-      isFirstRoomVisit = true;
+    // The conversation recorded in the store carries on from where the player left it
+    isFirstRoomVisit =
+        ConversationStore.getInstance().getMessages(ConversationStore.AI_WITNESS).isEmpty();
+    if (!isFirstRoomVisit) {
+      chatInitialized = true;
+    } else {
       System.out.println("No existing AI witness chat history found, starting fresh");
     }
   }
@@ -494,15 +505,17 @@ public class AiWitnessMemoryController {
   private void restoreChatBubbles() {
     // Clear existing chat bubbles and restore from history
     chatContainer.getChildren().clear();
-    for (ChatMessage msg : chatHistory) {
+    for (ChatMessage msg :
+        ConversationStore.getInstance().getMessages(ConversationStore.AI_WITNESS)) {
       boolean isUser = "user".equals(msg.getRole());
       addChatBubble(msg.getContent(), isUser);
     }
   }
 
-  private void addChatBubble(String message, boolean isUser) {
+  private Text addChatBubble(String message, boolean isUser) {
     HBox messageContainer = new HBox();
     messageContainer.setPadding(new Insets(5, 10, 5, 10));
+    VBox bubble;
 
     if (isUser) {
       // User message - align right with blue bubble
@@ -512,13 +525,13 @@ public class AiWitnessMemoryController {
       Region spacer = new Region();
       HBox.setHgrow(spacer, Priority.ALWAYS);
 
-      VBox bubble = buildMessageBubble(message, "#0084ff", "white", true);
+      bubble = buildMessageBubble(message, "#0084ff", "white", true);
       messageContainer.getChildren().addAll(spacer, bubble);
     } else {
       // AI message - align left with gray bubble
       messageContainer.setAlignment(Pos.CENTER_LEFT);
 
-      VBox bubble = buildMessageBubble(message, "#f1f3f4", "#333333", false);
+      bubble = buildMessageBubble(message, "#f1f3f4", "#333333", false);
 
       // Create spacer to limit bubble width
       Region spacer = new Region();
@@ -531,6 +544,9 @@ public class AiWitnessMemoryController {
 
     // Auto-scroll to bottom with a delay to ensure the message is rendered
     Platform.runLater(() -> scrollToBottom());
+
+    // The bubble keeps its text node so streamed replies can grow in place
+    return (Text) bubble.getUserData();
   }
 
   private VBox buildMessageBubble(
@@ -560,6 +576,7 @@ public class AiWitnessMemoryController {
     textFlow.setPrefWidth(180); // Increased text flow width
 
     bubble.getChildren().add(textFlow);
+    bubble.setUserData(text);
 
     return bubble;
   }
@@ -661,12 +678,13 @@ public class AiWitnessMemoryController {
 
       ChatMessage userMessage = new ChatMessage("user", query);
       appendChatMessage(userMessage);
-      chatHistory.add(userMessage);
-      showTypingIndicator();
+      ConversationStore.getInstance().append(ConversationStore.AI_WITNESS, userMessage);
 
       // Debug output for message handling
       System.out.println("User message: " + query);
-      runGptAsync(userMessage);
+      if (session != null) {
+        session.send(userMessage, describeViewedFile()); // the view shows the typing indicator
+      }
     }
   }
 
@@ -680,173 +698,35 @@ public class AiWitnessMemoryController {
     addChatBubble(msg.getContent(), isUser);
   }
 
-  private void runGptAsync(ChatMessage msg) {
-    System.out.println("Sending to GPT: " + msg.getContent()); // Debug output
-    CompletableFuture.supplyAsync(
-        () -> {
-          try {
-            return runGpt(msg); // Call the synchronous method
-          } catch (ApiProxyException e) {
-            System.err.println("GPT Error: " + e.getMessage()); // Log the error
-            Platform.runLater(() -> hideTypingIndicator()); // Ensure typing indicator is hidden
-            return null;
-          }
-        },
-        executorService);
-  }
-
-  private ChatMessage runGpt(ChatMessage msg) throws ApiProxyException {
-    // Create an enhanced message that includes context about what the user is currently viewing
-    String enhancedMessage;
-
+  /** Describes the file the user is looking at, which changes every turn so is sent only once. */
+  private String describeViewedFile() {
     if (currentlyViewedFile != null && currentlyViewedContent != null) {
-      enhancedMessage =
-          msg.getContent()
-              + "\n\n[CONTEXT: User is currently viewing file '"
-              + currentlyViewedFile
-              + "' which contains: "
-              + currentlyViewedContent.substring(0, Math.min(200, currentlyViewedContent.length()))
-              + (currentlyViewedContent.length() > 200 ? "..." : "")
-              + "]";
-    } else {
-      enhancedMessage =
-          msg.getContent() + "\n\n[CONTEXT: User is not currently viewing any specific file]";
-    }
-
-    // Add context from other conversations if this is a user message
-    if ("user".equals(msg.getRole())) {
-      String otherHistories = ChatHistoryUtil.getOtherChatHistories("AI-Witness");
-      if (!otherHistories.isEmpty()) {
-        enhancedMessage +=
-            "\n\n"
-                + "[CONVERSATION HISTORY REFERENCE: The user has spoken to other participants. When"
-                + " asked 'what did I say to [PARTICIPANT]', find the exact conversation section"
-                + " with that participant and look for messages starting with 'USER (to"
-                + " PARTICIPANT):'. Do NOT mix up different participants' conversations. Each is"
-                + " clearly separated.\n\n"
-                + otherHistories
-                + "CRITICAL: If asked about what the user said to a specific participant, ONLY look"
-                + " in that participant's conversation section. Do not reference other"
-                + " participants' conversations when answering about a specific one.]";
-      }
-    }
-
-    ChatMessage contextualMessage = new ChatMessage(msg.getRole(), enhancedMessage);
-
-    chatCompletionRequest.addMessage(contextualMessage);
-    try {
-      ChatCompletionResult chatCompletionResult = chatCompletionRequest.execute();
-
-      Iterable<Choice> choices = chatCompletionResult.getChoices();
-      if (!choices.iterator().hasNext()) {
-        String errorMsg = "[error] No response from AI (no choices returned).";
-        System.err.println(errorMsg);
-        Platform.runLater(
-            () -> {
-              hideTypingIndicator();
-              appendChatMessage(new ChatMessage("assistant", errorMsg));
-            });
-        return null;
-      }
-
-      Choice result = choices.iterator().next();
-      ChatMessage reply = result.getChatMessage();
-
-      if (reply == null || reply.getContent() == null || reply.getContent().trim().isEmpty()) {
-        String errorMsg = "[error] AI returned an empty message.";
-        System.err.println(errorMsg);
-        Platform.runLater(
-            () -> {
-              hideTypingIndicator();
-              appendChatMessage(new ChatMessage("assistant", errorMsg));
-            });
-        return null;
-      }
-
-      // Add the reply to the chat completion request for context
-      chatCompletionRequest.addMessage(reply);
-
-      // Add to chat history for persistence
-      chatHistory.add(reply);
-
-      // Update UI on FX thread
-      Platform.runLater(
-          () -> {
-            hideTypingIndicator(); // Remove typing indicator before showing response
-            appendChatMessage(reply);
-          });
-
-      System.out.println("GPT Response: " + reply.getContent());
-      return reply;
-
-    } catch (ApiProxyException e) {
-      e.printStackTrace();
-      String errorMsg = "[error] API Exception: " + e.getMessage();
-      Platform.runLater(
-          () -> {
-            hideTypingIndicator();
-            appendChatMessage(new ChatMessage("assistant", errorMsg));
-          });
-      throw e;
-    } catch (Exception e) {
-      e.printStackTrace();
-      String errorMsg = "[error] Unexpected Exception: " + e.getMessage();
-      Platform.runLater(
-          () -> {
-            hideTypingIndicator();
-            appendChatMessage(new ChatMessage("assistant", errorMsg));
-          });
-      return null;
+      return "[CONTEXT: User is currently viewing file '"
+          + currentlyViewedFile
+          + "' which contains: "
+          + currentlyViewedContent.substring(0, Math.min(200, currentlyViewedContent.length()))
+          + (currentlyViewedContent.length() > 200 ? "..." : "")
+          + "]";
     }
+    return "[CONTEXT: User is not currently viewing any specific file]";
   }
 
   /** Sends an automatic descriptive message about the file the user clicked for the first time. */
   private void sendAutomaticFileDescription(String fileName) {
-    String automaticMessage =
-        "You've clicked on the file '"
-            + fileName
-            + "'. This is part of the defendant AI's archived data. What would you like to know"
-            + " about this file or its contents?";
-
-    // Create and send the automatic message as if it came from the system
-    ChatMessage automaticChatMessage = new ChatMessage("assistant", automaticMessage);
-
-    // Add to chat display immediately
-    Platform.runLater(
-        () -> {
-          appendChatMessage(automaticChatMessage);
-        });
-
-    // Add to chat history and request context for future messages
-    chatHistory.add(automaticChatMessage);
-    chatCompletionRequest.addMessage(automaticChatMessage);
+    // Recorded as the witness's own turn and shown by the session after any reply on its way
+    ScriptedResponses.getInstance()
+        .say(session, ConversationStore.AI_WITNESS, FILE_OPENED, Map.of("file", fileName));
   }
 
   @FXML
   private void onGoBack(ActionEvent event) throws IOException {
     System.out.println("AiWitnessMemoryController: onGoBack called");
-    // Save chat history before leaving
-    saveChatHistory();
-    // Clean up executor service before leaving
-    shuttingDownResources(); // Updated method name
+    SummaryService.getInstance().schedule(ConversationStore.AI_WITNESS);
+    if (session != null) {
+      session.detach(chatView);
+    }
     // Return to previous scene
     System.out.println("AiWitnessMemoryController: Calling App.setRoot('room')");
     App.setRoot("room");
   }
-
-  /** Shuts down executor service and releases resources */
-  private void shuttingDownResources() {
-    if (executorService != null && !executorService.isShutdown()) {
-      executorService.shutdown();
-      try {
-        // Wait a bit for tasks to complete
-        if (!executorService.awaitTermination(1, java.util.concurrent.TimeUnit.SECONDS)) {
-          executorService.shutdownNow();
-        }
-      } catch (InterruptedException e) {
-        executorService.shutdownNow();
-        Thread.currentThread().interrupt();
-      }
-    }
-  }
 }
@@ -1,17 +1,8 @@
 package nz.ac.auckland.se206.controllers;
 
 import java.io.IOException;
-import java.nio.charset.StandardCharsets;
-import java.nio.file.Files;
-import java.nio.file.Paths;
-import java.util.ArrayList;
 import java.util.HashMap;
-import java.util.List;
 import java.util.Map;
-import java.util.concurrent.CompletableFuture;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import javafx.application.Platform;
 import javafx.event.ActionEvent;
 import javafx.fxml.FXML;
 import javafx.scene.Node;
@@ -24,13 +15,16 @@ import javafx.scene.image.Image;
 import javafx.scene.image.ImageView;
 import javafx.util.Callback;
 import nz.ac.auckland.apiproxy.chat.openai.ChatCompletionRequest;
-import nz.ac.auckland.apiproxy.chat.openai.ChatCompletionResult;
 import nz.ac.auckland.apiproxy.chat.openai.ChatMessage;
-import nz.ac.auckland.apiproxy.chat.openai.Choice;
 import nz.ac.auckland.apiproxy.config.ApiProxyConfig;
 import nz.ac.auckland.apiproxy.exceptions.ApiProxyException;
 import nz.ac.auckland.se206.App;
 import nz.ac.auckland.se206.prompts.PromptEngineering;
+import nz.ac.auckland.se206.services.ConversationService;
+import nz.ac.auckland.se206.services.ConversationStore;
+import nz.ac.auckland.se206.services.IntroPrefetcher;
+import nz.ac.auckland.se206.services.ScriptedResponses;
+import nz.ac.auckland.se206.services.SummaryService;
 import nz.ac.auckland.se206.services.TimerService;
 import nz.ac.auckland.se206.utils.ChatHistoryUtil;
 
@@ -39,22 +33,83 @@ public class DefendantMemoryMechanismController {
   // static fields
   private static boolean introSent = false;
 
+  private static final String LOGO_FOUND = "logoFound";
+  private static final String INTRO_PROMPT =
+      "Introduce yourself as Logo Novo, an AI on trial for copying a logo. Tell the user to"
+          + " look around the room for clues. Keep this to 1 sentence. ";
+
   // static methods
   public static void toggleIntroSentFalse() {
     introSent = false;
   }
 
+  /**
+   * Builds the request for the defendant's introduction, exactly as the chat would send it, so it
+   * can be generated ahead of time by {@link IntroPrefetcher}. The request is the same every game,
+   * so later games reuse the cached introduction.
+   *
+   * @return the request, ending with the introduction prompt
+   * @throws ApiProxyException if the proxy configuration cannot be read
+   */
+  public static ChatCompletionRequest createIntroRequest() throws ApiProxyException {
+    ChatCompletionRequest request = newChatRequest().setCacheable(true);
+    request.addMessage(new ChatMessage("system", getSystemPrompt()));
+    request.addMessage(new ChatMessage("system", ChatHistoryUtil.CONTEXT_PREAMBLE));
+    request.addMessage(new ChatMessage("system", INTRO_PROMPT));
+    return request;
+  }
+
+  private static ChatCompletionRequest newChatRequest() throws ApiProxyException {
+    return new ChatCompletionRequest(ApiProxyConfig.readConfig())
+        .setModel(ChatCompletionRequest.Model.GPT_4_1_MINI)
+        .setMaxTokens(200)
+        .setTemperature(0.7)
+        .setTopP(1.0)
+        .setN(1) // Always 1 response
+        .setHedged(true) // Race slow replies against a faster model
+        .setHedgeModel(ChatCompletionRequest.Model.GPT_4_1_NANO);
+  }
+
+  /**
+   * Retrieves the system prompt from the defendant.txt file.
+   *
+   * @return the system prompt
+   */
+  private static String getSystemPrompt() {
+    Map<String, String> map = new HashMap<>();
+    return PromptEngineering.getPrompt("defendant.txt", map);
+  }
+
+  /**
+   * Builds the request a participant's chat session starts from: the system prompt, then the
+   * conversation so far.
+   *
+   * @param profession who the chat is with
+   * @return the primed request
+   * @throws ApiProxyException if the proxy configuration cannot be read
+   */
+  private static ChatCompletionRequest createSessionRequest(String profession)
+      throws ApiProxyException {
+    ChatCompletionRequest request = newChatRequest();
+    String sys;
+    try {
+      sys = getSystemPrompt(); // Load system prompt from file
+    } catch (Exception ex) {
+      ex.printStackTrace();
+      sys = "You are " + profession + " in 'The Trial of AI-Defendant'. Stay in role."; // Fallback
+    }
+    request.addMessage(new ChatMessage("system", sys)); // Add system prompt
+    ChatHistoryUtil.pinContextPreamble(request, profession);
+    for (ChatMessage previous : ConversationStore.getInstance().getMessages(profession)) {
+      request.addMessage(previous);
+    }
+    return request;
+  }
+
   /** Clears all chat histories for the predefined participants. */
   public static void clearAllChatHistories() {
-    String[] participants = {"AI-Defendant", "GREGOR", "K2"};
-    for (String participant : participants) {
-      String filename = "target/chat_history_" + participant + ".txt";
-      try {
-        Files.deleteIfExists(Paths.get(filename));
-      } catch (IOException e) {
-        // Ignore if file doesn't exist
-      }
-    }
+    ConversationStore.getInstance().clear();
+    ConversationService.getInstance().reset();
     introSent = false;
   }
 
@@ -80,19 +135,57 @@ public class DefendantMemoryMechanismController {
   @FXML private Button btnBack;
 
   // instance fields
-  private ChatCompletionRequest chatCompletionRequest;
+  private ConversationService.Session session;
   private String profession;
-  private List<ChatMessage> chatHistory = new ArrayList<>();
   private boolean logoFound = false;
 
-  // Single-threaded pool for network I/O
-  private final ExecutorService chatPool =
-      Executors.newSingleThreadExecutor(
-          r -> {
-            Thread t = new Thread(r, "chat-io");
-            t.setDaemon(true);
-            return t;
-          });
+  // Shows the session's replies while this scene is on screen
+  private final ConversationService.ChatView chatView =
+      new ConversationService.ChatView() {
+        private boolean streaming;
+
+        @Override
+        public void onThinking() {
+          txtChat.appendText("Logo Nova is thinking...\n");
+          updateInputDisabled();
+        }
+
+        @Override
+        public void onReplyDelta(String delta, boolean first) {
+          if (first) {
+            streaming = true;
+            removeThinkingMessage();
+            txtChat.appendText("Logo Nova: ");
+          }
+          txtChat.appendText(delta);
+        }
+
+        @Override
+        public void onReply(ChatMessage reply) {
+          if (streaming) {
+            streaming = false;
+            txtChat.appendText("\n\n"); // Finish the streamed reply
+          } else {
+            // The reply was not streamed here, e.g. a prefetched introduction
+            removeThinkingMessage();
+            txtChat.appendText("Logo Nova: " + reply.getContent() + "\n\n");
+          }
+          txtChat.positionCaret(txtChat.getLength());
+          updateInputDisabled();
+        }
+
+        @Override
+        public void onReplyFailed(Exception error) {
+          if (streaming) {
+            txtChat.appendText("\n\n"); // Finish what streamed in before the failure
+          }
+          streaming = false;
+          removeThinkingMessage();
+          txtChat.appendText(ConversationService.describeFailure("Logo Nova", error) + "\n\n");
+          txtChat.positionCaret(txtChat.getLength());
+          updateInputDisabled();
+        }
+      };
 
   // public methods
   /**
@@ -101,34 +194,26 @@ public class DefendantMemoryMechanismController {
    * @param profession the profession to set
    */
   public void setProfession(String who) {
-    this.profession =
+    String participant =
         (who != null && !who.isEmpty()) ? who : "AI-Defendant"; // Default to "AI-Defendant"
+    if (session != null) {
+      session.detach(chatView);
+    }
     try {
-      chatCompletionRequest =
-          new ChatCompletionRequest(ApiProxyConfig.readConfig())
-              .setModel(ChatCompletionRequest.Model.GPT_4_1_MINI)
-              .setMaxTokens(200)
-              .setTemperature(0.7)
-              .setTopP(1.0)
-              .setN(1); // Always 1 response
-    } catch (Exception e) {
+      // The session outlives this scene, so a reply still on its way is shown when it lands
+      session =
+          ConversationService.getInstance()
+              .getSession(participant, () -> createSessionRequest(participant));
+    } catch (ApiProxyException e) {
       e.printStackTrace();
       return;
     }
-    String sys;
-    try {
-      sys = getSystemPrompt(); // Load system prompt from file
-    } catch (Exception ex) {
-      ex.printStackTrace();
-      sys =
-          "You are "
-              + this.profession
-              + " in 'The Trial of AI-Defendant'. Stay in role."; // Fallback
-    }
-    chatCompletionRequest.addMessage(new ChatMessage("system", sys)); // Add system prompt
+    this.profession = participant;
 
-    // Load previous chat history if it exists
+    // Load previous chat history if it exists, then pick up any reply still on its way
     loadChatHistory();
+    session.attach(chatView);
+    updateInputDisabled();
   }
 
   /** Clears all chat content from the chat display area. */
@@ -152,19 +237,19 @@ public class DefendantMemoryMechanismController {
           .bind(TimerService.getInstance(App.getContext()).timeLeftTextBinding());
     }
 
+    ScriptedResponses.getInstance()
+        .register(
+            ConversationStore.AI_DEFENDANT,
+            LOGO_FOUND,
+            "You've found the website I was on! That's where I found the logo.");
     createPagination();
     setProfession("AI-Defendant");
 
     // Only run the intro sequence the very first time
-    if (!introSent) {
+    if (!introSent && session != null) {
       introSent = true;
-      showThinkingMessage();
-      ChatMessage introMsg =
-          new ChatMessage(
-              "system",
-              "Introduce yourself as Logo Novo, an AI on trial for copying a logo. Tell the user to"
-                  + " look around the room for clues. Keep this to 1 sentence. ");
-      runGptAsync(introMsg);
+      ChatMessage introMsg = new ChatMessage("system", INTRO_PROMPT);
+      session.adopt(introMsg, IntroPrefetcher.getInstance().take(ConversationStore.AI_DEFENDANT));
     }
   }
 
@@ -210,77 +295,35 @@ public class DefendantMemoryMechanismController {
   }
 
   /**
-   * Notifies the AI that the user has discovered the logo evidence. Sends a system message to
-   * trigger the appropriate AI response when evidence is found.
+   * Tells the player they have found the logo evidence. The line never changes, so it is recorded
+   * as the defendant's turn rather than asking the model to repeat it, and shown by the session
+   * once any reply still on its way is in. It is always the defendant's line, so it goes in the
+   * defendant's conversation whoever this chat is with.
    */
   public void addImageFound() {
-    // updating the chatgpt, letting it know that the user has found the logo they were looking at.
-    showThinkingMessage();
-    ChatMessage systemUpdate =
-        new ChatMessage(
-            "system",
-            "Say exactly this: You've found the website I was on! That's where I found the logo."
-                + " Keep this to 1 sentence.");
-    chatCompletionRequest.addMessage(systemUpdate);
-    runGptAsync(systemUpdate);
-  }
-
-  // private methods
-  /** Saves the chat history between the user and the AI defendant (Logo Nova) */
-  private void saveChatHistory() {
-    StringBuilder sb = new StringBuilder(); // StringBuilder for efficient string concatenation
-    for (ChatMessage msg : chatHistory) {
-      sb.append(msg.getRole()).append(": ").append(msg.getContent()).append("\n");
-    }
+    ConversationService.Session defendant = null;
     try {
-      Files.write(
-          Paths.get("target/chat_history_" + profession + ".txt"), // filename
-          sb.toString().getBytes(StandardCharsets.UTF_8)); // file contents
-    } catch (IOException e) {
-      e.printStackTrace();
+      defendant =
+          ConversationService.getInstance()
+              .getSession(
+                  ConversationStore.AI_DEFENDANT,
+                  () -> createSessionRequest(ConversationStore.AI_DEFENDANT));
+    } catch (ApiProxyException e) {
+      e.printStackTrace(); // The line is still recorded for when the conversation is rebuilt
     }
+    ScriptedResponses.getInstance()
+        .say(defendant, ConversationStore.AI_DEFENDANT, LOGO_FOUND, null);
   }
 
+  // private methods
   /** Loads the chat history back in for the AI Defendant, if the user had already spoken with it */
   private void loadChatHistory() {
-    chatHistory.clear();
     txtChat.clear();
-    String filename = "target/chat_history_" + profession + ".txt";
-    try {
-      List<String> lines = Files.readAllLines(Paths.get(filename), StandardCharsets.UTF_8);
-      for (String line : lines) {
-        // Simple parsing: "role: message"
-        int sep = line.indexOf(": ");
-        if (sep > 0) {
-          String role = line.substring(0, sep);
-          String content = line.substring(sep + 2);
-          ChatMessage msg = new ChatMessage(role, content);
-          chatHistory.add(msg);
-          txtChat.appendText(role + ": " + content + "\n\n");
-        }
-      }
-    } catch (IOException e) {
-      // No previous chat history, or error reading file; ignore
+    for (ChatMessage msg : ConversationStore.getInstance().getMessages(profession)) {
+      txtChat.appendText(msg.getRole() + ": " + msg.getContent() + "\n\n");
     }
   }
 
-  private void runGptAsync(ChatMessage msg) {
-    CompletableFuture.supplyAsync(
-        () -> {
-          try {
-            return runGpt(msg); // run blocking network call OFF the FX thread
-          } catch (ApiProxyException e) {
-            throw new RuntimeException(e);
-          }
-        },
-        chatPool);
-  }
-
-  private String getSystemPrompt() {
-    Map<String, String> map = new HashMap<>();
-    return PromptEngineering.getPrompt("defendant.txt", map);
-  }
-
   /**
    * Appends a chat message to the chat text area.
    *
@@ -296,66 +339,28 @@ public class DefendantMemoryMechanismController {
     // Use the modified display role for UI text
     txtChat.appendText(displayRole + ": " + msg.getContent() + "\n\n");
     // Still save the original message with correct role for API communication
-    chatHistory.add(msg);
+    ConversationStore.getInstance().append(profession, msg);
   }
 
   /**
-   * Runs the GPT model with a given chat message.
-   *
-   * @param msg the chat message to process
-   * @return the response chat message
-   * @throws ApiProxyException if there is an error communicating with the API proxy
+   * Stops the player sending while a reply is streaming in, so their message never lands in the
+   * middle of it.
    */
-  private ChatMessage runGpt(ChatMessage msg) throws ApiProxyException {
-
-    chatCompletionRequest.addMessage(msg);
-
-    // If this is a user message, enhance it with context from other conversations
-    ChatMessage messageToSend = msg;
-    if ("user".equals(msg.getRole())) {
-      String otherHistories = ChatHistoryUtil.getOtherChatHistories("AI-Defendant");
-      if (!otherHistories.isEmpty()) {
-        String enhancedContent =
-            msg.getContent()
-                + "\n\n"
-                + "[CONVERSATION HISTORY REFERENCE: The user has spoken to other participants. When"
-                + " the user asks 'what did I say to [PARTICIPANT]', look for the exact"
-                + " conversation section with that participant and find messages that start with"
-                + " 'USER (to PARTICIPANT):'. Do NOT mix up conversations between different"
-                + " participants. Each conversation is clearly separated.\n\n"
-                + otherHistories
-                + "IMPORTANT: If asked about what the user said to a specific participant, ONLY"
-                + " look in that participant's conversation section. Do not reference other"
-                + " participants' conversations when answering about a specific one.]";
-        messageToSend = new ChatMessage(msg.getRole(), enhancedContent);
-      }
+  private void updateInputDisabled() {
+    boolean replying = session != null && session.isReplying();
+    boolean reenabled = !replying && txtField.isDisabled();
+    txtField.setDisable(replying);
+    btnSend.setDisable(replying);
+    if (reenabled) {
+      txtField.requestFocus();
     }
+  }
 
-    chatCompletionRequest.addMessage(messageToSend);
-
-    try {
-      ChatCompletionResult chatCompletionResult = chatCompletionRequest.execute();
-      Choice result = chatCompletionResult.getChoices().iterator().next();
-      ChatMessage reply = result.getChatMessage();
-
-      if (reply == null || reply.getContent() == null || reply.getContent().trim().isEmpty()) {
-        return null;
-      }
-      chatCompletionRequest.addMessage(reply);
-      Platform.runLater(
-          () -> {
-            String currentText = txtChat.getText();
-            // Remove *all* "Logo Nova is thinking..." lines, no matter where they are
-            currentText = currentText.replace("Logo Nova is thinking...\n", "");
-            txtChat.setText(currentText);
-            appendChatMessage(reply);
-          });
-      return reply;
-
-    } catch (Exception e) {
-      e.printStackTrace();
-      return null;
-    }
+  /** Removes every "Logo Nova is thinking..." placeholder line from the chat area. */
+  private void removeThinkingMessage() {
+    String currentText = txtChat.getText();
+    txtChat.setText(currentText.replace("Logo Nova is thinking...\n", ""));
+    txtChat.positionCaret(txtChat.getLength());
   }
 
   /**
@@ -368,19 +373,15 @@ public class DefendantMemoryMechanismController {
   @FXML
   private void onSendMessage(ActionEvent event) throws ApiProxyException, IOException {
     String message = txtField.getText().trim();
-    if (message.isEmpty()) {
-      return;
+    if (message.isEmpty() || (session != null && session.isReplying())) {
+      return; // Wait for the reply that is streaming in
     }
     txtField.clear();
     ChatMessage msg = new ChatMessage("user", message);
     appendChatMessage(msg);
-    showThinkingMessage(); // show thinking while GPT replies
-    runGptAsync(msg);
-  }
-
-  private void showThinkingMessage() {
-    // this is what will put the Logo Nova thinking message into the text area.
-    Platform.runLater(() -> txtChat.appendText("Logo Nova is thinking...\n"));
+    if (session != null) {
+      session.send(msg, null); // the view shows thinking while GPT replies
+    }
   }
 
   /**
@@ -393,7 +394,10 @@ public class DefendantMemoryMechanismController {
   @FXML
   private void onGoBack(ActionEvent event) throws ApiProxyException, IOException {
     System.out.println("defendantMemoryMechanismController: onGoBack called");
-    saveChatHistory();
+    SummaryService.getInstance().schedule(profession);
+    if (session != null) {
+      session.detach(chatView);
+    }
     System.out.println("defendantMemoryMechanismController: Calling App.setRoot('room')");
     App.setRoot("room");
   }
@@ -1,17 +1,9 @@
 package nz.ac.auckland.se206.controllers;
 
-import java.io.BufferedReader;
-import java.io.BufferedWriter;
 import java.io.File;
-import java.io.FileReader;
-import java.io.FileWriter;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.InputStreamReader;
-import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Paths;
-import java.util.stream.Collectors;
 import javafx.animation.Animation;
 import javafx.animation.KeyFrame;
 import javafx.animation.KeyValue;
@@ -35,12 +27,16 @@ import javafx.scene.paint.Stop;
 import javafx.util.Duration;
 import nz.ac.auckland.apiproxy.chat.openai.ChatCompletionRequest;
 import nz.ac.auckland.apiproxy.chat.openai.ChatCompletionRequest.Model;
-import nz.ac.auckland.apiproxy.chat.openai.ChatCompletionResult;
 import nz.ac.auckland.apiproxy.chat.openai.ChatMessage;
-import nz.ac.auckland.apiproxy.chat.openai.Choice;
 import nz.ac.auckland.apiproxy.config.ApiProxyConfig;
 import nz.ac.auckland.apiproxy.exceptions.ApiProxyException;
 import nz.ac.auckland.se206.App;
+import nz.ac.auckland.se206.prompts.TemplateRegistry;
+import nz.ac.auckland.se206.services.ConversationService;
+import nz.ac.auckland.se206.services.ConversationStore;
+import nz.ac.auckland.se206.services.IntroPrefetcher;
+import nz.ac.auckland.se206.services.ScriptedResponses;
+import nz.ac.auckland.se206.services.SummaryService;
 import nz.ac.auckland.se206.services.TimerService;
 import nz.ac.auckland.se206.utils.ChatHistoryUtil;
 
@@ -50,22 +46,25 @@ public class HumanWitnessController {
   // these labels must match what you write to the file and the UI
   private static final String DISPLAY_USER = "[You]";
   private static final String DISPLAY_ASSISTANT = "Rentbrand Picosso";
+  private static final String PAINTING_REVEALED = "paintingRevealed";
+  private static final String INTRO_PROMPT =
+      "The player has just started to talk to you for the first time. Give a brief, welcoming"
+          + " introduction as Rentbrand Picosso. Mention that you're the designer whose logo"
+          + " design got stolen, and hint that they can see the design on the paper on your desk."
+          + " Keep it conversational and brief. Don't mention what the design looks like.";
 
   /**
-   * Resets the static state by clearing all chat history and reveal comment files. This method
-   * removes conversation files from both primary (target) and backup (se206) directories to ensure
+   * Resets the static state by clearing the witness's conversation and reveal comment files. This
+   * method removes reveal files from both primary (target) and backup (se206) directories to ensure
    * clean state initialization for new game sessions. Used for game reset functionality and state
    * management.
    */
   public static void resetStaticState() {
-    // Clear the chat history files from the correct locations
+    ConversationStore.getInstance().clear(ConversationStore.HUMAN_WITNESS);
+    ConversationService.getInstance().discard(ConversationStore.HUMAN_WITNESS);
+    // Clear the reveal comment files from the correct locations
     try {
-      // Clear from target directory (where the file is actually saved)
-      Files.deleteIfExists(Paths.get("target/humanWitness_chatHistory.txt"));
       Files.deleteIfExists(Paths.get("target/humanWitness_revealComment.txt"));
-
-      // Clear from se206 directory (backup location)
-      Files.deleteIfExists(Paths.get("se206/humanWitness_chatHistory.txt"));
       Files.deleteIfExists(Paths.get("se206/humanWitness_revealComment.txt"));
 
     } catch (IOException e) {
@@ -73,6 +72,56 @@ public class HumanWitnessController {
     }
   }
 
+  /**
+   * Builds the request for the witness's introduction, exactly as the chat would send it, so it can
+   * be generated ahead of time by {@link IntroPrefetcher}.
+   *
+   * @return the request, ending with the introduction prompt
+   * @throws ApiProxyException if the proxy configuration cannot be read
+   */
+  public static ChatCompletionRequest createIntroRequest() throws ApiProxyException {
+    ChatCompletionRequest request = newChatRequest();
+    request.addMessage(
+        new ChatMessage("system", TemplateRegistry.getInstance().getText(CHAT_PROMPT)));
+    request.addMessage(new ChatMessage("system", ChatHistoryUtil.CONTEXT_PREAMBLE));
+    request.addMessage(new ChatMessage("user", INTRO_PROMPT));
+    return request;
+  }
+
+  /**
+   * Builds the request the witness's chat session starts from: the system prompt, then the
+   * conversation so far.
+   *
+   * @return the primed request
+   * @throws ApiProxyException if the proxy configuration cannot be read
+   */
+  private static ChatCompletionRequest createSessionRequest() throws ApiProxyException {
+    ChatCompletionRequest request = newChatRequest();
+    try {
+      request.addMessage(
+          new ChatMessage("system", TemplateRegistry.getInstance().getText(CHAT_PROMPT)));
+    } catch (IllegalArgumentException e) {
+      e.printStackTrace(); // Carry on without the prompt rather than losing the chat
+    }
+    ChatHistoryUtil.pinContextPreamble(request, ConversationStore.HUMAN_WITNESS);
+    // feed recorded turns back into GPT so it remembers
+    for (ChatMessage previous :
+        ConversationStore.getInstance().getMessages(ConversationStore.HUMAN_WITNESS)) {
+      request.addMessage(previous);
+    }
+    return request;
+  }
+
+  private static ChatCompletionRequest newChatRequest() throws ApiProxyException {
+    return new ChatCompletionRequest(ApiProxyConfig.readConfig())
+        .setN(1)
+        .setTemperature(1)
+        .setModel(Model.GPT_4_1_MINI)
+        .setMaxTokens(200)
+        .setHedged(true) // Race slow replies against a faster model
+        .setHedgeModel(Model.GPT_4_1_NANO);
+  }
+
   @FXML private ImageView imgHumanWitnessMainMenu;
   @FXML private Label timerLabel;
 
@@ -88,49 +137,91 @@ public class HumanWitnessController {
   private double revealStep = 0.05; // decrease opacity by 5% each click
   private Timeline shimmerTimeline;
 
-  private ChatCompletionRequest chatCompletionRequest;
-  private File chatHistory;
-
-  // Track whether we already injected system prompt and history
-  private boolean primed = false;
+  private ConversationService.Session session;
   private boolean hasExistingChat = false;
 
+  // Shows the session's replies while this scene is on screen, shimmering until the first token
+  private final ConversationService.ChatView chatView =
+      new ConversationService.ChatView() {
+        private boolean streaming;
+
+        @Override
+        public void onThinking() {
+          startShimmer();
+          updateInputDisabled();
+        }
+
+        @Override
+        public void onReplyDelta(String delta, boolean first) {
+          if (first) {
+            streaming = true;
+            stopShimmer();
+            txtaChat.appendText(DISPLAY_ASSISTANT + ": ");
+          }
+          txtaChat.appendText(delta);
+        }
+
+        @Override
+        public void onReply(ChatMessage reply) {
+          if (streaming) {
+            streaming = false;
+            txtaChat.appendText("\n\n");
+          } else {
+            // The reply was not streamed here, e.g. a prefetched introduction
+            txtaChat.appendText(DISPLAY_ASSISTANT + ": " + reply.getContent() + "\n\n");
+          }
+          txtaChat.positionCaret(txtaChat.getText().length());
+          shimmerWhileReplying();
+          updateInputDisabled();
+        }
+
+        @Override
+        public void onReplyFailed(Exception error) {
+          if (streaming) {
+            txtaChat.appendText("\n\n"); // Finish what streamed in before the failure
+          }
+          streaming = false;
+          shimmerWhileReplying();
+          txtaChat.appendText(
+              ConversationService.describeFailure(DISPLAY_ASSISTANT, error) + "\n\n");
+          txtaChat.positionCaret(txtaChat.getText().length());
+          updateInputDisabled();
+        }
+      };
+
   // Track whether the LLM has already commented on the painting reveal
   private boolean hasNotCommentedOnReveal = true;
   private File revealCommentFile;
 
   @FXML
   public void initialize() {
-    // Set up the GPT request
+    // Pick up the witness's session, which outlives this scene
     try {
-      ApiProxyConfig config = ApiProxyConfig.readConfig();
-      chatCompletionRequest =
-          new ChatCompletionRequest(config)
-              .setN(1)
-              .setTemperature(1)
-              .setModel(Model.GPT_4_1_MINI)
-              .setMaxTokens(200);
+      session =
+          ConversationService.getInstance()
+              .getSession(
+                  ConversationStore.HUMAN_WITNESS, HumanWitnessController::createSessionRequest);
     } catch (ApiProxyException e) {
       e.printStackTrace();
     }
-
-    // Prepare the history file
-    chatHistory = new File("target/humanWitness_chatHistory.txt");
-    chatHistory.getParentFile().mkdirs(); // ensure folder exists
+    ScriptedResponses.getInstance()
+        .register(
+            ConversationStore.HUMAN_WITNESS,
+            PAINTING_REVEALED,
+            "Whoa, you can see the logo now! What do you think?");
 
     // Load existing chat history (if any)
-    if (chatHistory.exists()) {
-      try (BufferedReader reader = new BufferedReader(new FileReader(chatHistory))) {
-        String history = reader.lines().collect(Collectors.joining("\n"));
-        if (!history.isEmpty()) {
-          txtaChat.setText(history + "\n");
-          hasExistingChat = true; // SET THIS TO TRUE when there's existing content
-        }
-        // Scroll to the bottom so the latest message is visible
-        txtaChat.positionCaret(txtaChat.getText().length());
-      } catch (IOException e) {
-        e.printStackTrace();
-      }
+    StringBuilder history = new StringBuilder();
+    for (ChatMessage msg :
+        ConversationStore.getInstance().getMessages(ConversationStore.HUMAN_WITNESS)) {
+      String label = "user".equals(msg.getRole()) ? DISPLAY_USER : DISPLAY_ASSISTANT;
+      history.append(label).append(": ").append(msg.getContent()).append("\n\n");
+    }
+    if (history.length() > 0) {
+      txtaChat.setText(history.toString());
+      hasExistingChat = true;
+      // Scroll to the bottom so the latest message is visible
+      txtaChat.positionCaret(txtaChat.getText().length());
     }
 
     // Attach Enter key listener
@@ -179,56 +270,37 @@ public class HumanWitnessController {
         .textProperty()
         .bind(TimerService.getInstance(App.getContext()).timeLeftTextBinding());
 
-    // Generate intro text from LLM if this is the first visit
-    if (!hasExistingChat) {
-      generateIntroMessage();
+    if (session != null) {
+      // Show any reply still on its way, then generate intro text if this is the first visit
+      session.attach(chatView);
+      if (!hasExistingChat && !session.isReplying()) {
+        generateIntroMessage();
+      }
     }
   }
 
   /**
-   * Generates an introductory message from the AI character to begin the conversation. This method
-   * runs asynchronously in a separate thread to send an initial system message that prompts the AI
-   * to introduce itself and set the conversational tone.
+   * Generates an introductory message from the AI character to begin the conversation, using the
+   * one prefetched at game start if there is one. If it fails, a fixed introduction is shown.
    */
   private void generateIntroMessage() {
-    new Thread(
-            () -> {
-              try {
-                // Prime the conversation first
-                primeConversationIfNeeded();
-
-                // Create a system message to generate intro text
-                String introPrompt =
-                    "The player has just started to talk to you for the first time. Give a brief,"
-                        + " welcoming introduction as Rentbrand Picosso. Mention that you're the"
-                        + " designer whose logo design got stolen, and hint that they can see the"
-                        + " design on the paper on your desk. Keep it conversational and brief."
-                        + " Don't mention what the design looks like.";
-
-                ChatMessage introMsg = new ChatMessage("user", introPrompt);
-                ChatMessage aiResponse = runGpt(introMsg);
-
-                if (aiResponse != null) {
-                  Platform.runLater(
-                      () -> {
-                        appendChatMessage(DISPLAY_ASSISTANT, aiResponse.getContent());
-                        txtaChat.positionCaret(txtaChat.getText().length());
-                      });
-                }
-              } catch (Exception e) {
-                e.printStackTrace();
+    ConversationService.Session intro = session;
+    intro
+        .adopt(
+            new ChatMessage("user", INTRO_PROMPT),
+            IntroPrefetcher.getInstance().take(ConversationStore.HUMAN_WITNESS))
+        .thenAccept(
+            reply -> {
+              if (reply == null) {
                 // Fallback to static text if GPT fails
-                Platform.runLater(
-                    () -> {
-                      String fallbackIntro =
-                          "Welcome to my art studio! I'm Rentbrand Picosso, the designer whose logo"
-                              + " was stolen. Feel free to look around and ask me anything about"
-                              + " what happened!";
-                      appendChatMessage(DISPLAY_ASSISTANT, fallbackIntro);
-                    });
+                String fallbackIntro =
+                    "Welcome to my art studio! I'm Rentbrand Picosso, the designer whose logo was"
+                        + " stolen. Feel free to look around and ask me anything about what"
+                        + " happened!";
+                ChatMessage fallback = new ChatMessage("assistant", fallbackIntro);
+                Platform.runLater(() -> intro.addReply(fallback));
               }
-            })
-        .start();
+            });
   }
 
   /**
@@ -253,155 +325,24 @@ public class HumanWitnessController {
   }
 
   private void triggerPaintingRevealedResponse() {
-    Platform.runLater(this::startShimmer);
-    // Create a system message to trigger the LLM response about the painting being revealed
-    String revealMessage =
-        "The player has just seen the logo design! Please make a one sentence-long, excited comment"
-            + " along the lines of: 'Whoa, you can see the logo now! What do you think?'";
-
-    new Thread(
-            () -> {
-              try {
-                // Ensure GPT conversation is primed before sending
-                primeConversationIfNeeded();
-
-                ChatMessage userMsg = new ChatMessage("user", revealMessage);
-                ChatMessage aiMsg = runGpt(userMsg);
-
-                if (aiMsg != null) {
-                  Platform.runLater(
-                      () -> {
-                        appendChatMessage(DISPLAY_ASSISTANT, aiMsg.getContent());
-                        txtaChat.positionCaret(txtaChat.getText().length());
-
-                        try {
-                          if (!revealCommentFile.exists()) {
-                            revealCommentFile.createNewFile(); // persist that comment happened
-                          }
-                        } catch (IOException e) {
-                          e.printStackTrace();
-                        }
-                      });
-                } else {
-                  System.out.println("GPT returned null response");
-                }
-              } catch (Exception e) {
-                e.printStackTrace();
-                System.out.println("Error during GPT call: " + e.getMessage());
-              }
-            })
-        .start();
-    Platform.runLater(this::stopShimmer);
-  }
+    // The comment is always the same, so the session shows it without a round trip to the model
+    ScriptedResponses.getInstance()
+        .say(session, ConversationStore.HUMAN_WITNESS, PAINTING_REVEALED, null);
 
-  /**
-   * Primes the conversation with system prompt and historical messages if not already done. This
-   * method ensures the AI model has context by loading the system prompt and any previously saved
-   * conversation history to maintain conversational continuity. Only executes once per controller
-   * instance to avoid duplicate context loading.
-   */
-  private void primeConversationIfNeeded() {
-    if (primed) {
-      return;
-    }
     try {
-      String systemPrompt = loadSystemPrompt();
-      if (!systemPrompt.isEmpty()) {
-        chatCompletionRequest.addMessage(new ChatMessage("system", systemPrompt));
-      }
-      // feed saved turns back into GPT so it remembers
-      if (chatHistory.exists()) {
-        try (BufferedReader reader = new BufferedReader(new FileReader(chatHistory))) {
-          String line;
-          while ((line = reader.readLine()) != null) {
-            line = line.trim();
-            if (line.isEmpty()) {
-              continue;
-            }
-            ChatMessage reconstructed = parseHistoryLine(line);
-            if (reconstructed != null) {
-              chatCompletionRequest.addMessage(reconstructed);
-            }
-          }
-        }
+      if (!revealCommentFile.exists()) {
+        revealCommentFile.createNewFile(); // persist that comment happened
       }
-      primed = true;
     } catch (IOException e) {
       e.printStackTrace();
-      primed = true; // avoid retry storm
-    }
-  }
-
-  // Read prompt from classpath first, then fallback to file path
-  private String loadSystemPrompt() throws IOException {
-    InputStream is = getClass().getResourceAsStream("/prompts/" + CHAT_PROMPT);
-    if (is != null) {
-      try (BufferedReader br =
-          new BufferedReader(new InputStreamReader(is, StandardCharsets.UTF_8))) {
-        return br.lines().collect(Collectors.joining("\n"));
-      }
-    }
-    // fallback to external file if you keep prompts outside resources
-    if (Files.exists(Paths.get("se206/prompts/" + CHAT_PROMPT))) {
-      return Files.readString(Paths.get("se206/prompts/" + CHAT_PROMPT), StandardCharsets.UTF_8);
-    }
-    return "";
-  }
-
-  // Turn a saved line "Label: content" into a ChatMessage
-  private ChatMessage parseHistoryLine(String line) {
-    int idx = line.indexOf(':');
-    if (idx <= 0) {
-      return null;
-    }
-    String label = line.substring(0, idx).trim();
-    String content = line.substring(idx + 1).trim();
-
-    if (DISPLAY_USER.equals(label)) {
-      return new ChatMessage("user", content);
-    }
-    if (DISPLAY_ASSISTANT.equals(label)) {
-      return new ChatMessage("assistant", content);
     }
-    // ignore unknown labels
-    return null;
   }
 
   private void appendChatMessage(String role, String content) {
     String line = role + ": " + content;
     txtaChat.appendText(line + "\n\n");
-
-    // Save to history file
-    try (BufferedWriter writer = new BufferedWriter(new FileWriter(chatHistory, true))) {
-      writer.write(line);
-      writer.newLine();
-    } catch (IOException e) {
-      e.printStackTrace();
-    }
-  }
-
-  private ChatMessage runGpt(ChatMessage msg) throws ApiProxyException, IOException {
-    Platform.runLater(this::startShimmer);
-    // ensure system prompt and prior turns are injected exactly once
-    primeConversationIfNeeded();
-
-    // Enhance the user message with context from other conversations
-    ChatMessage messageToSend = ChatHistoryUtil.enhanceMessageWithContext(msg, "Human-Witness");
-
-    // Add the user message to the conversation
-    chatCompletionRequest.addMessage(messageToSend);
-    try {
-      ChatCompletionResult chatCompletionResult = chatCompletionRequest.execute();
-      Choice result = chatCompletionResult.getChoices().iterator().next();
-      ChatMessage aiMsg = result.getChatMessage();
-      chatCompletionRequest.addMessage(aiMsg);
-      return aiMsg;
-    } catch (ApiProxyException e) {
-      e.printStackTrace();
-      return null;
-    } finally {
-      Platform.runLater(this::stopShimmer);
-    }
+    String storeRole = DISPLAY_USER.equals(role) ? "user" : "assistant";
+    ConversationStore.getInstance().append(ConversationStore.HUMAN_WITNESS, storeRole, content);
   }
 
   /**
@@ -413,36 +354,40 @@ public class HumanWitnessController {
    */
   private void onSendMessage() throws ApiProxyException, IOException {
     String message = txtInput.getText().trim();
-    if (message.isEmpty()) {
-      return; // ignore empty messages
+    if (message.isEmpty() || (session != null && session.isReplying())) {
+      return; // ignore empty messages, and wait for the reply that is streaming in
     }
     txtInput.clear(); // clear input field immediately
 
     ChatMessage userMsg = new ChatMessage("user", message); // create user message
     appendChatMessage(DISPLAY_USER, message); // update display immediately
 
-    new Thread(
-            () -> {
-              try {
-                ChatMessage aiMsg = runGpt(userMsg);
-                if (aiMsg != null) {
-                  Platform.runLater(
-                      () ->
-                          appendChatMessage(
-                              DISPLAY_ASSISTANT, aiMsg.getContent())); // update display
-                }
-              } catch (ApiProxyException e) {
-                e.printStackTrace();
-              } catch (IOException e) {
-                e.printStackTrace();
-              }
-            })
-        .start();
+    if (session != null) {
+      session.send(userMsg, null); // the reply streams into the display as it arrives
+    }
+  }
+
+  /**
+   * Stops the player sending while a reply is streaming in, so their message never lands in the
+   * middle of it.
+   */
+  private void updateInputDisabled() {
+    boolean replying = session != null && session.isReplying();
+    boolean reenabled = !replying && txtInput.isDisabled();
+    txtInput.setDisable(replying);
+    btnSend.setDisable(replying);
+    if (reenabled) {
+      txtInput.requestFocus();
+    }
   }
 
   @FXML
   private void onGoBack(ActionEvent event) throws IOException {
     System.out.println("HumanWitnessController: onGoBack called");
+    SummaryService.getInstance().schedule(ConversationStore.HUMAN_WITNESS);
+    if (session != null) {
+      session.detach(chatView);
+    }
     System.out.println("HumanWitnessController: Calling App.setRoot('room')");
     App.setRoot("room");
   }
@@ -460,7 +405,19 @@ public class HumanWitnessController {
     onSendMessage();
   }
 
+  /** Keeps shimmering for a turn still waiting for its reply, otherwise hides the indicator. */
+  private void shimmerWhileReplying() {
+    if (session != null && session.isReplying()) {
+      startShimmer();
+    } else {
+      stopShimmer();
+    }
+  }
+
   private void startShimmer() {
+    if (shimmerTimeline != null) {
+      shimmerTimeline.stop(); // Only ever one animation, however many turns are waiting
+    }
     lblThinking.setVisible(true);
 
     // Gradient stops: base grey with bright white highlight
@@ -1,13 +1,10 @@
 package nz.ac.auckland.se206.controllers;
 
-import java.io.BufferedReader;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.InputStreamReader;
-import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Paths;
-import java.util.stream.Collectors;
+import java.util.HashMap;
+import java.util.Map;
 import javafx.animation.KeyFrame;
 import javafx.animation.Timeline;
 import javafx.application.Platform;
@@ -19,17 +16,44 @@ import javafx.scene.layout.Pane;
 import javafx.util.Duration;
 import nz.ac.auckland.apiproxy.chat.openai.ChatCompletionRequest;
 import nz.ac.auckland.apiproxy.chat.openai.ChatCompletionRequest.Model;
-import nz.ac.auckland.apiproxy.chat.openai.ChatCompletionResult;
 import nz.ac.auckland.apiproxy.chat.openai.ChatMessage;
 import nz.ac.auckland.apiproxy.chat.openai.Choice;
 import nz.ac.auckland.apiproxy.config.ApiProxyConfig;
 import nz.ac.auckland.apiproxy.exceptions.ApiProxyException;
 import nz.ac.auckland.se206.App;
 import nz.ac.auckland.se206.GameStateContext;
+import nz.ac.auckland.se206.prompts.PromptEngineering;
+import nz.ac.auckland.se206.prompts.TemplateRegistry;
+import nz.ac.auckland.se206.services.ConversationStore;
+import nz.ac.auckland.se206.services.TaskService;
+import nz.ac.auckland.se206.services.TaskService.TaskClass;
 import nz.ac.auckland.se206.services.TimerService;
 
 public class VerdictController {
 
+  private static final String FEEDBACK_PROMPT = "chat_verdictFeedback.txt";
+
+  /**
+   * Loads the feedback prompt and the proxy configuration in the background at game start, so the
+   * verdict scene can send its request straight away. The feedback itself depends on the player's
+   * rationale, so it cannot be generated ahead of time like the introductions.
+   */
+  public static void prefetchPrompt() {
+    TaskService.getInstance()
+        .getAppScope()
+        .run(
+            TaskClass.BACKGROUND,
+            () -> {
+              try {
+                TemplateRegistry.getInstance().get(FEEDBACK_PROMPT);
+                ApiProxyConfig.readConfig();
+              } catch (ApiProxyException | IllegalArgumentException e) {
+                // The verdict scene loads them again and reports the problem there
+                System.err.println("Could not prefetch the verdict prompt: " + e.getMessage());
+              }
+            });
+  }
+
   @FXML private Pane paneRoot;
   @FXML private Label verdictLabel;
   @FXML private Label verdictLabel1;
@@ -222,60 +246,65 @@ public class VerdictController {
   }
 
   private void runGptWithRationale(String rationale) {
-    new Thread(
-            () -> {
-              try {
-                Platform.runLater(this::startTypingAnimation); // show typing dots
-
-                String systemPrompt = loadSystemPrompt();
-                // Replace both placeholders with actual values
-                String mergedPrompt =
-                    systemPrompt
-                        .replace("{playerRationale}", rationale)
-                        .replace("{playerVerdict}", selectedVerdict);
-
-                ChatMessage userMsg = new ChatMessage("user", mergedPrompt);
-                chatCompletionRequest.addMessage(userMsg);
-
-                ChatCompletionResult result = chatCompletionRequest.execute();
-                Choice choice = result.getChoices().iterator().next();
-                ChatMessage aiMsg = choice.getChatMessage();
+    startTypingAnimation(); // show typing dots
+
+    // Fill both placeholders with actual values
+    Map<String, String> placeholders = new HashMap<>();
+    placeholders.put("playerRationale", rationale);
+    placeholders.put("playerVerdict", selectedVerdict);
+    String mergedPrompt = loadSystemPrompt(placeholders);
+
+    // Let the feedback refer to what the player actually asked, summarised where possible
+    Map<String, String> conversations = ConversationStore.getInstance().getSummariesOrHistories();
+    if (!conversations.isEmpty()) {
+      StringBuilder discussed =
+          new StringBuilder("\n\nWhat the player discussed during the trial:");
+      for (Map.Entry<String, String> conversation : conversations.entrySet()) {
+        discussed.append("\n\n").append(conversation.getKey()).append(":\n");
+        discussed.append(conversation.getValue().trim());
+      }
+      mergedPrompt += discussed;
+    }
 
-                chatCompletionRequest.addMessage(aiMsg);
+    ChatMessage userMsg = new ChatMessage("user", mergedPrompt);
+    chatCompletionRequest.addMessage(userMsg);
 
-                Platform.runLater(
-                    () -> {
-                      stopTypingAnimation();
-                      txtaFeedback.setText(aiMsg.getContent());
-                    });
-              } catch (Exception e) {
-                e.printStackTrace();
+    // Non-blocking call; the reply is handed back to the FX thread when it arrives
+    chatCompletionRequest
+        .executeAsync()
+        .whenComplete(
+            (result, error) -> {
+              if (error != null) {
+                error.printStackTrace();
                 Platform.runLater(
                     () -> {
                       stopTypingAnimation();
                       txtaFeedback.setText("Error getting feedback from GPT.");
                     });
+                return;
               }
-            })
-        .start();
+              Choice choice = result.getChoices().iterator().next();
+              ChatMessage aiMsg = choice.getChatMessage();
+              chatCompletionRequest.addMessage(aiMsg);
+
+              Platform.runLater(
+                  () -> {
+                    stopTypingAnimation();
+                    txtaFeedback.setText(aiMsg.getContent());
+                  });
+            });
   }
 
   /**
    * Loads the system prompt from the chat_verdictFeedback.txt file for AI feedback generation.
    *
+   * @param placeholders the values for the prompt's placeholders
    * @return the system prompt as a string, or a default message if loading fails
    */
-  private String loadSystemPrompt() {
-    try (InputStream inputStream =
-            getClass()
-                .getResourceAsStream(
-                    "/prompts/chat_verdictFeedback.txt"); // Load prompt from resources
-        BufferedReader reader =
-            new BufferedReader(new InputStreamReader(inputStream, StandardCharsets.UTF_8))) {
-      return reader
-          .lines()
-          .collect(Collectors.joining("\n")); // Read all lines into a single string
-    } catch (IOException e) {
+  private String loadSystemPrompt(Map<String, String> placeholders) {
+    try {
+      return PromptEngineering.getPrompt(FEEDBACK_PROMPT, placeholders);
+    } catch (IllegalArgumentException e) {
       e.printStackTrace();
       return "Default prompt"; // Fallback prompt in case of error
     }
@@ -348,5 +377,7 @@ public class VerdictController {
     RoomController.firstTimeAI = true;
     RoomController.firstTimeDefendant = true;
     RoomController.firstTimeRoom = true;
+    // Replace introductions the last game never used with fresh ones
+    App.prefetchIntros();
   }
 }
@@ -0,0 +1,106 @@
+package nz.ac.auckland.se206.prompts;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A prompt template compiled into alternating literal text and {@code {placeholder}} segments, so
+ * it can be filled in a single pass. A placeholder is a name of letters, digits and underscores in
+ * braces; any other brace is literal text. A placeholder with no value is left as written.
+ */
+public final class PromptTemplate {
+
+  private final String name;
+  private final String text;
+  // literals.length == keys.length + 1; the output is literals[0] keys[0] literals[1] ...
+  private final String[] literals;
+  private final String[] keys;
+  private final int literalLength;
+
+  /**
+   * Compiles a template.
+   *
+   * @param name the template's name, for error messages
+   * @param text the template text
+   */
+  public PromptTemplate(String name, String text) {
+    this.name = name;
+    this.text = text;
+
+    List<String> literalList = new ArrayList<>();
+    List<String> keyList = new ArrayList<>();
+    int literalStart = 0;
+    int length = 0;
+    for (int i = 0; i < text.length(); i++) {
+      if (text.charAt(i) != '{') {
+        continue;
+      }
+      int end = i + 1;
+      while (end < text.length() && isKeyChar(text.charAt(end))) {
+        end++;
+      }
+      if (end == i + 1 || end == text.length() || text.charAt(end) != '}') {
+        continue; // Not a placeholder, e.g. a JSON example in the prompt
+      }
+      literalList.add(text.substring(literalStart, i));
+      length += i - literalStart;
+      keyList.add(text.substring(i + 1, end));
+      literalStart = end + 1;
+      i = end;
+    }
+    literalList.add(text.substring(literalStart));
+    length += text.length() - literalStart;
+
+    literals = literalList.toArray(new String[0]);
+    keys = keyList.toArray(new String[0]);
+    literalLength = length;
+  }
+
+  public String getName() {
+    return name;
+  }
+
+  /**
+   * Returns the template exactly as written.
+   *
+   * @return the template text
+   */
+  public String getText() {
+    return text;
+  }
+
+  /**
+   * Fills the placeholders with the given values.
+   *
+   * @param data the value for each placeholder name
+   * @return the filled prompt
+   */
+  public String render(Map<String, String> data) {
+    if (keys.length == 0) {
+      return text;
+    }
+    String[] values = new String[keys.length];
+    int size = literalLength;
+    for (int i = 0; i < keys.length; i++) {
+      String value = data == null ? null : data.get(keys[i]);
+      if (value == null) {
+        // A key given a null value is blanked; a key not given at all stays as written
+        value = data != null && data.containsKey(keys[i]) ? "" : "{" + keys[i] + "}";
+      }
+      values[i] = value;
+      size += value.length();
+    }
+
+    StringBuilder out = new StringBuilder(size);
+    out.append(literals[0]);
+    for (int i = 0; i < keys.length; i++) {
+      out.append(values[i]).append(literals[i + 1]);
+    }
+    return out.toString();
+  }
+
+  private static boolean isKeyChar(char c) {
+    return Character.isLetterOrDigit(c) || c == '_';
+  }
+}
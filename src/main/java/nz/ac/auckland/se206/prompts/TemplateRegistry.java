@@ -0,0 +1,188 @@
+package nz.ac.auckland.se206.prompts;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.JarURLConnection;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Enumeration;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+
+/**
+ * Every prompt template in {@code prompts/}, loaded once from the classpath and compiled. Loading
+ * through the class loader works both from the build directory and from inside a packaged jar.
+ *
+ * <p>For editing prompts while the game runs, set the {@code prompts.devDir} system property to a
+ * directory of templates, such as {@code src/main/resources/prompts}. Templates are then read from
+ * there and recompiled whenever their file changes.
+ */
+public final class TemplateRegistry {
+
+  private static final String PREFIX = "prompts/";
+  private static final String SUFFIX = ".txt";
+
+  private static TemplateRegistry instance;
+
+  /**
+   * Returns the shared registry, loading every template on first use.
+   *
+   * @return the registry
+   */
+  public static synchronized TemplateRegistry getInstance() {
+    if (instance == null) {
+      String devDir = System.getProperty("prompts.devDir");
+      instance =
+          new TemplateRegistry(devDir == null || devDir.isBlank() ? null : Paths.get(devDir));
+    }
+    return instance;
+  }
+
+  private final Map<String, Entry> templates = new ConcurrentHashMap<>();
+  private final Path devDir;
+
+  private TemplateRegistry(Path devDir) {
+    this.devDir = devDir;
+    if (devDir == null) {
+      loadFromClasspath();
+    }
+  }
+
+  /**
+   * Returns a compiled template.
+   *
+   * @param name the template's file name, e.g. {@code "chat.txt"}
+   * @return the template
+   * @throws IllegalArgumentException if there is no such template
+   */
+  public PromptTemplate get(String name) {
+    if (devDir != null) {
+      return getFromDevDir(name);
+    }
+    Entry entry =
+        templates.computeIfAbsent(
+            name,
+            key -> {
+              // Not found when listing, e.g. an unusual class loader, so try it directly
+              String text = readResource(PREFIX + key);
+              return text == null ? null : new Entry(new PromptTemplate(key, text), 0);
+            });
+    if (entry == null) {
+      throw new IllegalArgumentException("No prompt template named " + name);
+    }
+    return entry.template;
+  }
+
+  /**
+   * Fills a template with the given values.
+   *
+   * @param name the template's file name
+   * @param data the value for each placeholder
+   * @return the filled prompt
+   * @throws IllegalArgumentException if there is no such template
+   */
+  public String render(String name, Map<String, String> data) {
+    return get(name).render(data);
+  }
+
+  /**
+   * Returns a template's text, with its placeholders left as written.
+   *
+   * @param name the template's file name
+   * @return the template text
+   * @throws IllegalArgumentException if there is no such template
+   */
+  public String getText(String name) {
+    return get(name).getText();
+  }
+
+  public int size() {
+    return templates.size();
+  }
+
+  private PromptTemplate getFromDevDir(String name) {
+    Path file = devDir.resolve(name);
+    try {
+      long modified = Files.getLastModifiedTime(file).toMillis();
+      Entry entry = templates.get(name);
+      if (entry == null || entry.modified != modified) {
+        String text = Files.readString(file, StandardCharsets.UTF_8);
+        entry = new Entry(new PromptTemplate(name, text), modified);
+        templates.put(name, entry);
+        System.out.println("Loaded prompt template " + file);
+      }
+      return entry.template;
+    } catch (IOException e) {
+      throw new IllegalArgumentException("No prompt template named " + name + " in " + devDir, e);
+    }
+  }
+
+  /** Compiles every {@code prompts/*.txt}, whether the prompts are in a directory or a jar. */
+  private void loadFromClasspath() {
+    URL directory = TemplateRegistry.class.getClassLoader().getResource(PREFIX);
+    if (directory == null) {
+      return;
+    }
+    try {
+      if ("jar".equals(directory.getProtocol())) {
+        JarURLConnection connection = (JarURLConnection) directory.openConnection();
+        connection.setUseCaches(false);
+        try (JarFile jar = connection.getJarFile()) {
+          Enumeration<JarEntry> entries = jar.entries();
+          while (entries.hasMoreElements()) {
+            String path = entries.nextElement().getName();
+            if (path.startsWith(PREFIX)
+                && path.endsWith(SUFFIX)
+                && path.indexOf('/', PREFIX.length()) < 0) {
+              add(path.substring(PREFIX.length()));
+            }
+          }
+        }
+      } else if ("file".equals(directory.getProtocol())) {
+        try (DirectoryStream<Path> files =
+            Files.newDirectoryStream(Paths.get(directory.toURI()), "*" + SUFFIX)) {
+          for (Path file : files) {
+            add(file.getFileName().toString());
+          }
+        }
+      }
+    } catch (IOException | URISyntaxException e) {
+      // Templates will still be loaded one at a time as they are asked for
+      System.err.println("Could not list prompt templates: " + e.getMessage());
+    }
+  }
+
+  private void add(String name) {
+    String text = readResource(PREFIX + name);
+    if (text != null) {
+      templates.put(name, new Entry(new PromptTemplate(name, text), 0));
+    }
+  }
+
+  private static String readResource(String path) {
+    try (InputStream in = TemplateRegistry.class.getClassLoader().getResourceAsStream(path)) {
+      return in == null ? null : new String(in.readAllBytes(), StandardCharsets.UTF_8);
+    } catch (IOException e) {
+      System.err.println("Could not read prompt template " + path + ": " + e.getMessage());
+      return null;
+    }
+  }
+
+  /** A compiled template and, in dev mode, the modification time of the file it came from. */
+  private static final class Entry {
+    private final PromptTemplate template;
+    private final long modified;
+
+    private Entry(PromptTemplate template, long modified) {
+      this.template = template;
+      this.modified = modified;
+    }
+  }
+}
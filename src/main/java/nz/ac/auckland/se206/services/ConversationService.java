@@ -0,0 +1,395 @@
+package nz.ac.auckland.se206.services;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import javafx.application.Platform;
+import nz.ac.auckland.apiproxy.chat.openai.ChatCompletionRequest;
+import nz.ac.auckland.apiproxy.chat.openai.ChatMessage;
+import nz.ac.auckland.apiproxy.exceptions.ApiProxyException;
+import nz.ac.auckland.apiproxy.exceptions.ProxyUnavailableException;
+import nz.ac.auckland.se206.services.TaskService.TaskClass;
+import nz.ac.auckland.se206.utils.ChatHistoryUtil;
+
+/**
+ * Owns one chat session per participant for the whole trial. A scene's controller is rebuilt every
+ * time the player navigates, so the conversation and any reply still on its way live here instead,
+ * and the controller only attaches itself as the session's view while it is on screen.
+ *
+ * <p>Cancellation policy: a turn keeps running when the player leaves the chat. Its reply is
+ * recorded in {@link ConversationStore} and shown by whichever view is attached when it arrives,
+ * or by the next view to attach. Turns are only dropped when the conversation itself is thrown
+ * away, by {@link #discard} or {@link #reset}: queued turns never run, and the turn being answered
+ * is cancelled, closing its request so it stops spending tokens.
+ *
+ * <p>Sessions and their views are used on the JavaFX thread; replies are handed to the view there.
+ */
+public final class ConversationService {
+
+  /** Builds the request a new session starts from, primed with its prompt and history. */
+  public interface RequestFactory {
+    /**
+     * Creates the request.
+     *
+     * @return the request
+     * @throws ApiProxyException if the request cannot be created
+     */
+    ChatCompletionRequest create() throws ApiProxyException;
+  }
+
+  /** Shows a session's replies. Every method is called on the JavaFX thread. */
+  public interface ChatView {
+    /** Called when a turn is sent, or on attaching while one is still on its way. */
+    void onThinking();
+
+    /**
+     * Called with each streamed piece of a reply. On attaching part way through a reply, the text
+     * so far arrives as one piece.
+     *
+     * @param delta the new text
+     * @param first whether this is the first piece of the reply
+     */
+    void onReplyDelta(String delta, boolean first);
+
+    /**
+     * Called when a reply is complete. It has already been recorded in {@link ConversationStore}.
+     *
+     * @param reply the whole reply
+     */
+    void onReply(ChatMessage reply);
+
+    /**
+     * Called when a turn fails or the reply comes back empty.
+     *
+     * @param error what went wrong
+     */
+    void onReplyFailed(Exception error);
+  }
+
+  private static ConversationService instance;
+
+  /**
+   * Describes a failed turn for the player. While the proxy's circuit breaker is open they are told
+   * how long to wait rather than shown an error.
+   *
+   * @param character who the player was talking to, as shown in the chat
+   * @param error why the turn failed
+   * @return the line to show in place of the reply
+   */
+  public static String describeFailure(String character, Exception error) {
+    if (error instanceof ProxyUnavailableException) {
+      long retryAfterMs = ((ProxyUnavailableException) error).getRetryAfterMs();
+      long seconds = Math.max(1, (retryAfterMs + 999) / 1000);
+      return "["
+          + character
+          + " is not responding right now. Please try again in "
+          + seconds
+          + " seconds.]";
+    } else if (error instanceof ApiProxyException) {
+      return "[error] " + error.getMessage();
+    }
+    return "[error] Unexpected Exception: " + error.getMessage();
+  }
+
+  public static synchronized ConversationService getInstance() {
+    if (instance == null) {
+      instance = new ConversationService();
+    }
+    return instance;
+  }
+
+  private final Map<String, Session> sessions = new HashMap<>();
+  private final Executor fxThread;
+
+  private ConversationService() {
+    this(Platform::runLater);
+  }
+
+  /**
+   * Creates a service whose sessions hand their replies over on the given executor, which stands in
+   * for the JavaFX thread.
+   *
+   * @param fxThread runs each update to a session's view, one at a time
+   */
+  ConversationService(Executor fxThread) {
+    this.fxThread = fxThread;
+  }
+
+  /**
+   * Returns a participant's session, starting one from the factory if there is none yet.
+   *
+   * @param participant who the conversation is with
+   * @param factory builds the session's request; only used for a new session
+   * @return the participant's session
+   * @throws ApiProxyException if a new session's request cannot be created
+   */
+  public synchronized Session getSession(String participant, RequestFactory factory)
+      throws ApiProxyException {
+    Session session = sessions.get(participant);
+    if (session == null) {
+      session = new Session(participant, factory.create(), fxThread);
+      sessions.put(participant, session);
+    }
+    return session;
+  }
+
+  /**
+   * Throws away a participant's session, for when their conversation is cleared. Turns not yet sent
+   * never run and the turn being answered is cancelled.
+   *
+   * @param participant who the conversation is with
+   */
+  public synchronized void discard(String participant) {
+    Session session = sessions.remove(participant);
+    if (session != null) {
+      session.cancel();
+    }
+  }
+
+  /** Throws away every session, for a new game. */
+  public synchronized void reset() {
+    for (Session session : sessions.values()) {
+      session.cancel();
+    }
+    sessions.clear();
+  }
+
+  /** One participant's conversation, and the turns still being answered. */
+  public static final class Session {
+    private final String participant;
+    private final ChatCompletionRequest request;
+    private final Executor fxThread;
+    private final TaskService.Scope tasks = TaskService.getInstance().getAppScope();
+    private CompletableFuture<ChatMessage> lastTurn = CompletableFuture.completedFuture(null);
+    // Guarded by this: the turn being run, which is cancelled if the session is thrown away
+    private CompletableFuture<ChatMessage> inFlight = CompletableFuture.completedFuture(null);
+    private volatile boolean discarded;
+
+    // Only touched on the FX thread
+    private ChatView view;
+    private int pendingTurns;
+    private StringBuilder partialReply;
+
+    private Session(String participant, ChatCompletionRequest request, Executor fxThread) {
+      this.participant = participant;
+      this.request = request;
+      this.fxThread = fxThread;
+    }
+
+    public String getParticipant() {
+      return participant;
+    }
+
+    /**
+     * Returns the session's request, for adding turns that do not need a reply, such as scripted
+     * lines.
+     *
+     * @return the request holding the conversation so far
+     */
+    public ChatCompletionRequest getRequest() {
+      return request;
+    }
+
+    /**
+     * Returns whether a turn is still waiting for its reply.
+     *
+     * @return true while a reply is on its way
+     */
+    public boolean isReplying() {
+      return pendingTurns > 0;
+    }
+
+    /**
+     * Shows the session in a view, replacing any view already attached. If a reply is on its way,
+     * the view is told so, along with any text that has already streamed in.
+     *
+     * @param view the view to attach
+     */
+    public void attach(ChatView view) {
+      this.view = view;
+      if (pendingTurns > 0) {
+        view.onThinking();
+        if (partialReply != null) {
+          view.onReplyDelta(partialReply.toString(), true);
+        }
+      }
+    }
+
+    /**
+     * Stops showing the session in a view. Does nothing if another view has attached since.
+     *
+     * @param view the view to detach
+     */
+    public void detach(ChatView view) {
+      if (this.view == view) {
+        this.view = null;
+      }
+    }
+
+    /**
+     * Sends a turn once every earlier turn has been answered. The caller records a user message in
+     * {@link ConversationStore} itself; the reply is recorded here.
+     *
+     * @param message the message to send
+     * @param currentContext what the player is looking at right now, sent only with this turn, or
+     *     null
+     * @return the reply, null if the turn failed, or cancelled if the session was thrown away
+     */
+    public CompletableFuture<ChatMessage> send(ChatMessage message, String currentContext) {
+      return enqueue(message, currentContext, null);
+    }
+
+    /**
+     * Uses a reply generated ahead of time, such as a prefetched introduction, as the answer to a
+     * turn. If it failed, the turn is sent as usual instead.
+     *
+     * @param message the message the reply answers
+     * @param prefetched the reply, which may still be on its way, or null to send the turn now
+     * @return the reply, null if the turn failed, or cancelled if the session was thrown away
+     */
+    public CompletableFuture<ChatMessage> adopt(
+        ChatMessage message, CompletableFuture<ChatMessage> prefetched) {
+      return enqueue(message, null, prefetched);
+    }
+
+    /**
+     * Records a reply made without the model, such as a scripted or fallback line, and shows it.
+     * It waits for every turn already queued, so it never lands between a message and its reply.
+     *
+     * @param reply the assistant message
+     * @return the reply once it has been recorded and shown
+     */
+    public CompletableFuture<ChatMessage> addReply(ChatMessage reply) {
+      lastTurn =
+          lastTurn
+              .exceptionally(e -> null)
+              .thenApplyAsync(
+                  previous -> {
+                    if (!discarded) {
+                      request.addMessage(reply);
+                      ConversationStore.getInstance().append(participant, reply);
+                      if (view != null) {
+                        view.onReply(reply);
+                      }
+                    }
+                    return reply;
+                  },
+                  fxThread);
+      return lastTurn;
+    }
+
+    private CompletableFuture<ChatMessage> enqueue(
+        ChatMessage message, String currentContext, CompletableFuture<ChatMessage> prefetched) {
+      pendingTurns++;
+      if (view != null) {
+        view.onThinking();
+      }
+      // Turns go out one at a time, so each reply sees the one before it
+      lastTurn =
+          lastTurn
+              .exceptionally(e -> null)
+              .thenCompose(
+                  previous -> startTurn(() -> runTurn(message, currentContext, prefetched)));
+      return lastTurn;
+    }
+
+    private synchronized CompletableFuture<ChatMessage> startTurn(Callable<ChatMessage> turn) {
+      inFlight = tasks.submit(TaskClass.CHAT, turn);
+      if (discarded) {
+        inFlight.cancel(true);
+      }
+      return inFlight;
+    }
+
+    /** Marks the session thrown away and cancels the turn being run, interrupting its request. */
+    private synchronized void cancel() {
+      discarded = true;
+      inFlight.cancel(true);
+    }
+
+    private ChatMessage runTurn(
+        ChatMessage message, String currentContext, CompletableFuture<ChatMessage> prefetched) {
+      if (discarded) {
+        throw new CancellationException(participant + "'s conversation was thrown away");
+      }
+      ChatMessage prefetchedReply = joinPrefetched(prefetched);
+      if (prefetchedReply != null) {
+        request.addMessage(message);
+        request.addMessage(prefetchedReply);
+        fxThread.execute(() -> finish(prefetchedReply));
+        return prefetchedReply;
+      }
+
+      ChatHistoryUtil.addMessageWithContext(request, message, participant, currentContext);
+      try {
+        ChatMessage reply =
+            request.executeStreaming(delta -> fxThread.execute(() -> stream(delta)));
+        if (reply == null || reply.getContent() == null || reply.getContent().trim().isEmpty()) {
+          fxThread.execute(() -> fail(new ApiProxyException("AI returned an empty message.")));
+          return null;
+        }
+        request.addMessage(reply);
+        fxThread.execute(() -> finish(reply));
+        return reply;
+      } catch (ApiProxyException | RuntimeException e) {
+        fxThread.execute(() -> fail(e));
+        return null;
+      }
+    }
+
+    private ChatMessage joinPrefetched(CompletableFuture<ChatMessage> prefetched) {
+      if (prefetched == null) {
+        return null;
+      }
+      try {
+        ChatMessage reply = prefetched.join();
+        return reply == null || reply.getContent() == null ? null : reply;
+      } catch (CompletionException | CancellationException e) {
+        System.err.println("Prefetched reply failed, generating it now: " + e.getMessage());
+        return null;
+      }
+    }
+
+    private void stream(String delta) {
+      if (discarded) {
+        return;
+      }
+      boolean first = partialReply == null;
+      if (first) {
+        partialReply = new StringBuilder();
+      }
+      partialReply.append(delta);
+      if (view != null) {
+        view.onReplyDelta(delta, first);
+      }
+    }
+
+    private void finish(ChatMessage reply) {
+      if (discarded) {
+        return;
+      }
+      pendingTurns--;
+      partialReply = null;
+      ConversationStore.getInstance().append(participant, reply);
+      if (view != null) {
+        view.onReply(reply);
+      }
+    }
+
+    private void fail(Exception error) {
+      if (discarded) {
+        return;
+      }
+      pendingTurns--;
+      partialReply = null;
+      System.err.println("Reply from " + participant + " failed: " + error.getMessage());
+      if (view != null) {
+        view.onReplyFailed(error);
+      }
+    }
+  }
+}
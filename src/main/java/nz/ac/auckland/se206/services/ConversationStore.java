@@ -0,0 +1,442 @@
+package nz.ac.auckland.se206.services;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import nz.ac.auckland.apiproxy.chat.openai.ChatMessage;
+
+/**
+ * In-memory record of what the player has said to each participant during the current game.
+ * Controllers append each turn as it happens, and every participant's conversation is kept
+ * pre-formatted, so building the cross-conversation context for a prompt only copies text.
+ *
+ * <p>Every turn is also written through to the {@link TranscriptLog}, which the store replays
+ * when it is created, so conversations are rebuilt from disk rather than from per-room files.
+ */
+public final class ConversationStore {
+
+  public static final String AI_DEFENDANT = "AI-Defendant";
+  public static final String AI_WITNESS = "AI-Witness";
+  public static final String HUMAN_WITNESS = "Human-Witness";
+
+  private static ConversationStore instance;
+
+  public static synchronized ConversationStore getInstance() {
+    if (instance == null) {
+      instance = new ConversationStore();
+    }
+    return instance;
+  }
+
+  // Insertion ordered so conversations appear in the order the player started them
+  private final Map<String, Conversation> conversations = new LinkedHashMap<>();
+  // The last turn each character has been shown from the other conversations
+  private final Map<String, Long> watermarks = new HashMap<>();
+  private final TranscriptIndex index = new TranscriptIndex();
+  private long sequence;
+
+  private final TranscriptLog log;
+
+  private ConversationStore() {
+    TranscriptLog opened = null;
+    try {
+      opened = TranscriptLog.getInstance();
+      for (TranscriptLog.Turn turn : opened.readAll()) {
+        if (turn.isClear()) {
+          conversations.remove(turn.getParticipant());
+          index.remove(turn.getParticipant());
+        } else {
+          remember(turn.getParticipant(), turn.getRole(), turn.getContent());
+        }
+      }
+    } catch (IOException e) {
+      // Conversations still work for this session, they just are not persisted
+      System.err.println("Could not open chat transcript: " + e.getMessage());
+    }
+    log = opened;
+  }
+
+  /**
+   * Records one turn of a conversation.
+   *
+   * @param participant who the conversation is with, e.g. {@link #AI_WITNESS}
+   * @param message the turn, with role "user" for the player
+   */
+  public void append(String participant, ChatMessage message) {
+    append(participant, message.getRole(), message.getContent());
+  }
+
+  /**
+   * Records one turn of a conversation.
+   *
+   * @param participant who the conversation is with, e.g. {@link #AI_WITNESS}
+   * @param role "user" for the player, anything else for the participant
+   * @param content what was said
+   */
+  public synchronized void append(String participant, String role, String content) {
+    if (content == null || content.trim().isEmpty()) {
+      return;
+    }
+    remember(participant, role, content);
+    if (log != null) {
+      log.append(participant, role, content);
+    }
+  }
+
+  /**
+   * Returns one participant's conversation as chat messages, oldest first.
+   *
+   * @param participant the participant to look up
+   * @return the messages, or an empty list if there are none
+   */
+  public synchronized List<ChatMessage> getMessages(String participant) {
+    Conversation conversation = conversations.get(participant);
+    if (conversation == null) {
+      return Collections.emptyList();
+    }
+    return new ArrayList<>(conversation.messages);
+  }
+
+  /**
+   * Returns the conversations with every participant except the current one, formatted so the
+   * model can tell who said what to whom.
+   *
+   * @param currentParticipant the participant to leave out
+   * @return the formatted conversations, or an empty string if there are none
+   */
+  public synchronized String getOtherChatHistories(String currentParticipant) {
+    int size = 0;
+    for (Conversation conversation : conversations.values()) {
+      size += conversation.formatted.length() + 80;
+    }
+    StringBuilder others = new StringBuilder(size);
+    for (Conversation conversation : conversations.values()) {
+      if (isSameParticipant(conversation.participant, currentParticipant)
+          || conversation.formatted.length() == 0) {
+        continue;
+      }
+      String name = conversation.participant.toUpperCase();
+      others.append("--- CONVERSATION WITH ").append(name).append(" ---\n");
+      others.append(conversation.formatted);
+      others.append("--- END OF ").append(name).append(" CONVERSATION ---\n\n");
+    }
+    return others.toString();
+  }
+
+  /**
+   * Returns the turns added to every other participant's conversation since this was last called
+   * for the current participant, formatted like {@link #getOtherChatHistories(String)}, and moves
+   * the current participant's watermark past them. Each character therefore sees every other
+   * turn exactly once.
+   *
+   * @param currentParticipant the participant whose prompt the turns will be added to
+   * @return the new turns, or an empty string if there are none
+   */
+  public synchronized String takeNewOtherChatHistories(String currentParticipant) {
+    long watermark = watermarks.getOrDefault(currentParticipant, 0L);
+    watermarks.put(currentParticipant, sequence);
+    StringBuilder delta = new StringBuilder();
+    for (Conversation conversation : conversations.values()) {
+      if (isSameParticipant(conversation.participant, currentParticipant)) {
+        continue;
+      }
+      int start = conversation.offsetAfter(watermark);
+      if (start < 0) {
+        continue;
+      }
+      String name = conversation.participant.toUpperCase();
+      String summary = conversation.freshSummary();
+      if (start == 0 && summary != null) {
+        // The whole conversation is due, so send its summary instead
+        delta.append("--- SUMMARY OF CONVERSATION WITH ").append(name).append(" ---\n");
+        delta.append(summary.trim()).append('\n');
+      } else {
+        delta.append("--- CONVERSATION WITH ").append(name);
+        delta.append(start > 0 ? " (continued) ---\n" : " ---\n");
+        delta.append(conversation.formatted, start, conversation.formatted.length());
+      }
+      delta.append("--- END OF ").append(name).append(" CONVERSATION ---\n\n");
+    }
+    return delta.toString();
+  }
+
+  /**
+   * Finds the turns from other participants' conversations that best match a query, among those
+   * the current participant has already been shown by {@link #takeNewOtherChatHistories(String)}.
+   * Used to bring back earlier turns that a question refers to.
+   *
+   * @param currentParticipant the participant to leave out
+   * @param query the text to match, usually the player's message
+   * @param limit the most turns to return
+   * @return the matching turns formatted like the conversations, best match first, or an empty
+   *     string if none match
+   */
+  public synchronized String findRelevantTurns(String currentParticipant, String query, int limit) {
+    long watermark = watermarks.getOrDefault(currentParticipant, 0L);
+    List<TranscriptIndex.Hit> hits =
+        index.search(
+            query,
+            limit,
+            (turn, participant) ->
+                turn <= watermark && !isSameParticipant(participant, currentParticipant));
+    StringBuilder relevant = new StringBuilder();
+    for (TranscriptIndex.Hit hit : hits) {
+      formatTurn(relevant, hit.getParticipant(), hit.getRole(), hit.getContent());
+    }
+    return relevant.toString();
+  }
+
+  /**
+   * Forgets which turns a participant has already been shown, so the next call to {@link
+   * #takeNewOtherChatHistories(String)} returns every other conversation in full. Used when a
+   * character starts a fresh chat request.
+   *
+   * @param participant the participant whose watermark to reset
+   */
+  public synchronized void resetWatermark(String participant) {
+    watermarks.remove(participant);
+  }
+
+  /**
+   * Returns one participant's formatted conversation.
+   *
+   * @param participant the participant to look up
+   * @return the formatted conversation, or an empty string if there is none
+   */
+  public synchronized String getChatHistory(String participant) {
+    for (Conversation conversation : conversations.values()) {
+      if (isSameParticipant(conversation.participant, participant)) {
+        return conversation.formatted.toString();
+      }
+    }
+    return "";
+  }
+
+  /**
+   * Returns every non-empty conversation, formatted, keyed by participant.
+   *
+   * @return the conversations in the order they were started
+   */
+  public synchronized Map<String, String> getAllChatHistories() {
+    Map<String, String> all = new LinkedHashMap<>();
+    for (Conversation conversation : conversations.values()) {
+      if (conversation.formatted.length() > 0) {
+        all.put(conversation.participant, conversation.formatted.toString());
+      }
+    }
+    return all;
+  }
+
+  /**
+   * Returns every non-empty conversation keyed by participant, as its summary when an up-to-date
+   * one exists and as the formatted conversation otherwise.
+   *
+   * @return the conversations in the order they were started
+   */
+  public synchronized Map<String, String> getSummariesOrHistories() {
+    Map<String, String> all = new LinkedHashMap<>();
+    for (Conversation conversation : conversations.values()) {
+      String summary = conversation.freshSummary();
+      if (summary != null) {
+        all.put(conversation.participant, summary);
+      } else if (conversation.formatted.length() > 0) {
+        all.put(conversation.participant, conversation.formatted.toString());
+      }
+    }
+    return all;
+  }
+
+  /**
+   * Returns a participant's summary, if it covers every turn so far. A summary goes stale as soon
+   * as the conversation gains a turn, and is never returned after that.
+   *
+   * @param participant the participant to look up
+   * @return the summary, or null if there is none or it is stale
+   */
+  public synchronized String getSummary(String participant) {
+    Conversation conversation = conversations.get(participant);
+    return conversation == null ? null : conversation.freshSummary();
+  }
+
+  /**
+   * Returns the version of a participant's conversation, which is the sequence number of its
+   * latest turn. It only ever grows, so it tells whether a summary is still up to date.
+   *
+   * @param participant the participant to look up
+   * @return the version, or 0 if there is no conversation
+   */
+  public synchronized long getVersion(String participant) {
+    Conversation conversation = conversations.get(participant);
+    return conversation == null ? 0 : conversation.version();
+  }
+
+  /**
+   * Records a summary of a participant's conversation up to a version. An older summary than the
+   * one already held is ignored, as is one for a conversation that has since been cleared: turn
+   * numbers are never reused, so a version from before the conversation's first turn belongs to
+   * one that no longer exists.
+   *
+   * @param participant the participant the summary is of
+   * @param version the version of the conversation that was summarised
+   * @param summary the summary text
+   */
+  public synchronized void putSummary(String participant, long version, String summary) {
+    Conversation conversation = conversations.get(participant);
+    if (conversation == null
+        || version > conversation.version()
+        || version < conversation.firstVersion()
+        || version <= conversation.summaryVersion) {
+      return;
+    }
+    conversation.summary = summary;
+    conversation.summaryVersion = version;
+  }
+
+  /** Returns the latest summary of a conversation, stale or not, for folding in new turns. */
+  synchronized String getLatestSummary(String participant) {
+    Conversation conversation = conversations.get(participant);
+    return conversation == null ? null : conversation.summary;
+  }
+
+  /** Returns the version the latest summary of a conversation covers, or 0 if there is none. */
+  synchronized long getLatestSummaryVersion(String participant) {
+    Conversation conversation = conversations.get(participant);
+    return conversation == null ? 0 : conversation.summaryVersion;
+  }
+
+  /** Returns the turns of one conversation after a version, formatted. */
+  synchronized String getChatHistorySince(String participant, long version) {
+    Conversation conversation = conversations.get(participant);
+    if (conversation == null) {
+      return "";
+    }
+    int start = conversation.offsetAfter(version);
+    return start < 0 ? "" : conversation.formatted.substring(start);
+  }
+
+  /**
+   * Returns whether the player has said anything to a participant.
+   *
+   * @param participant the participant to check
+   * @return true once at least one player message has been recorded
+   */
+  public synchronized boolean hasUserQuestioned(String participant) {
+    Conversation conversation = conversations.get(participant);
+    return conversation != null && conversation.userTurns > 0;
+  }
+
+  /** Forgets every conversation, for a new game. */
+  public synchronized void clear() {
+    conversations.clear();
+    watermarks.clear();
+    index.clear();
+    if (log != null) {
+      try {
+        log.clearAll();
+      } catch (IOException e) {
+        System.err.println("Could not clear chat transcript: " + e.getMessage());
+      }
+    }
+  }
+
+  /**
+   * Forgets the conversation with one participant.
+   *
+   * @param participant the participant whose conversation to drop
+   */
+  public synchronized void clear(String participant) {
+    watermarks.remove(participant);
+    index.remove(participant);
+    if (conversations.remove(participant) != null && log != null) {
+      log.clear(participant);
+    }
+  }
+
+  private void remember(String participant, String role, String content) {
+    long turn = ++sequence;
+    conversations.computeIfAbsent(participant, Conversation::new).append(turn, role, content);
+    index.add(turn, participant, role, content);
+  }
+
+  private static boolean isSameParticipant(String participant, String other) {
+    return participant.equalsIgnoreCase(other)
+        || participant.contains(other.toUpperCase())
+        || other.toUpperCase().contains(participant.toUpperCase());
+  }
+
+  private static void formatTurn(
+      StringBuilder formatted, String participant, String role, String content) {
+    if ("user".equals(role)) {
+      formatted.append(">> USER (to ").append(participant).append("): ");
+    } else {
+      formatted.append(">> ").append(participant).append(" (reply): ");
+    }
+
+    // Indent the continuation lines of multi-line messages under their speaker
+    String[] lines = content.trim().split("\n");
+    formatted.append(lines[0]).append('\n');
+    for (int i = 1; i < lines.length; i++) {
+      if (!lines[i].trim().isEmpty()) {
+        formatted.append("    ").append(lines[i]).append('\n');
+      }
+    }
+  }
+
+  /** One participant's conversation, kept in its prompt-ready form. */
+  private static final class Conversation {
+    private final String participant;
+    private final StringBuilder formatted = new StringBuilder();
+    private final List<ChatMessage> messages = new ArrayList<>();
+    // Parallel to messages: each turn's sequence number and where its text starts in formatted
+    private long[] sequences = new long[16];
+    private int[] offsets = new int[16];
+    private int userTurns;
+    private String summary;
+    private long summaryVersion;
+
+    private Conversation(String participant) {
+      this.participant = participant;
+    }
+
+    private void append(long sequence, String role, String content) {
+      int turn = messages.size();
+      if (turn == sequences.length) {
+        sequences = Arrays.copyOf(sequences, turn * 2);
+        offsets = Arrays.copyOf(offsets, turn * 2);
+      }
+      sequences[turn] = sequence;
+      offsets[turn] = formatted.length();
+      messages.add(new ChatMessage(role, content));
+      if ("user".equals(role)) {
+        userTurns++;
+      }
+      formatTurn(formatted, participant, role, content);
+    }
+
+    private long version() {
+      return messages.isEmpty() ? 0 : sequences[messages.size() - 1];
+    }
+
+    private long firstVersion() {
+      return messages.isEmpty() ? 0 : sequences[0];
+    }
+
+    private String freshSummary() {
+      return summary != null && summaryVersion == version() ? summary : null;
+    }
+
+    /** Returns where the first turn after a sequence number starts, or -1 if there is none. */
+    private int offsetAfter(long sequence) {
+      int turn = messages.size();
+      while (turn > 0 && sequences[turn - 1] > sequence) {
+        turn--;
+      }
+      return turn == messages.size() ? -1 : offsets[turn];
+    }
+  }
+}
\ No newline at end of file
@@ -0,0 +1,124 @@
+package nz.ac.auckland.se206.services;
+
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import nz.ac.auckland.apiproxy.chat.openai.ChatCompletionRequest;
+import nz.ac.auckland.apiproxy.chat.openai.ChatCompletionResult;
+import nz.ac.auckland.apiproxy.chat.openai.ChatMessage;
+import nz.ac.auckland.apiproxy.exceptions.ApiProxyException;
+import nz.ac.auckland.se206.services.TaskService.TaskClass;
+
+/**
+ * Generates the characters' introductions speculatively when a game starts, all at once in the
+ * background, and parks them until the player first opens each chat. The chat then shows the
+ * introduction straight away instead of waiting several seconds for it.
+ *
+ * <p>Each introduction can be taken once. Any left when the game is reset are discarded, and the
+ * tokens spent on them are reported as wasted.
+ */
+public final class IntroPrefetcher {
+
+  /** Builds the request an introduction is generated from. */
+  public interface IntroRequestFactory {
+    /**
+     * Creates the request, ending with the message that asks for the introduction.
+     *
+     * @return the request
+     * @throws ApiProxyException if the request cannot be created
+     */
+    ChatCompletionRequest create() throws ApiProxyException;
+  }
+
+  private static IntroPrefetcher instance;
+
+  public static synchronized IntroPrefetcher getInstance() {
+    if (instance == null) {
+      instance = new IntroPrefetcher();
+    }
+    return instance;
+  }
+
+  private final Map<String, CompletableFuture<ChatCompletionResult>> parked =
+      new ConcurrentHashMap<>();
+  private final AtomicInteger used = new AtomicInteger();
+  private final AtomicInteger discarded = new AtomicInteger();
+  private final AtomicLong usedTokens = new AtomicLong();
+  private final AtomicLong discardedTokens = new AtomicLong();
+
+  private IntroPrefetcher() {}
+
+  /**
+   * Starts generating a participant's introduction in the background, replacing any parked one.
+   *
+   * @param participant who the introduction is for, e.g. {@link ConversationStore#AI_DEFENDANT}
+   * @param factory builds the request for the introduction
+   */
+  public void prefetch(String participant, IntroRequestFactory factory) {
+    CompletableFuture<ChatCompletionResult> intro =
+        TaskService.getInstance()
+            .getAppScope()
+            .submit(TaskClass.BACKGROUND, factory::create)
+            .thenCompose(ChatCompletionRequest::executeAsync);
+    CompletableFuture<ChatCompletionResult> previous = parked.put(participant, intro);
+    if (previous != null) {
+      discard(previous);
+    }
+  }
+
+  /**
+   * Takes a participant's parked introduction, which may still be on its way. Each introduction is
+   * only handed out once.
+   *
+   * @param participant who the introduction is for
+   * @return the introduction, or null if none was prefetched or it was already taken
+   */
+  public CompletableFuture<ChatMessage> take(String participant) {
+    CompletableFuture<ChatCompletionResult> intro = parked.remove(participant);
+    if (intro == null) {
+      return null;
+    }
+    return intro.thenApply(
+        result -> {
+          used.incrementAndGet();
+          usedTokens.addAndGet(result.getUsageTotalTokens());
+          return result.getChoice(0).getChatMessage();
+        });
+  }
+
+  /** Drops every introduction nobody took, for a game reset, and reports what they cost. */
+  public void discardAll() {
+    boolean any = false;
+    for (String participant : new ArrayList<>(parked.keySet())) {
+      CompletableFuture<ChatCompletionResult> intro = parked.remove(participant);
+      if (intro != null) {
+        discard(intro);
+        any = true;
+      }
+    }
+    if (any) {
+      System.out.println("Intro prefetch: " + this);
+    }
+  }
+
+  @Override
+  public String toString() {
+    return used.get()
+        + " intros used ("
+        + usedTokens.get()
+        + " tokens), "
+        + discarded.get()
+        + " discarded unused ("
+        + discardedTokens.get()
+        + " tokens wasted)";
+  }
+
+  private void discard(CompletableFuture<ChatCompletionResult> intro) {
+    discarded.incrementAndGet();
+    // A reply already on its way is still paid for, so count it when it lands
+    intro.thenAccept(result -> discardedTokens.addAndGet(result.getUsageTotalTokens()));
+  }
+}
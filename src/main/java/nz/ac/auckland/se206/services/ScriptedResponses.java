@@ -0,0 +1,87 @@
+package nz.ac.auckland.se206.services;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import nz.ac.auckland.apiproxy.chat.openai.ChatMessage;
+import nz.ac.auckland.se206.prompts.PromptTemplate;
+
+/**
+ * Lines a character always says the same way, such as reacting to the player finding a clue. They
+ * are shown without asking the model to repeat a fixed sentence, and recorded as the character's
+ * turn so the model still knows it was said.
+ *
+ * <p>A line may contain {@code {placeholder}} names, filled in when it is said.
+ */
+public final class ScriptedResponses {
+
+  private static ScriptedResponses instance;
+
+  public static synchronized ScriptedResponses getInstance() {
+    if (instance == null) {
+      instance = new ScriptedResponses();
+    }
+    return instance;
+  }
+
+  private final Map<String, PromptTemplate> lines = new ConcurrentHashMap<>();
+
+  private ScriptedResponses() {}
+
+  /**
+   * Registers a line, replacing any line already registered for the same event.
+   *
+   * @param participant who says the line, e.g. {@link ConversationStore#AI_DEFENDANT}
+   * @param event what the line is a reaction to
+   * @param line the text, which may contain {@code {placeholder}} names
+   */
+  public void register(String participant, String event, String line) {
+    String key = key(participant, event);
+    lines.put(key, new PromptTemplate(key, line));
+  }
+
+  /**
+   * Returns whether a line is registered for an event.
+   *
+   * @param participant who says the line
+   * @param event what the line is a reaction to
+   * @return true if {@link #say} will find a line
+   */
+  public boolean has(String participant, String event) {
+    return lines.containsKey(key(participant, event));
+  }
+
+  /**
+   * Says a registered line: fills it in and adds it to the session as an assistant turn, after any
+   * reply still on its way. The session records it and shows it in its view.
+   *
+   * @param session the conversation the line belongs to, or null if there is none, in which case
+   *     the line is only recorded in {@link ConversationStore}
+   * @param participant who says the line
+   * @param event what the line is a reaction to
+   * @param values the placeholder values, or null if the line has none
+   * @return the line as an assistant message
+   * @throws IllegalArgumentException if no line is registered for the event
+   */
+  public ChatMessage say(
+      ConversationService.Session session,
+      String participant,
+      String event,
+      Map<String, String> values) {
+    PromptTemplate line = lines.get(key(participant, event));
+    if (line == null) {
+      throw new IllegalArgumentException("No scripted line for " + key(participant, event));
+    }
+    String text = values == null ? line.getText() : line.render(values);
+    ChatMessage message = new ChatMessage("assistant", text);
+    if (session != null) {
+      session.addReply(message);
+    } else {
+      ConversationStore.getInstance().append(participant, message);
+    }
+    return message;
+  }
+
+  private static String key(String participant, String event) {
+    return participant + "/" + event;
+  }
+}
@@ -0,0 +1,114 @@
+package nz.ac.auckland.se206.services;
+
+import java.util.HashSet;
+import java.util.Set;
+import nz.ac.auckland.apiproxy.chat.openai.ChatCompletionRequest;
+import nz.ac.auckland.apiproxy.chat.openai.ChatCompletionRequest.Model;
+import nz.ac.auckland.apiproxy.chat.openai.ChatCompletionResult;
+import nz.ac.auckland.apiproxy.chat.openai.ChatMessage;
+import nz.ac.auckland.apiproxy.config.ApiProxyConfig;
+import nz.ac.auckland.apiproxy.exceptions.ApiProxyException;
+import nz.ac.auckland.se206.prompts.TemplateRegistry;
+import nz.ac.auckland.se206.services.TaskService.TaskClass;
+
+/**
+ * Keeps a running summary of each conversation, so other characters and the verdict feedback can
+ * refer to a short summary rather than the whole transcript. When the player leaves a chat, a
+ * low-priority background job folds the turns since the last summary into it with the smallest
+ * model and records it in {@link ConversationStore}, tagged with the conversation version it
+ * covers.
+ */
+public final class SummaryService {
+
+  private static final String PROMPT_NAME = "summary.txt";
+
+  private static SummaryService instance;
+
+  public static synchronized SummaryService getInstance() {
+    if (instance == null) {
+      instance = new SummaryService();
+    }
+    return instance;
+  }
+
+  private final Set<String> pending = new HashSet<>();
+
+  private SummaryService() {}
+
+  /**
+   * Schedules a participant's conversation to be summarised in the background. Does nothing if a
+   * summary of it is already waiting to run, since that job will pick up the latest turns.
+   *
+   * @param participant who the conversation is with
+   */
+  public void schedule(String participant) {
+    synchronized (pending) {
+      if (!pending.add(participant)) {
+        return;
+      }
+    }
+    // Summaries have their own class of task, limited to one at a time, so they never take a
+    // chat reply's slot; they belong to the whole game rather than the scene being left
+    TaskService.getInstance()
+        .getAppScope()
+        .run(
+            TaskClass.SUMMARY,
+            () -> {
+              synchronized (pending) {
+                pending.remove(participant);
+              }
+              try {
+                summarise(participant);
+              } catch (ApiProxyException | RuntimeException e) {
+                System.err.println("Could not summarise " + participant + ": " + e.getMessage());
+              }
+            });
+  }
+
+  private void summarise(String participant) throws ApiProxyException {
+    ConversationStore store = ConversationStore.getInstance();
+    long version;
+    String previous;
+    String newTurns;
+    synchronized (store) {
+      version = store.getVersion(participant);
+      previous = store.getLatestSummary(participant);
+      newTurns = store.getChatHistorySince(participant, store.getLatestSummaryVersion(participant));
+    }
+    if (version == 0 || newTurns.isEmpty()) {
+      return; // Nothing said, or the summary is already up to date
+    }
+
+    ChatCompletionRequest request =
+        new ChatCompletionRequest(ApiProxyConfig.readConfig())
+            .setN(1)
+            .setModel(Model.GPT_4_1_NANO)
+            .setTemperature(0.2)
+            .setMaxTokens(250)
+            .setCacheable(true); // Identical turns always summarise much the same way
+    request.addMessage(new ChatMessage("system", loadSystemPrompt()));
+    request.addMessage(
+        new ChatMessage(
+            "user",
+            "Conversation with "
+                + participant
+                + ".\n\nSummary so far:\n"
+                + (previous == null ? "(none)" : previous)
+                + "\n\nNew turns:\n"
+                + newTurns));
+    ChatCompletionResult result = request.execute();
+    String summary = result.getChoices().iterator().next().getChatMessage().getContent();
+    if (summary != null && !summary.isBlank()) {
+      // Dropped if the conversation was cleared meanwhile; stale once it gains another turn
+      store.putSummary(participant, version, summary.trim());
+    }
+  }
+
+  private String loadSystemPrompt() {
+    try {
+      return TemplateRegistry.getInstance().getText(PROMPT_NAME);
+    } catch (IllegalArgumentException e) {
+      return "Fold the new turns into the summary and reply with the updated summary only.";
+    }
+  }
+}
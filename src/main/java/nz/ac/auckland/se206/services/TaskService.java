@@ -0,0 +1,380 @@
+package nz.ac.auckland.se206.services;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs the game's background work on virtual threads. Every task belongs to a {@link Scope}: the
+ * app scope lives as long as the game, and each scene gets a scope that is closed when the next
+ * scene is shown, so work a scene queued but never started, such as speech, does not outlive it.
+ * Chat turns outlive the scene that sent them, so they run in the app scope and {@link
+ * ConversationService} decides itself when to drop them.
+ *
+ * <p>Each {@link TaskClass} has its own limit on how many of its tasks run at once; the rest wait
+ * in a queue. Limits can be changed with the system property {@code tasks.<class>.maxConcurrent},
+ * e.g. {@code tasks.chat.maxConcurrent}.
+ */
+public final class TaskService {
+
+  /** Kinds of background work, each with its own concurrency limit. */
+  public enum TaskClass {
+    /** A chat reply from the model. */
+    CHAT(4),
+    /** Text to speech; one at a time so utterances never talk over each other. */
+    SPEECH(1),
+    /** Conversation summaries, which only ever need one worker. */
+    SUMMARY(1),
+    /** Warm-up and prefetch work. */
+    BACKGROUND(4);
+
+    private final int defaultLimit;
+
+    TaskClass(int defaultLimit) {
+      this.defaultLimit = defaultLimit;
+    }
+
+    private int getLimit() {
+      return Integer.getInteger("tasks." + name().toLowerCase() + ".maxConcurrent", defaultLimit);
+    }
+  }
+
+  private static final int QUEUED = 0;
+  private static final int RUNNING = 1;
+  private static final int CANCELLED = 2;
+
+  private static TaskService instance;
+
+  public static synchronized TaskService getInstance() {
+    if (instance == null) {
+      instance = new TaskService();
+    }
+    return instance;
+  }
+
+  /** Closes every scope and stops the executor. Called when the application exits. */
+  public static synchronized void shutdown() {
+    if (instance != null) {
+      instance.close();
+      instance = null;
+    }
+  }
+
+  private final ExecutorService executor =
+      Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name("task-", 0).factory());
+  private final Map<TaskClass, Semaphore> permits = new EnumMap<>(TaskClass.class);
+  private final Map<TaskClass, Metrics> metrics = new EnumMap<>(TaskClass.class);
+  private final Scope appScope = new Scope("app");
+  private Scope sceneScope = new Scope("startup");
+
+  private TaskService() {
+    for (TaskClass taskClass : TaskClass.values()) {
+      permits.put(taskClass, new Semaphore(Math.max(1, taskClass.getLimit())));
+      metrics.put(taskClass, new Metrics());
+    }
+  }
+
+  /**
+   * Returns the scope for work that should finish even if the player changes scene.
+   *
+   * @return the app-wide scope
+   */
+  public Scope getAppScope() {
+    return appScope;
+  }
+
+  /**
+   * Returns the scope of the scene being shown. Work for this scene only should be submitted here,
+   * while the scene is still current, so it is dropped if the player leaves before it starts.
+   *
+   * @return the current scene's scope
+   */
+  public synchronized Scope getSceneScope() {
+    return sceneScope;
+  }
+
+  /**
+   * Closes the current scene's scope and opens one for the next scene. Must be called before the
+   * next scene's controllers are created.
+   *
+   * @param name the name of the next scene, for logging
+   * @return the new scope
+   */
+  public synchronized Scope openSceneScope(String name) {
+    sceneScope.close();
+    sceneScope = new Scope(name);
+    return sceneScope;
+  }
+
+  /**
+   * Returns the metrics for one class of task.
+   *
+   * @param taskClass the class of task
+   * @return its queue and latency metrics
+   */
+  public Metrics getMetrics(TaskClass taskClass) {
+    return metrics.get(taskClass);
+  }
+
+  @Override
+  public String toString() {
+    StringBuilder report = new StringBuilder();
+    for (TaskClass taskClass : TaskClass.values()) {
+      if (report.length() > 0) {
+        report.append("; ");
+      }
+      report.append(taskClass.name().toLowerCase()).append(' ').append(metrics.get(taskClass));
+    }
+    return report.toString();
+  }
+
+  private synchronized void close() {
+    sceneScope.close();
+    appScope.close();
+    executor.shutdown();
+  }
+
+  private <T> void execute(Scope scope, Task<T> task) {
+    Semaphore semaphore = permits.get(task.taskClass);
+    Metrics stats = metrics.get(task.taskClass);
+    task.thread = Thread.currentThread();
+    try {
+      semaphore.acquire();
+    } catch (InterruptedException e) {
+      // Cancelled while waiting for a permit
+      stats.dequeued(task.queuedNanos, false);
+      scope.tasks.remove(task);
+      return;
+    }
+    try {
+      if (task.result.isDone() || !task.state.compareAndSet(QUEUED, RUNNING)) {
+        stats.dequeued(task.queuedNanos, false);
+        return;
+      }
+      stats.dequeued(task.queuedNanos, true);
+      // Cancelling a running task's result interrupts it; its thread ends with the task
+      task.result.whenComplete(
+          (value, error) -> {
+            if (task.result.isCancelled()) {
+              task.thread.interrupt();
+            }
+          });
+      long startNanos = System.nanoTime();
+      T value;
+      try {
+        value = task.callable.call();
+      } catch (Throwable e) {
+        stats.finished(startNanos, false);
+        task.result.completeExceptionally(e);
+        return;
+      }
+      stats.finished(startNanos, true);
+      task.result.complete(value);
+    } finally {
+      semaphore.release();
+      scope.tasks.remove(task);
+    }
+  }
+
+  /**
+   * A group of tasks with a shared lifetime. Closing it cancels every task that has not started;
+   * tasks already running are left to finish, so a reply that is being written to the conversation
+   * is never cut off halfway.
+   */
+  public final class Scope implements AutoCloseable {
+    private final String name;
+    private final Set<Task<?>> tasks = ConcurrentHashMap.newKeySet();
+    private boolean closed;
+
+    private Scope(String name) {
+      this.name = name;
+    }
+
+    /**
+     * Runs a task in the background once its class has a free slot.
+     *
+     * @param taskClass which limit the task counts against
+     * @param callable the work to do
+     * @param <T> the type of the task's result
+     * @return the task's result, cancelled if the scope closes before it starts; cancelling it
+     *     stops the task if it has not started and interrupts it if it has
+     */
+    public <T> CompletableFuture<T> submit(TaskClass taskClass, Callable<T> callable) {
+      Task<T> task = new Task<>(taskClass, callable);
+      Metrics stats = metrics.get(taskClass);
+      synchronized (this) {
+        if (closed) {
+          stats.cancelled.incrementAndGet();
+          task.result.cancel(false);
+          return task.result;
+        }
+        tasks.add(task);
+      }
+      stats.queued();
+      executor.execute(() -> execute(this, task));
+      return task.result;
+    }
+
+    /**
+     * Runs a task with no result in the background once its class has a free slot.
+     *
+     * @param taskClass which limit the task counts against
+     * @param runnable the work to do
+     * @return completes when the task has run, cancelled if the scope closes before it starts
+     */
+    public CompletableFuture<Void> run(TaskClass taskClass, Runnable runnable) {
+      return submit(
+          taskClass,
+          () -> {
+            runnable.run();
+            return null;
+          });
+    }
+
+    public String getName() {
+      return name;
+    }
+
+    public synchronized boolean isClosed() {
+      return closed;
+    }
+
+    /** Cancels every task that has not started yet and refuses new ones. */
+    @Override
+    public void close() {
+      synchronized (this) {
+        if (closed) {
+          return;
+        }
+        closed = true;
+      }
+      int cancelled = 0;
+      for (Task<?> task : tasks) {
+        if (task.state.compareAndSet(QUEUED, CANCELLED)) {
+          cancelled++;
+          task.result.cancel(false);
+          Thread thread = task.thread;
+          if (thread != null) {
+            thread.interrupt(); // Stop it waiting for a permit
+          }
+        }
+      }
+      if (cancelled > 0) {
+        System.out.println("Closed task scope " + name + ", cancelled " + cancelled + " queued");
+      }
+    }
+  }
+
+  /** Queue depth and latency of one class of task. */
+  public static final class Metrics {
+    private final AtomicInteger queueDepth = new AtomicInteger();
+    private final AtomicInteger peakQueueDepth = new AtomicInteger();
+    private final AtomicLong completed = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final AtomicLong cancelled = new AtomicLong();
+    private final AtomicLong waitNanos = new AtomicLong();
+    private final AtomicLong runNanos = new AtomicLong();
+
+    private Metrics() {}
+
+    public int getQueueDepth() {
+      return queueDepth.get();
+    }
+
+    public int getPeakQueueDepth() {
+      return peakQueueDepth.get();
+    }
+
+    public long getCompleted() {
+      return completed.get();
+    }
+
+    public long getFailed() {
+      return failed.get();
+    }
+
+    public long getCancelled() {
+      return cancelled.get();
+    }
+
+    /**
+     * Returns how long tasks that ran waited for a free slot, on average.
+     *
+     * @return the mean queue wait in milliseconds
+     */
+    public long getMeanWaitMs() {
+      long started = completed.get() + failed.get();
+      return started == 0 ? 0 : TimeUnit.NANOSECONDS.toMillis(waitNanos.get() / started);
+    }
+
+    /**
+     * Returns how long tasks took to run once started, on average.
+     *
+     * @return the mean run time in milliseconds
+     */
+    public long getMeanRunMs() {
+      long started = completed.get() + failed.get();
+      return started == 0 ? 0 : TimeUnit.NANOSECONDS.toMillis(runNanos.get() / started);
+    }
+
+    @Override
+    public String toString() {
+      return completed.get()
+          + " completed, "
+          + failed.get()
+          + " failed, "
+          + cancelled.get()
+          + " cancelled, queue "
+          + queueDepth.get()
+          + " (peak "
+          + peakQueueDepth.get()
+          + "), mean wait "
+          + getMeanWaitMs()
+          + " ms, mean run "
+          + getMeanRunMs()
+          + " ms";
+    }
+
+    private void queued() {
+      peakQueueDepth.accumulateAndGet(queueDepth.incrementAndGet(), Math::max);
+    }
+
+    private void dequeued(long queuedNanos, boolean started) {
+      queueDepth.decrementAndGet();
+      if (started) {
+        waitNanos.addAndGet(System.nanoTime() - queuedNanos);
+      } else {
+        cancelled.incrementAndGet();
+      }
+    }
+
+    private void finished(long startNanos, boolean succeeded) {
+      runNanos.addAndGet(System.nanoTime() - startNanos);
+      (succeeded ? completed : failed).incrementAndGet();
+    }
+  }
+
+  /** One submitted task and how far it has got. */
+  private static final class Task<T> {
+    private final TaskClass taskClass;
+    private final Callable<T> callable;
+    private final CompletableFuture<T> result = new CompletableFuture<>();
+    private final AtomicInteger state = new AtomicInteger(QUEUED);
+    private final long queuedNanos = System.nanoTime();
+    private volatile Thread thread;
+
+    private Task(TaskClass taskClass, Callable<T> callable) {
+      this.taskClass = taskClass;
+      this.callable = callable;
+    }
+  }
+}
@@ -0,0 +1,292 @@
+package nz.ac.auckland.se206.services;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Inverted index over conversation turns, ranked with BM25. Turns are added as they happen, so a
+ * question like "what did I say to the human witness about the logo?" can be answered with the few
+ * turns that match it instead of every conversation in full.
+ *
+ * <p>The participant's name is indexed along with each turn, so naming a participant in the query
+ * favours turns from that conversation. The index is not thread-safe; {@link ConversationStore}
+ * only uses it while holding its own lock.
+ */
+public final class TranscriptIndex {
+
+  private static final double K1 = 1.2;
+  private static final double B = 0.75;
+
+  private static final Set<String> STOP_WORDS =
+      Set.of(
+          "a", "about", "an", "and", "any", "are", "as", "at", "be", "did", "do", "does", "for",
+          "from", "had", "has", "have", "he", "her", "him", "his", "i", "in", "is", "it", "its",
+          "me", "my", "of", "on", "or", "she", "so", "that", "the", "their", "them", "they",
+          "this", "to", "was", "we", "were", "what", "when", "where", "which", "who", "why",
+          "with", "you", "your");
+
+  /** A turn that matched a query. */
+  public static final class Hit {
+    private final long sequence;
+    private final String participant;
+    private final String role;
+    private final String content;
+    private final double score;
+
+    private Hit(long sequence, String participant, String role, String content, double score) {
+      this.sequence = sequence;
+      this.participant = participant;
+      this.role = role;
+      this.content = content;
+      this.score = score;
+    }
+
+    public long getSequence() {
+      return sequence;
+    }
+
+    public String getParticipant() {
+      return participant;
+    }
+
+    public String getRole() {
+      return role;
+    }
+
+    public String getContent() {
+      return content;
+    }
+
+    public double getScore() {
+      return score;
+    }
+  }
+
+  /** Chooses which turns a search may return. */
+  public interface Filter {
+    /**
+     * Returns whether a turn may be returned.
+     *
+     * @param sequence the turn's sequence number
+     * @param participant who the conversation is with
+     * @return true to keep the turn
+     */
+    boolean accept(long sequence, String participant);
+  }
+
+  private final Map<String, Postings> postings = new HashMap<>();
+
+  // Per-turn columns, indexed by document id
+  private long[] sequences = new long[64];
+  private int[] lengths = new int[64];
+  private boolean[] removed = new boolean[64];
+  private String[] participants = new String[64];
+  private String[] roles = new String[64];
+  private String[] contents = new String[64];
+  private int documentCount;
+  private int liveCount;
+  private long totalLength;
+
+  // Scratch space for scoring, reused between queries
+  private double[] scores = new double[64];
+  private int[] touched = new int[64];
+
+  /**
+   * Indexes one turn.
+   *
+   * @param sequence the turn's sequence number, returned with matching hits
+   * @param participant who the conversation is with
+   * @param role the message role
+   * @param content what was said
+   */
+  public void add(long sequence, String participant, String role, String content) {
+    int doc = documentCount;
+    if (doc == sequences.length) {
+      grow(doc * 2);
+    }
+
+    Map<String, Integer> frequencies = new HashMap<>();
+    int length = countTerms(participant, frequencies) + countTerms(content, frequencies);
+    for (Map.Entry<String, Integer> term : frequencies.entrySet()) {
+      postings.computeIfAbsent(term.getKey(), key -> new Postings()).add(doc, term.getValue());
+    }
+
+    sequences[doc] = sequence;
+    lengths[doc] = length;
+    participants[doc] = participant;
+    roles[doc] = role;
+    contents[doc] = content;
+    documentCount++;
+    liveCount++;
+    totalLength += length;
+  }
+
+  /**
+   * Drops every turn of one participant's conversation from future results.
+   *
+   * @param participant whose turns to drop
+   */
+  public void remove(String participant) {
+    for (int doc = 0; doc < documentCount; doc++) {
+      if (!removed[doc] && participants[doc].equals(participant)) {
+        removed[doc] = true;
+        liveCount--;
+        totalLength -= lengths[doc];
+      }
+    }
+  }
+
+  /** Drops every turn. */
+  public void clear() {
+    postings.clear();
+    Arrays.fill(removed, 0, documentCount, false);
+    Arrays.fill(participants, 0, documentCount, null);
+    Arrays.fill(roles, 0, documentCount, null);
+    Arrays.fill(contents, 0, documentCount, null);
+    documentCount = 0;
+    liveCount = 0;
+    totalLength = 0;
+  }
+
+  public int size() {
+    return liveCount;
+  }
+
+  /**
+   * Returns the turns that best match a query, best first.
+   *
+   * @param query the text to match, usually the player's message
+   * @param limit the most turns to return
+   * @param filter which turns may be returned, or null for all of them
+   * @return up to {@code limit} matching turns
+   */
+  public List<Hit> search(String query, int limit, Filter filter) {
+    if (liveCount == 0 || limit <= 0) {
+      return new ArrayList<>();
+    }
+    Map<String, Integer> terms = new HashMap<>();
+    countTerms(query, terms);
+
+    double averageLength = (double) totalLength / liveCount;
+    int touchedCount = 0;
+    for (String term : terms.keySet()) {
+      Postings list = postings.get(term);
+      if (list == null) {
+        continue;
+      }
+      // Document frequencies still count removed turns; they only drop out on a full clear
+      double idf = Math.log(1 + (liveCount - list.size + 0.5) / (list.size + 0.5));
+      for (int i = 0; i < list.size; i++) {
+        int doc = list.docs[i];
+        if (removed[doc]) {
+          continue;
+        }
+        if (scores[doc] == 0) {
+          touched[touchedCount++] = doc;
+        }
+        int tf = list.frequencies[i];
+        double norm = K1 * (1 - B + B * lengths[doc] / averageLength);
+        scores[doc] += idf * tf * (K1 + 1) / (tf + norm);
+      }
+    }
+
+    // Keep the best turns in a small array sorted by score, best first
+    int[] best = new int[Math.min(limit, touchedCount)];
+    int found = 0;
+    for (int i = 0; i < touchedCount; i++) {
+      int doc = touched[i];
+      double score = scores[doc];
+      if ((found == best.length && score <= scores[best[found - 1]])
+          || (filter != null && !filter.accept(sequences[doc], participants[doc]))) {
+        continue;
+      }
+      int slot = found < best.length ? found++ : found - 1;
+      while (slot > 0 && scores[best[slot - 1]] < score) {
+        best[slot] = best[slot - 1];
+        slot--;
+      }
+      best[slot] = doc;
+    }
+
+    List<Hit> hits = new ArrayList<>(found);
+    for (int i = 0; i < found; i++) {
+      int doc = best[i];
+      hits.add(new Hit(sequences[doc], participants[doc], roles[doc], contents[doc], scores[doc]));
+    }
+    for (int i = 0; i < touchedCount; i++) {
+      scores[touched[i]] = 0;
+    }
+    return hits;
+  }
+
+  private void grow(int capacity) {
+    sequences = Arrays.copyOf(sequences, capacity);
+    lengths = Arrays.copyOf(lengths, capacity);
+    removed = Arrays.copyOf(removed, capacity);
+    participants = Arrays.copyOf(participants, capacity);
+    roles = Arrays.copyOf(roles, capacity);
+    contents = Arrays.copyOf(contents, capacity);
+    scores = Arrays.copyOf(scores, capacity);
+    touched = Arrays.copyOf(touched, capacity);
+  }
+
+  /** Splits text into lower-case terms, skipping stop words, and counts each one. */
+  private static int countTerms(String text, Map<String, Integer> frequencies) {
+    if (text == null) {
+      return 0;
+    }
+    int count = 0;
+    int length = text.length();
+    int start = -1;
+    for (int i = 0; i <= length; i++) {
+      boolean wordChar = i < length && Character.isLetterOrDigit(text.charAt(i));
+      if (wordChar && start < 0) {
+        start = i;
+      } else if (!wordChar && start >= 0) {
+        String term = normalise(text.substring(start, i));
+        if (term != null) {
+          frequencies.merge(term, 1, Integer::sum);
+          count++;
+        }
+        start = -1;
+      }
+    }
+    return count;
+  }
+
+  private static String normalise(String word) {
+    if (word.length() < 2) {
+      return null;
+    }
+    String term = word.toLowerCase();
+    if (STOP_WORDS.contains(term)) {
+      return null;
+    }
+    // Fold simple plurals so "logos" finds "logo", without touching words like "witness"
+    if (term.length() > 3 && term.endsWith("s") && !term.endsWith("ss")) {
+      term = term.substring(0, term.length() - 1);
+    }
+    return term;
+  }
+
+  /** The turns containing one term, with how often it appears in each. */
+  private static final class Postings {
+    private int[] docs = new int[4];
+    private int[] frequencies = new int[4];
+    private int size;
+
+    private void add(int doc, int frequency) {
+      if (size == docs.length) {
+        docs = Arrays.copyOf(docs, size * 2);
+        frequencies = Arrays.copyOf(frequencies, size * 2);
+      }
+      docs[size] = doc;
+      frequencies[size] = frequency;
+      size++;
+    }
+  }
+}
@@ -0,0 +1,540 @@
+package nz.ac.auckland.se206.services;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only log of every chat turn in the current game. Each record is written as its length, a
+ * CRC32 of its payload and the payload itself, so multi-line messages survive intact and a record
+ * torn by a crash is detected and cut off when the log is next opened.
+ *
+ * <p>Appends only queue the record; a background writer drains the queue in batches and forces
+ * each batch to disk once (group commit), so the FX thread never waits on the disk. An in-memory
+ * index of record offsets gives random access to any turn.
+ *
+ * <p>A batch that cannot be written is retried a few times. If it still fails the log stops
+ * writing, so no later record lands beyond the hole, and {@link #flush()} and {@link #read(int)}
+ * report the failure for every record from that batch on.
+ *
+ * <p>The log lives at {@code target/transcript.log} unless the {@code transcript.path} system
+ * property says otherwise.
+ */
+public final class TranscriptLog {
+
+  private static final byte[] MAGIC = {'T', 'L', 'O', 'G', 0, 0, 0, 1};
+  private static final int RECORD_HEADER_BYTES = Integer.BYTES * 2;
+  // A type byte and three string lengths; anything shorter, such as a zeroed tail, is not a record
+  private static final int MIN_RECORD_BYTES = 1 + Integer.BYTES * 3;
+  private static final int MAX_RECORD_BYTES = 16 * 1024 * 1024;
+  private static final int MAX_BATCH = 256;
+  private static final int WRITE_ATTEMPTS = 3;
+  private static final long RETRY_DELAY_MS = 50;
+
+  private static final byte TYPE_TURN = 0;
+  private static final byte TYPE_CLEAR = 1;
+
+  private static TranscriptLog instance;
+
+  /**
+   * Returns the game's transcript log, opening and recovering it on first use.
+   *
+   * @return the shared log
+   * @throws IOException if the log cannot be opened
+   */
+  public static synchronized TranscriptLog getInstance() throws IOException {
+    if (instance == null) {
+      instance =
+          new TranscriptLog(
+              Paths.get(System.getProperty("transcript.path", "target/transcript.log")));
+    }
+    return instance;
+  }
+
+  /** Writes out everything queued and closes the shared log. */
+  public static synchronized void shutdown() {
+    if (instance != null) {
+      instance.close();
+      instance = null;
+    }
+  }
+
+  /** One record read back from the log. */
+  public static final class Turn {
+    private final String participant;
+    private final String role;
+    private final String content;
+    private final boolean clear;
+
+    private Turn(String participant, String role, String content, boolean clear) {
+      this.participant = participant;
+      this.role = role;
+      this.content = content;
+      this.clear = clear;
+    }
+
+    public String getParticipant() {
+      return participant;
+    }
+
+    public String getRole() {
+      return role;
+    }
+
+    public String getContent() {
+      return content;
+    }
+
+    /**
+     * Returns whether this record marks the participant's conversation as cleared rather than
+     * being a message.
+     *
+     * @return true for a clear marker
+     */
+    public boolean isClear() {
+      return clear;
+    }
+  }
+
+  private final Path file;
+  private final FileChannel channel;
+  private final BlockingQueue<Pending> queue = new LinkedBlockingQueue<>();
+  private final Thread writer;
+
+  // Guarded by this: the offset of every record, and where the next one goes
+  private long[] offsets = new long[256];
+  private int recordCount;
+  private long nextOffset;
+  private int writtenCount;
+  private boolean closed;
+  // Set once a batch could not be written; nothing is written after it
+  private IOException failure;
+
+  /**
+   * Opens a log, creating it if needed. A damaged tail left by a crash is truncated at the last
+   * intact record.
+   *
+   * @param file where the log is stored
+   * @throws IOException if the file cannot be opened or repaired
+   */
+  public TranscriptLog(Path file) throws IOException {
+    this(file, open(file));
+  }
+
+  /**
+   * Opens a log over a channel the caller has already opened on {@code file}.
+   *
+   * @param file where the log is stored
+   * @param channel a readable, writable channel on the file
+   * @throws IOException if the log cannot be repaired
+   */
+  TranscriptLog(Path file, FileChannel channel) throws IOException {
+    this.file = file;
+    this.channel = channel;
+    recover();
+
+    writer = new Thread(this::runWriter, "transcript-writer");
+    writer.setDaemon(true);
+    writer.start();
+  }
+
+  public Path getFile() {
+    return file;
+  }
+
+  /**
+   * Queues a chat turn to be written.
+   *
+   * @param participant who the conversation is with
+   * @param role the message role
+   * @param content the message text
+   * @return the turn's index in the log
+   */
+  public int append(String participant, String role, String content) {
+    return enqueue(TYPE_TURN, participant, role, content);
+  }
+
+  /**
+   * Queues a marker that clears one participant's conversation. Earlier records stay in the log.
+   *
+   * @param participant whose conversation to clear
+   * @return the marker's index in the log
+   */
+  public int clear(String participant) {
+    return enqueue(TYPE_CLEAR, participant, "", "");
+  }
+
+  /**
+   * Empties the log for a new game, once everything queued has been written. A log that failed to
+   * write starts writing again from the empty file.
+   *
+   * @throws IOException if the file cannot be truncated
+   */
+  public synchronized void clearAll() throws IOException {
+    try {
+      flush();
+    } catch (IOException e) {
+      if (failure == null) {
+        throw e;
+      }
+    }
+    channel.truncate(MAGIC.length);
+    channel.force(true);
+    recordCount = 0;
+    writtenCount = 0;
+    nextOffset = MAGIC.length;
+    failure = null;
+  }
+
+  /**
+   * Returns the number of records, including ones still queued.
+   *
+   * @return the record count
+   */
+  public synchronized int size() {
+    return recordCount;
+  }
+
+  /**
+   * Reads one record, waiting for it to be written if it is still queued.
+   *
+   * @param index the record's index in the log
+   * @return the record
+   * @throws IOException if it cannot be read, fails its checksum or was never written
+   */
+  public Turn read(int index) throws IOException {
+    long offset;
+    synchronized (this) {
+      if (index < 0 || index >= recordCount) {
+        throw new IndexOutOfBoundsException("No turn " + index + " in a log of " + recordCount);
+      }
+      awaitWritten(index + 1);
+      offset = offsets[index];
+    }
+
+    ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER_BYTES);
+    readFully(header, offset);
+    header.flip();
+    int length = header.getInt();
+    int crc = header.getInt();
+    ByteBuffer payload = ByteBuffer.allocate(length);
+    readFully(payload, offset + RECORD_HEADER_BYTES);
+    if (crc32(payload.array(), length) != crc) {
+      throw new IOException("Transcript record " + index + " is corrupt");
+    }
+    return decode(payload.array());
+  }
+
+  /**
+   * Reads every record in order.
+   *
+   * @return the records
+   * @throws IOException if a record cannot be read
+   */
+  public List<Turn> readAll() throws IOException {
+    int count = size();
+    List<Turn> turns = new ArrayList<>(count);
+    for (int i = 0; i < count; i++) {
+      turns.add(read(i));
+    }
+    return turns;
+  }
+
+  /**
+   * Blocks until every record queued so far is on disk.
+   *
+   * @throws IOException if the log has been closed or a record could not be written
+   */
+  public synchronized void flush() throws IOException {
+    awaitWritten(recordCount);
+  }
+
+  private synchronized int enqueue(byte type, String participant, String role, String content) {
+    if (closed) {
+      throw new IllegalStateException("Transcript log is closed");
+    }
+    byte[] record = encode(type, participant, role, content);
+    if (recordCount == offsets.length) {
+      offsets = Arrays.copyOf(offsets, offsets.length * 2);
+    }
+    int index = recordCount++;
+    offsets[index] = nextOffset;
+    if (failure == null) {
+      queue.add(new Pending(nextOffset, record));
+    }
+    nextOffset += record.length;
+    return index;
+  }
+
+  private void runWriter() {
+    List<Pending> batch = new ArrayList<>();
+    while (true) {
+      try {
+        batch.add(queue.take());
+      } catch (InterruptedException e) {
+        return;
+      }
+      queue.drainTo(batch, MAX_BATCH - 1);
+      synchronized (this) {
+        if (failure != null) {
+          batch.clear();
+          continue;
+        }
+      }
+
+      // Records are queued in file order, so a batch is one contiguous write and one sync
+      int size = 0;
+      for (Pending pending : batch) {
+        size += pending.record.length;
+      }
+      ByteBuffer buffer = ByteBuffer.allocate(size);
+      for (Pending pending : batch) {
+        buffer.put(pending.record);
+      }
+      buffer.flip();
+      IOException error;
+      try {
+        error = writeBatch(buffer, batch.get(0).offset);
+      } catch (InterruptedException e) {
+        return;
+      }
+
+      synchronized (this) {
+        if (error == null) {
+          writtenCount += batch.size();
+        } else {
+          System.err.println("Could not write chat transcript: " + error.getMessage());
+          failure = error;
+          queue.clear();
+        }
+        notifyAll();
+      }
+      batch.clear();
+    }
+  }
+
+  /**
+   * Writes one batch at its position and forces it to disk, retrying a failed attempt from the
+   * start of the batch.
+   *
+   * @return null once the batch is on disk, or the last error if every attempt failed
+   */
+  private IOException writeBatch(ByteBuffer buffer, long offset) throws InterruptedException {
+    IOException error = null;
+    for (int attempt = 0; attempt < WRITE_ATTEMPTS; attempt++) {
+      if (attempt > 0) {
+        Thread.sleep(RETRY_DELAY_MS << (attempt - 1));
+      }
+      buffer.rewind();
+      try {
+        long position = offset;
+        while (buffer.hasRemaining()) {
+          position += channel.write(buffer, position);
+        }
+        channel.force(false);
+        return null;
+      } catch (IOException e) {
+        error = e;
+      }
+    }
+    return error;
+  }
+
+  private void awaitWritten(int count) throws IOException {
+    boolean interrupted = false;
+    while (writtenCount < count) {
+      if (failure != null) {
+        throw new IOException("Transcript record was never written", failure);
+      }
+      if (closed && !writer.isAlive()) {
+        throw new IOException("Transcript log closed before the record was written");
+      }
+      try {
+        wait(100);
+      } catch (InterruptedException e) {
+        interrupted = true;
+      }
+    }
+    if (interrupted) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  /**
+   * Validates every record, rebuilds the index and cuts off anything after the last good one. A
+   * record must be long enough to hold its fields, pass its checksum and decode, so a zero-filled
+   * tail left by a crash (whose zero length and checksum would otherwise agree) is dropped too.
+   */
+  private void recover() throws IOException {
+    long size = channel.size();
+    if (size < MAGIC.length || !hasMagic()) {
+      if (size > 0) {
+        System.err.println("Transcript log " + file + " is not a transcript; starting a new one");
+      }
+      channel.truncate(0);
+      channel.write(ByteBuffer.wrap(MAGIC), 0);
+      channel.force(true);
+      nextOffset = MAGIC.length;
+      return;
+    }
+
+    long position = MAGIC.length;
+    ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER_BYTES);
+    while (position + RECORD_HEADER_BYTES <= size) {
+      header.clear();
+      readFully(header, position);
+      header.flip();
+      int length = header.getInt();
+      int crc = header.getInt();
+      if (length < MIN_RECORD_BYTES
+          || length > MAX_RECORD_BYTES
+          || position + RECORD_HEADER_BYTES + length > size) {
+        break;
+      }
+      ByteBuffer payload = ByteBuffer.allocate(length);
+      readFully(payload, position + RECORD_HEADER_BYTES);
+      if (crc32(payload.array(), length) != crc) {
+        break;
+      }
+      try {
+        decode(payload.array());
+      } catch (IOException e) {
+        break;
+      }
+      if (recordCount == offsets.length) {
+        offsets = Arrays.copyOf(offsets, offsets.length * 2);
+      }
+      offsets[recordCount++] = position;
+      position += RECORD_HEADER_BYTES + length;
+    }
+
+    if (position < size) {
+      System.err.println(
+          "Transcript log "
+              + file
+              + " had a damaged tail; dropped "
+              + (size - position)
+              + " bytes");
+      channel.truncate(position);
+      channel.force(true);
+    }
+    writtenCount = recordCount;
+    nextOffset = position;
+  }
+
+  private static FileChannel open(Path file) throws IOException {
+    Path parent = file.toAbsolutePath().getParent();
+    if (parent != null) {
+      Files.createDirectories(parent);
+    }
+    return FileChannel.open(
+        file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+  }
+
+  private boolean hasMagic() throws IOException {
+    ByteBuffer magic = ByteBuffer.allocate(MAGIC.length);
+    readFully(magic, 0);
+    return Arrays.equals(magic.array(), MAGIC);
+  }
+
+  private void readFully(ByteBuffer buffer, long position) throws IOException {
+    while (buffer.hasRemaining()) {
+      int read = channel.read(buffer, position + buffer.position());
+      if (read < 0) {
+        throw new IOException("Unexpected end of transcript log");
+      }
+    }
+  }
+
+  synchronized void close() {
+    try {
+      flush();
+    } catch (IOException e) {
+      System.err.println("Could not flush chat transcript: " + e.getMessage());
+    }
+    closed = true;
+    writer.interrupt();
+    try {
+      channel.close();
+    } catch (IOException e) {
+      System.err.println("Could not close chat transcript: " + e.getMessage());
+    }
+  }
+
+  private static byte[] encode(byte type, String participant, String role, String content) {
+    byte[] participantBytes = participant.getBytes(StandardCharsets.UTF_8);
+    byte[] roleBytes = role.getBytes(StandardCharsets.UTF_8);
+    byte[] contentBytes = (content == null ? "" : content).getBytes(StandardCharsets.UTF_8);
+    int length =
+        1
+            + Integer.BYTES * 3
+            + participantBytes.length
+            + roleBytes.length
+            + contentBytes.length;
+
+    ByteBuffer buffer = ByteBuffer.allocate(RECORD_HEADER_BYTES + length);
+    buffer.putInt(length).putInt(0); // CRC filled in below
+    buffer.put(type);
+    buffer.putInt(participantBytes.length).put(participantBytes);
+    buffer.putInt(roleBytes.length).put(roleBytes);
+    buffer.putInt(contentBytes.length).put(contentBytes);
+
+    CRC32 crc = new CRC32();
+    crc.update(buffer.array(), RECORD_HEADER_BYTES, length);
+    buffer.putInt(Integer.BYTES, (int) crc.getValue());
+    return buffer.array();
+  }
+
+  private static Turn decode(byte[] payload) throws IOException {
+    ByteBuffer buffer = ByteBuffer.wrap(payload);
+    if (buffer.remaining() < MIN_RECORD_BYTES) {
+      throw new IOException("Transcript record is too short");
+    }
+    byte type = buffer.get();
+    String participant = readString(buffer);
+    String role = readString(buffer);
+    String content = readString(buffer);
+    if (buffer.hasRemaining()) {
+      throw new IOException("Transcript record has trailing bytes");
+    }
+    return new Turn(participant, role, content, type == TYPE_CLEAR);
+  }
+
+  private static String readString(ByteBuffer buffer) throws IOException {
+    int length = buffer.remaining() < Integer.BYTES ? -1 : buffer.getInt();
+    if (length < 0 || length > buffer.remaining()) {
+      throw new IOException("Transcript record is malformed");
+    }
+    byte[] bytes = new byte[length];
+    buffer.get(bytes);
+    return new String(bytes, StandardCharsets.UTF_8);
+  }
+
+  private static int crc32(byte[] bytes, int length) {
+    CRC32 crc = new CRC32();
+    crc.update(bytes, 0, length);
+    return (int) crc.getValue();
+  }
+
+  /** A record waiting for the writer. */
+  private static final class Pending {
+    private final long offset;
+    private final byte[] record;
+
+    private Pending(long offset, byte[] record) {
+      this.offset = offset;
+      this.record = record;
+    }
+  }
+}
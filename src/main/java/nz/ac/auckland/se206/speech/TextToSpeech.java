@@ -3,16 +3,17 @@ package nz.ac.auckland.se206.speech;
 import java.io.BufferedInputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.net.URI;
-import javafx.concurrent.Task;
 import javazoom.jl.decoder.JavaLayerException;
 import javazoom.jl.player.Player;
 import nz.ac.auckland.apiproxy.config.ApiProxyConfig;
 import nz.ac.auckland.apiproxy.exceptions.ApiProxyException;
+import nz.ac.auckland.apiproxy.service.HttpTransport;
 import nz.ac.auckland.apiproxy.tts.TextToSpeechRequest;
 import nz.ac.auckland.apiproxy.tts.TextToSpeechRequest.Provider;
 import nz.ac.auckland.apiproxy.tts.TextToSpeechRequest.Voice;
 import nz.ac.auckland.apiproxy.tts.TextToSpeechResult;
+import nz.ac.auckland.se206.services.TaskService;
+import nz.ac.auckland.se206.services.TaskService.TaskClass;
 
 /** A utility class for converting text to speech using the specified API proxy. */
 public class TextToSpeech {
@@ -28,38 +29,35 @@ public class TextToSpeech {
       throw new IllegalArgumentException("Text should not be null or empty");
     }
 
-    Task<Void> backgroundTask =
-        new Task<>() {
-          @Override
-          protected Void call() {
-            try {
-              ApiProxyConfig config = ApiProxyConfig.readConfig();
-              Provider provider = Provider.GOOGLE;
-              Voice voice = Voice.GOOGLE_EN_US_STANDARD_H;
-
-              TextToSpeechRequest ttsRequest = new TextToSpeechRequest(config);
-              ttsRequest.setText(text).setProvider(provider).setVoice(voice);
-
-              TextToSpeechResult ttsResult = ttsRequest.execute();
-              String audioUrl = ttsResult.getAudioUrl();
-
-              try (InputStream inputStream =
-                  new BufferedInputStream(URI.create(audioUrl).toURL().openStream())) {
-                Player player = new Player(inputStream);
-                player.play();
-              } catch (JavaLayerException | IOException e) {
+    // Speech tasks run one at a time, so utterances queue up instead of talking over each other.
+    // They belong to the current scene, so lines still queued when the player leaves are dropped
+    TaskService.getInstance()
+        .getSceneScope()
+        .run(
+            TaskClass.SPEECH,
+            () -> {
+              try {
+                ApiProxyConfig config = ApiProxyConfig.readConfig();
+                Provider provider = Provider.GOOGLE;
+                Voice voice = Voice.GOOGLE_EN_US_STANDARD_H;
+
+                TextToSpeechRequest ttsRequest = new TextToSpeechRequest(config);
+                ttsRequest.setText(text).setProvider(provider).setVoice(voice);
+
+                TextToSpeechResult ttsResult = ttsRequest.execute();
+                String audioUrl = ttsResult.getAudioUrl();
+
+                try (InputStream inputStream =
+                    new BufferedInputStream(HttpTransport.getInstance().openStream(audioUrl))) {
+                  Player player = new Player(inputStream);
+                  player.play();
+                } catch (JavaLayerException | IOException e) {
+                  e.printStackTrace();
+                }
+
+              } catch (ApiProxyException e) {
                 e.printStackTrace();
               }
-
-            } catch (ApiProxyException e) {
-              e.printStackTrace();
-            }
-            return null;
-          }
-        };
-
-    Thread backgroundThread = new Thread(backgroundTask);
-    backgroundThread.setDaemon(true); // Ensure the thread does not prevent JVM shutdown
-    backgroundThread.start();
+            });
   }
 }
@@ -1,53 +1,41 @@
 package nz.ac.auckland.se206.utils;
 
-import java.io.IOException;
-import java.nio.charset.StandardCharsets;
-import java.nio.file.Files;
-import java.nio.file.Paths;
-import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import nz.ac.auckland.apiproxy.chat.openai.ChatCompletionRequest;
 import nz.ac.auckland.apiproxy.chat.openai.ChatMessage;
+import nz.ac.auckland.se206.services.ConversationStore;
 
 /**
  * Utility class for accessing chat histories across different controllers. Allows AI participants
- * to reference conversations from other participants.
+ * to reference conversations from other participants. The conversations themselves are kept by
+ * {@link ConversationStore}.
  */
 public class ChatHistoryUtil {
 
+  private static final int RELEVANT_TURNS = 4;
+  private static final String NEW_TURNS_HEADER = "\n\n[NEW IN OTHER CONVERSATIONS:";
+
+  /** Explains how to read the conversation excerpts attached to user messages. */
+  public static final String CONTEXT_PREAMBLE =
+      "[CONVERSATION HISTORY REFERENCE: The user also speaks to other participants. New turns from"
+          + " those conversations are attached to the user's messages, each in a section headed"
+          + " '--- CONVERSATION WITH [PARTICIPANT] ---', and together they make up the full"
+          + " history of each conversation. A conversation may instead be given as a summary,"
+          + " headed '--- SUMMARY OF CONVERSATION WITH [PARTICIPANT] ---'. Earlier turns that match"
+          + " the user's question may be attached again under 'RELEVANT EARLIER TURNS'. When asked"
+          + " 'what did I say to [PARTICIPANT]', look only in that participant's turns for"
+          + " messages starting with 'USER (to PARTICIPANT):'. Do NOT mix up different"
+          + " participants' conversations, and do not reference other participants when"
+          + " answering about a specific one.]";
+
   /**
-   * Gets all available chat histories from the target directory.
+   * Gets all available chat histories.
    *
-   * @return Map where key is participant name and value is their chat history as a string
+   * @return Map where key is participant name and value is their formatted chat history
    */
   public static Map<String, String> getAllChatHistories() {
-    Map<String, String> allHistories = new HashMap<>();
-
-    // Define all possible chat history files
-    String[] participants = {"AI-Defendant", "GREGOR", "K2", "KALANI"};
-
-    // Load participant chat histories (format: target/chat_history_{participant}.txt)
-    for (String participant : participants) {
-      String filename = "target/chat_history_" + participant + ".txt";
-      String history = loadChatHistoryFile(filename);
-      if (!history.isEmpty()) {
-        allHistories.put(participant, history);
-      }
-    }
-
-    // Load AI witness history (format: target/chat_history_aiwitness.txt)
-    String aiWitnessHistory = loadChatHistoryFile("target/chat_history_aiwitness.txt");
-    if (!aiWitnessHistory.isEmpty()) {
-      allHistories.put("AI-Witness", aiWitnessHistory);
-    }
-
-    // Load human witness history (format: target/humanWitness_chatHistory.txt)
-    String humanWitnessHistory = loadChatHistoryFile("target/humanWitness_chatHistory.txt");
-    if (!humanWitnessHistory.isEmpty()) {
-      allHistories.put("Human-Witness", humanWitnessHistory);
-    }
-
-    return allHistories;
+    return ConversationStore.getInstance().getAllChatHistories();
   }
 
   /**
@@ -57,113 +45,7 @@ public class ChatHistoryUtil {
    * @return Formatted string containing all other participants' chat histories
    */
   public static String getOtherChatHistories(String currentParticipant) {
-    Map<String, String> allHistories = getAllChatHistories();
-    StringBuilder othersHistory = new StringBuilder();
-
-    for (Map.Entry<String, String> entry : allHistories.entrySet()) {
-      String participant = entry.getKey();
-      String history = entry.getValue();
-
-      // Skip if this is the current participant
-      if (participant.equalsIgnoreCase(currentParticipant)
-          || participant.contains(currentParticipant.toUpperCase())
-          || currentParticipant.toUpperCase().contains(participant.toUpperCase())) {
-        continue;
-      }
-
-      if (!history.isEmpty()) {
-        othersHistory
-            .append("--- CONVERSATION WITH ")
-            .append(participant.toUpperCase())
-            .append(" ---\n");
-
-        // Parse and reformat the conversation to make roles clear
-        String formattedHistory = formatConversationHistory(history, participant);
-        othersHistory.append(formattedHistory);
-
-        othersHistory
-            .append("--- END OF ")
-            .append(participant.toUpperCase())
-            .append(" CONVERSATION ---\n\n");
-      }
-    }
-
-    return othersHistory.toString();
-  }
-
-  /**
-   * Formats a conversation history to make it clear who said what to whom.
-   *
-   * @param rawHistory The raw chat history from file
-   * @param participantName The name of the participant
-   * @return Formatted conversation with clear speaker identification
-   */
-  private static String formatConversationHistory(String rawHistory, String participantName) {
-    StringBuilder formatted = new StringBuilder();
-    String[] lines = rawHistory.split("\n");
-
-    for (String line : lines) {
-      if (line.trim().isEmpty()) {
-        continue;
-      }
-
-      if (line.startsWith("user: ")) {
-        String userMessage = line.substring(6); // Remove "user: " prefix
-        formatted
-            .append(">> USER (to ")
-            .append(participantName)
-            .append("): ")
-            .append(userMessage)
-            .append("\n");
-      } else if (line.startsWith("assistant: ")) {
-        String assistantMessage = line.substring(11); // Remove "assistant: " prefix
-        formatted
-            .append(">> ")
-            .append(participantName)
-            .append(" (reply): ")
-            .append(assistantMessage)
-            .append("\n");
-      } else if (line.startsWith("[You]: ")) {
-        // Handle Human Witness format
-        String userMessage = line.substring(7); // Remove "[You]: " prefix
-        formatted
-            .append(">> USER (to ")
-            .append(participantName)
-            .append("): ")
-            .append(userMessage)
-            .append("\n");
-      } else if (line.startsWith("Human Witness: ")) {
-        // Handle Human Witness format
-        String assistantMessage = line.substring(15); // Remove "Human Witness: " prefix
-        formatted
-            .append(">> ")
-            .append(participantName)
-            .append(" (reply): ")
-            .append(assistantMessage)
-            .append("\n");
-      } else if (line.contains(": ")) {
-        // Handle any other role-based format
-        int colonIndex = line.indexOf(": ");
-        String role = line.substring(0, colonIndex);
-        String message = line.substring(colonIndex + 2);
-
-        if (role.equalsIgnoreCase("user") || role.contains("You")) {
-          formatted
-              .append("USER (to ")
-              .append(participantName)
-              .append("): ")
-              .append(message)
-              .append("\n");
-        } else {
-          formatted.append(participantName).append(" (reply): ").append(message).append("\n");
-        }
-      } else {
-        // If no clear format, treat as continuation of previous message
-        formatted.append("    ").append(line).append("\n");
-      }
-    }
-
-    return formatted.toString();
+    return ConversationStore.getInstance().getOtherChatHistories(currentParticipant);
   }
 
   /**
@@ -173,60 +55,94 @@ public class ChatHistoryUtil {
    * @return The formatted chat history as a string, or empty string if not found
    */
   public static String getSpecificChatHistory(String participantName) {
-    Map<String, String> allHistories = getAllChatHistories(); // Get all histories
-
-    for (Map.Entry<String, String> entry : allHistories.entrySet()) {
-      String participant = entry.getKey();
-      if (participant.equalsIgnoreCase(participantName)
-          || participant.contains(participantName.toUpperCase())
-          || participantName.toUpperCase().contains(participant.toUpperCase())) {
-        String rawHistory = entry.getValue(); // Get the raw history
-        if (!rawHistory.isEmpty()) {
-          return formatConversationHistory(rawHistory, participant); // Format and return
-        }
-      }
-    }
+    return ConversationStore.getInstance().getChatHistory(participantName);
+  }
 
-    return "";
+  /**
+   * Checks if any chat histories exist for other participants.
+   *
+   * @param currentParticipant The current participant to exclude from the check
+   * @return true if other participants have chat histories, false otherwise
+   */
+  public static boolean hasOtherChatHistories(String currentParticipant) {
+    return !getOtherChatHistories(currentParticipant).isEmpty();
   }
 
   /**
-   * Loads a chat history file and returns its contents as a string.
+   * Adds the context preamble to a new chat request as a system message, and resets the
+   * participant's watermark so its next user message carries the other conversations in full.
+   * Call this once, straight after adding the character's own system prompt, so the preamble stays
+   * pinned at the start of the conversation.
    *
-   * @param filename The path to the chat history file
-   * @return The file contents as a string, or empty string if file doesn't exist or can't be read
+   * <p>The other conversations' turns are only attached once, so if compaction later folds a
+   * message that carried them, the watermark is reset again and the next user message brings them
+   * back, as a summary where one is up to date.
+   *
+   * @param request the character's new chat request
+   * @param participantName the name of the participant the request is for
    */
-  private static String loadChatHistoryFile(String filename) {
-    try {
-      List<String> lines = Files.readAllLines(Paths.get(filename), StandardCharsets.UTF_8);
-      if (lines.isEmpty()) {
-        return "";
+  public static void pinContextPreamble(ChatCompletionRequest request, String participantName) {
+    request.addMessage(new ChatMessage("system", CONTEXT_PREAMBLE));
+    request.setFoldListener(folded -> onFolded(participantName, folded));
+    ConversationStore.getInstance().resetWatermark(participantName);
+  }
+
+  private static void onFolded(String participantName, List<ChatMessage> folded) {
+    for (ChatMessage message : folded) {
+      if (message.getContent() != null && message.getContent().contains(NEW_TURNS_HEADER)) {
+        ConversationStore.getInstance().resetWatermark(participantName);
+        return;
       }
-      return String.join("\n", lines);
-    } catch (IOException e) {
-      // File doesn't exist or can't be read
-      return "";
     }
   }
 
   /**
-   * Checks if any chat histories exist for other participants.
+   * Adds a message to a character's request together with context from the other conversations,
+   * laid out so the start of the prompt stays the same from turn to turn and can be cached by the
+   * provider. The turns other conversations have gained since the character's last user message are
+   * attached to this one and stay in the conversation. Earlier turns that match the message, and
+   * any context that only applies right now, go in the request's volatile context, which is sent
+   * after everything else and then dropped.
    *
-   * @param currentParticipant The current participant to exclude from the check
-   * @return true if other participants have chat histories, false otherwise
+   * @param request the character's chat request
+   * @param msg the message to add
+   * @param participantName the name of the current participant (e.g., "Human-Witness",
+   *     "AI-Defendant")
+   * @param currentContext context about the current moment, such as what the player is looking
+   *     at, or null for none
    */
-  public static boolean hasOtherChatHistories(String currentParticipant) {
-    return !getOtherChatHistories(currentParticipant).isEmpty();
+  public static void addMessageWithContext(
+      ChatCompletionRequest request,
+      ChatMessage msg,
+      String participantName,
+      String currentContext) {
+    StringBuilder volatileContext = new StringBuilder();
+    if (currentContext != null) {
+      volatileContext.append(currentContext);
+    }
+    if ("user".equals(msg.getRole())) {
+      // Search before taking the new turns, so the search only covers turns sent before
+      String relevant =
+          ConversationStore.getInstance()
+              .findRelevantTurns(participantName, msg.getContent(), RELEVANT_TURNS);
+      if (!relevant.isEmpty()) {
+        volatileContext.append(volatileContext.length() > 0 ? "\n\n" : "");
+        volatileContext.append("[RELEVANT EARLIER TURNS:\n").append(relevant.trim()).append("]");
+      }
+    }
+    request.addMessage(enhanceMessageWithContext(msg, participantName));
+    request.setVolatileContext(volatileContext.toString());
   }
 
   /**
-   * Enhances a chat message with context from other conversations if it's a user message. This is a
-   * utility method to avoid code duplication across controllers.
+   * Enhances a user message with the turns other conversations have gained since this participant
+   * last sent one. Earlier turns are already in the participant's conversation, so each is only
+   * sent once; the instructions for reading them are in {@link #CONTEXT_PREAMBLE}.
    *
    * @param msg the original chat message
    * @param participantName the name of the current participant (e.g., "Human-Witness",
    *     "AI-Defendant")
-   * @return the enhanced chat message with conversation history context, or the original message if
+   * @return the enhanced chat message with the new conversation turns, or the original message if
    *     no enhancement is needed
    */
   public static ChatMessage enhanceMessageWithContext(ChatMessage msg, String participantName) {
@@ -234,25 +150,13 @@ public class ChatHistoryUtil {
       return msg; // Only enhance user messages
     }
 
-    String otherHistories =
-        getOtherChatHistories(participantName); // Get other participants' histories
-    if (otherHistories.isEmpty()) {
-      return msg; // No other histories to add
+    String newTurns = ConversationStore.getInstance().takeNewOtherChatHistories(participantName);
+    if (newTurns.isEmpty()) {
+      return msg; // Nothing new since the last message
     }
 
     String enhancedContent =
-        msg.getContent()
-            + "\n\n"
-            + "[CONVERSATION HISTORY REFERENCE: The user has spoken to other participants. When"
-            + " asked 'what did I say to [PARTICIPANT]', find the exact conversation section"
-            + " with that participant and look for messages starting with 'USER (to"
-            + " PARTICIPANT):'. Do NOT confuse different participants' conversations. Each is"
-            + " clearly separated.\n\n"
-            + otherHistories
-            + "IMPORTANT: If asked about what the user said to a specific participant, ONLY"
-            + " look in that participant's conversation section. Do not reference other"
-            + " participants when answering about a specific one.]";
-
-    return new ChatMessage(msg.getRole(), enhancedContent); // Return new enhanced message
+        msg.getContent() + NEW_TURNS_HEADER + "\n\n" + newTurns.trim() + "]";
+    return new ChatMessage(msg.getRole(), enhancedContent);
   }
 }
@@ -0,0 +1,149 @@
+package nz.ac.auckland.apiproxy.chat.openai;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.SerializableString;
+import com.fasterxml.jackson.core.util.JsonGeneratorDelegate;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import nz.ac.auckland.apiproxy.config.ApiProxyConfig;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Measures how the cost of writing a chat request body grows with the conversation. Messages
+ * encode themselves once, so the work a new turn adds stays flat while re-encoding every message
+ * grows with the history. The benchmark checks that each turn's body reuses every earlier
+ * message's encoding, and prints the timings for comparison.
+ */
+public class ChatMessageEncodingBenchmarkTest {
+
+  private static final int TURNS = 800;
+  private static final int[] REPORTED_TURNS = {50, 200, 400, 800};
+  private static final int REPEATS = 20;
+
+  private final ObjectMapper mapper = new ObjectMapper();
+
+  @Test
+  public void testMessageEncodingIsMemoised() {
+    ChatMessage message = new ChatMessage("user", "Did you see the \"AI\" at 9pm?\nYes.");
+    assertSame(message.toJson(), message.toJson());
+  }
+
+  @Test
+  public void testBodyMatchesTreeEncoding() throws IOException {
+    ChatCompletionRequest request = newRequest();
+    request.addMessage("system", "Stay in character.");
+    request.addMessage("user", "Where were you at 9pm? é中😀 \\ \"quoted\"");
+    request.addMessage(new ChatMessage("assistant", null));
+    request.setMaxTokens(100);
+
+    JsonNode body = mapper.readTree(writeBody(request));
+    assertEquals(3, body.get("messages").size());
+    assertEquals(
+        "Where were you at 9pm? é中😀 \\ \"quoted\"",
+        body.get("messages").get(1).get("content").asText());
+    assertTrue(body.get("messages").get(2).get("content").isNull());
+    assertEquals(100, body.get("max_tokens").asInt());
+  }
+
+  @Test
+  public void benchmarkPerTurnEncoding() throws IOException {
+    ChatCompletionRequest request = newRequest();
+    List<ChatMessage> history = new ArrayList<>();
+    List<SerializableString> encodings = new ArrayList<>();
+    int reported = 0;
+    for (int turn = 1; turn <= TURNS; turn++) {
+      ChatMessage message =
+          new ChatMessage(turn % 2 == 0 ? "assistant" : "user", sampleContent(turn));
+      history.add(message);
+      request.addMessage(message);
+      // Warm the new message the way the previous turn's request would have
+      List<SerializableString> written = new ArrayList<>();
+      writeBody(request, written);
+      assertEquals(turn, written.size());
+      for (int i = 0; i < encodings.size(); i++) {
+        // Earlier messages are copied from their stored encoding, never serialised again
+        assertSame(encodings.get(i), written.get(i), "message " + i + " re-encoded");
+      }
+      encodings.add(written.get(turn - 1));
+
+      if (reported < REPORTED_TURNS.length && turn == REPORTED_TURNS[reported]) {
+        long memoised = timeBody(request);
+        long fromScratch = timeFromScratch(history);
+        System.out.printf(
+            "turn %4d: memoised %7d us, re-encoded %7d us%n",
+            turn, memoised / 1_000, fromScratch / 1_000);
+        reported++;
+      }
+    }
+  }
+
+  private long timeBody(ChatCompletionRequest request) throws IOException {
+    long start = System.nanoTime();
+    for (int i = 0; i < REPEATS; i++) {
+      writeBody(request);
+    }
+    return (System.nanoTime() - start) / REPEATS;
+  }
+
+  private long timeFromScratch(List<ChatMessage> history) throws IOException {
+    // Fresh messages have no stored encoding, which is what every turn cost before
+    List<ChatCompletionRequest> copies = new ArrayList<>();
+    for (int i = 0; i < REPEATS; i++) {
+      ChatCompletionRequest copy = newRequest();
+      for (ChatMessage message : history) {
+        copy.addMessage(message.getRole(), message.getContent());
+      }
+      copies.add(copy);
+    }
+
+    long start = System.nanoTime();
+    for (ChatCompletionRequest copy : copies) {
+      writeBody(copy);
+    }
+    return (System.nanoTime() - start) / REPEATS;
+  }
+
+  private byte[] writeBody(ChatCompletionRequest request) throws IOException {
+    return writeBody(request, new ArrayList<>());
+  }
+
+  /** Writes the request body, collecting the raw encodings it writes for the messages. */
+  private byte[] writeBody(ChatCompletionRequest request, List<SerializableString> written)
+      throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    try (JsonGenerator generator =
+        new JsonGeneratorDelegate(mapper.getFactory().createGenerator((OutputStream) out)) {
+          @Override
+          public void writeRawValue(SerializableString raw) throws IOException {
+            written.add(raw);
+            super.writeRawValue(raw);
+          }
+        }) {
+      request.writeRequestBody(generator, false);
+    }
+    return out.toByteArray();
+  }
+
+  private ChatCompletionRequest newRequest() throws IOException {
+    String json = "{\"email\":\"test@example.com\",\"apiKey\":\"key\"}";
+    return new ChatCompletionRequest(mapper.readValue(json, ApiProxyConfig.class));
+  }
+
+  private static String sampleContent(int turn) {
+    StringBuilder sb = new StringBuilder();
+    for (int i = 0; i < 12; i++) {
+      sb.append("Turn ").append(turn).append(": the \"witness\" recalls line ").append(i);
+      sb.append('\n');
+    }
+    return sb.toString();
+  }
+}
@@ -0,0 +1,44 @@
+package nz.ac.auckland.apiproxy.chat.openai;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import nz.ac.auckland.apiproxy.tokenizer.Encoding;
+import org.junit.jupiter.api.Test;
+
+/** Checks that compaction folds in rare, large steps so the summary stays stable in between. */
+public class ConversationCompactorTest {
+
+  @Test
+  public void testSummaryStaysIdenticalBetweenCompactions() {
+    ConversationCompactor compactor = new ConversationCompactor(600, 4);
+    List<ChatMessage> messages = new ArrayList<>();
+    messages.add(new ChatMessage("system", "You are a witness to the theft of a painting."));
+
+    int compactions = 0;
+    int stableTurns = 0;
+    String summary = null;
+    for (int turn = 0; turn < 80; turn++) {
+      String role = turn % 2 == 0 ? "user" : "assistant";
+      messages.add(
+          new ChatMessage(
+              role, "Turn " + turn + ". I walked past the gallery and saw the lights were on."));
+      if (compactor.compact(messages, Encoding.O200K_BASE) > 0) {
+        compactions++;
+        if (compactions > 1) {
+          // A compaction now and then is fine, one every turn or two throws the cache away
+          assertTrue(stableTurns >= 5, "Only " + stableTurns + " turns between compactions");
+        }
+        stableTurns = 0;
+        summary = messages.get(1).getContent();
+      } else if (summary != null) {
+        assertEquals(summary, messages.get(1).getContent());
+        stableTurns++;
+      }
+      assertTrue(ConversationCompactor.estimateTokens(messages, Encoding.O200K_BASE) <= 600);
+    }
+    assertTrue(compactions > 2);
+  }
+}
@@ -0,0 +1,85 @@
+package nz.ac.auckland.apiproxy.chat.openai;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import nz.ac.auckland.apiproxy.config.ApiProxyConfig;
+import org.junit.jupiter.api.Test;
+
+/** Checks that conversation snapshots share their history but never see each other's turns. */
+public class ConversationSnapshotTest {
+
+  @Test
+  public void testAppendLeavesEarlierSnapshotsUnchanged() {
+    ChatMessage system = new ChatMessage("system", "Stay in character.");
+    ConversationSnapshot base = ConversationSnapshot.empty().append(system);
+    ConversationSnapshot first = base.append(new ChatMessage("user", "Where were you?"));
+    ConversationSnapshot second = base.append(new ChatMessage("user", "Who are you?"));
+
+    assertEquals(1, base.size());
+    assertEquals("Where were you?", first.last().getContent());
+    assertEquals("Who are you?", second.last().getContent());
+    assertTrue(first.sharesMessage(second, 0));
+    assertSame(system, second.get(0));
+    assertThrows(IndexOutOfBoundsException.class, () -> base.get(1));
+    assertThrows(UnsupportedOperationException.class, () -> first.asList().add(system));
+  }
+
+  @Test
+  public void testConcurrentBranchesKeepTheirOwnMessages() throws Exception {
+    ConversationSnapshot base = ConversationSnapshot.of(List.of(new ChatMessage("system", "Hi")));
+    int threads = 8;
+    ExecutorService executor = Executors.newFixedThreadPool(threads);
+    CountDownLatch start = new CountDownLatch(1);
+    try {
+      Future<?>[] branches = new Future<?>[threads];
+      for (int t = 0; t < threads; t++) {
+        String role = "user" + t;
+        branches[t] =
+            executor.submit(
+                () -> {
+                  start.await();
+                  ConversationSnapshot branch = base;
+                  for (int i = 0; i < 500; i++) {
+                    branch = branch.append(new ChatMessage(role, Integer.toString(i)));
+                  }
+                  for (int i = 0; i < 500; i++) {
+                    assertEquals(role, branch.get(i + 1).getRole());
+                    assertEquals(Integer.toString(i), branch.get(i + 1).getContent());
+                  }
+                  return null;
+                });
+      }
+      start.countDown();
+      for (Future<?> branch : branches) {
+        branch.get();
+      }
+    } finally {
+      executor.shutdownNow();
+    }
+    assertEquals(1, base.size());
+  }
+
+  @Test
+  public void testTurnsAddedDuringACallDoNotChangeItsSnapshot() throws IOException {
+    String json = "{\"email\":\"test@example.com\",\"apiKey\":\"key\"}";
+    ChatCompletionRequest request =
+        new ChatCompletionRequest(new ObjectMapper().readValue(json, ApiProxyConfig.class));
+    request.addMessage("system", "Stay in character.");
+    ConversationSnapshot sent = request.getConversation();
+    request.addMessage("user", "Where were you at 9pm?");
+
+    assertEquals(1, sent.size());
+    assertEquals(2, request.getConversation().size());
+    assertTrue(request.getConversation().sharesMessage(sent, 0));
+  }
+}
@@ -0,0 +1,61 @@
+package nz.ac.auckland.apiproxy.chat.openai;
+
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.lang.reflect.Proxy;
+import java.net.http.HttpResponse;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import nz.ac.auckland.apiproxy.chat.openai.ChatCompletionRequest.Model;
+import org.junit.jupiter.api.Test;
+
+/** Checks that hedging does not hide the slow calls its threshold is computed from. */
+public class HedgeMetricsTest {
+
+  // A reply the hedging code can hand out and discard without it being read
+  private static final HttpResponse<?> RESPONSE =
+      (HttpResponse<?>)
+          Proxy.newProxyInstance(
+              HttpResponse.class.getClassLoader(),
+              new Class<?>[] {HttpResponse.class},
+              (proxy, method, args) -> null);
+
+  @Test
+  public void testThresholdStaysAtSlowTail() {
+    // 90% of calls take 2-6 ms and 10% take 40-200 ms, so the true 95th percentile is 120 ms
+    Random random = new Random(206);
+    HedgeMetrics metrics = new HedgeMetrics(0.95, 1, 120);
+    for (int batch = 0; batch < 16; batch++) {
+      List<CompletableFuture<?>> calls = new ArrayList<>();
+      for (int i = 0; i < 25; i++) {
+        long primaryMs = sampleMs(random);
+        long backupMs = sampleMs(random);
+        calls.add(
+            ChatCompletionRequest.sendHedged(
+                Model.GPT_4_1_MINI,
+                Model.GPT_4_1_NANO,
+                true,
+                metrics,
+                model -> reply(model == Model.GPT_4_1_NANO ? backupMs : primaryMs)));
+      }
+      calls.forEach(CompletableFuture::join);
+    }
+
+    long threshold = metrics.getHedgeDelayMs();
+    assertTrue(threshold >= 90 && threshold <= 160, "Threshold drifted to " + threshold + " ms");
+    assertTrue(metrics.getHedgeWins() > 0);
+  }
+
+  private static long sampleMs(Random random) {
+    return random.nextInt(10) == 0 ? 40 + random.nextInt(161) : 2 + random.nextInt(5);
+  }
+
+  @SuppressWarnings("unchecked")
+  private static CompletableFuture<HttpResponse<Object>> reply(long latencyMs) {
+    return new CompletableFuture<HttpResponse<Object>>()
+        .completeOnTimeout((HttpResponse<Object>) RESPONSE, latencyMs, TimeUnit.MILLISECONDS);
+  }
+}
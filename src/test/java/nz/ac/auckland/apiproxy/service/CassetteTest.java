@@ -0,0 +1,95 @@
+package nz.ac.auckland.apiproxy.service;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Path;
+import nz.ac.auckland.apiproxy.chat.openai.ChatCompletionRequest;
+import nz.ac.auckland.apiproxy.chat.openai.ChatMessage;
+import nz.ac.auckland.apiproxy.config.ApiProxyConfig;
+import nz.ac.auckland.apiproxy.exceptions.ApiProxyException;
+import nz.ac.auckland.apiproxy.tts.TextToSpeechRequest;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/** Records a session against the local proxy, then replays it with the proxy gone. */
+public class CassetteTest {
+
+  @TempDir Path folder;
+
+  @AfterEach
+  public void tearDown() {
+    HttpTransport.getInstance().setCassette(null);
+    EndPoints.setBaseUrl(null);
+  }
+
+  @Test
+  public void testRecordedSessionReplaysOffline() throws Exception {
+    Path file = folder.resolve("session.cassette.gz");
+    LocalProxyServer server =
+        LocalProxyServer.builder()
+            .script("I was at home.", "Nobody saw me.")
+            .chunkDelay(LocalProxyServer.Latency.fixed(5))
+            .start();
+    EndPoints.setBaseUrl(server.getBaseUrl());
+    Cassette recording = Cassette.record(file);
+    HttpTransport.getInstance().setCassette(recording);
+    String audioUrl;
+    byte[] audio;
+    try {
+      server.failNext(503);
+      assertEquals("I was at home.", ask(config("a@example.com"), "Where were you?", false));
+      assertEquals("Nobody saw me.", ask(config("a@example.com"), "Who saw you?", true));
+      audioUrl =
+          new TextToSpeechRequest(config("a@example.com")).setText("Hello").execute().getAudioUrl();
+      audio = download(audioUrl);
+    } finally {
+      recording.close();
+      server.close();
+    }
+    assertEquals(5, recording.size()); // The failed attempt is recorded too
+
+    Cassette replay = Cassette.replay(file, 0);
+    HttpTransport.getInstance().setCassette(replay);
+    // Another player's credentials still match the recording
+    assertEquals("I was at home.", ask(config("b@example.com"), "Where were you?", false));
+    assertEquals("Nobody saw me.", ask(config("b@example.com"), "Who saw you?", true));
+    assertEquals(
+        audioUrl,
+        new TextToSpeechRequest(config("b@example.com")).setText("Hello").execute().getAudioUrl());
+    assertEquals(audio.length, download(audioUrl).length);
+    assertThrows(
+        ApiProxyException.class, () -> ask(config("b@example.com"), "Not recorded", false));
+  }
+
+  private static String ask(ApiProxyConfig config, String question, boolean stream)
+      throws ApiProxyException {
+    ChatCompletionRequest request =
+        new ChatCompletionRequest(config).setCacheable(false).addMessage("user", question);
+    if (stream) {
+      StringBuilder streamed = new StringBuilder();
+      ChatMessage reply = request.executeStreaming(streamed::append);
+      assertEquals(reply.getContent(), streamed.toString());
+      return reply.getContent();
+    }
+    return request.execute().getChoice(0).getChatMessage().getContent();
+  }
+
+  private static byte[] download(String url) throws ApiProxyException, IOException {
+    try (InputStream in = HttpTransport.getInstance().openStream(url)) {
+      byte[] bytes = in.readAllBytes();
+      assertTrue(bytes.length > 0);
+      return bytes;
+    }
+  }
+
+  private static ApiProxyConfig config(String email) throws IOException {
+    String json = "{\"email\":\"" + email + "\",\"apiKey\":\"key-" + email + "\"}";
+    return new ObjectMapper().readValue(json, ApiProxyConfig.class);
+  }
+}
@@ -0,0 +1,178 @@
+package nz.ac.auckland.apiproxy.service;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertInstanceOf;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import com.sun.net.httpserver.HttpServer;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.net.http.HttpTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import nz.ac.auckland.apiproxy.exceptions.ApiProxyException;
+import nz.ac.auckland.apiproxy.exceptions.ProxyUnavailableException;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+/** Drives the retry policy and circuit breaker against a local stub that injects faults. */
+public class HttpTransportResilienceTest {
+
+  private HttpServer server;
+  private HttpTransport transport;
+  private String endpoint;
+  private final AtomicInteger calls = new AtomicInteger();
+  // Statuses to answer with, in order; once empty the stub answers 200
+  private final Deque<Integer> faults = new ArrayDeque<>();
+  // How long the stub takes to answer
+  private volatile long answerDelayMs;
+
+  @BeforeEach
+  public void setUp() throws IOException {
+    server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+    server.createContext(
+        "/proxy",
+        exchange -> {
+          calls.incrementAndGet();
+          try {
+            Thread.sleep(answerDelayMs);
+          } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+          }
+          Integer status;
+          synchronized (faults) {
+            status = faults.poll();
+          }
+          byte[] body = "{\"ok\":true}".getBytes(StandardCharsets.UTF_8);
+          exchange.sendResponseHeaders(status == null ? 200 : status, body.length);
+          try (OutputStream out = exchange.getResponseBody()) {
+            out.write(body);
+          }
+        });
+    server.start();
+    endpoint = "http://127.0.0.1:" + server.getAddress().getPort() + "/proxy";
+    transport = new HttpTransport(new RetryPolicy(3, 5, 20), 3, 200);
+  }
+
+  @AfterEach
+  public void tearDown() {
+    transport.close();
+    server.stop(0);
+  }
+
+  @Test
+  public void testTransientFailuresAreRetried() {
+    addFaults(503, 502);
+
+    HttpResponse<byte[]> response = transport.sendAsync(newRequest()).join();
+
+    assertEquals(200, response.statusCode());
+    assertEquals(3, calls.get());
+    assertEquals(CircuitBreaker.State.CLOSED, breaker().getState());
+  }
+
+  @Test
+  public void testClientErrorsAreNotRetried() {
+    addFaults(400);
+
+    HttpResponse<byte[]> response = transport.sendAsync(newRequest()).join();
+
+    assertEquals(400, response.statusCode());
+    assertEquals(1, calls.get());
+  }
+
+  @Test
+  public void testOutageOpensBreakerAndFailsFast() {
+    addFaults(503, 503, 503);
+
+    assertEquals(503, transport.sendAsync(newRequest()).join().statusCode());
+    assertEquals(CircuitBreaker.State.OPEN, breaker().getState());
+
+    CompletionException error =
+        assertThrows(CompletionException.class, () -> transport.sendAsync(newRequest()).join());
+    assertInstanceOf(ProxyUnavailableException.class, error.getCause());
+    assertEquals(3, calls.get()); // The fast failure never reached the stub
+  }
+
+  @Test
+  public void testTrialCallClosesBreakerAfterCoolDown() throws Exception {
+    addFaults(503, 503, 503);
+    transport.sendAsync(newRequest()).join();
+    assertEquals(CircuitBreaker.State.OPEN, breaker().getState());
+
+    Thread.sleep(250);
+    assertEquals(CircuitBreaker.State.HALF_OPEN, breaker().getState());
+
+    assertEquals(200, transport.sendAsync(newRequest()).join().statusCode());
+    assertEquals(CircuitBreaker.State.CLOSED, breaker().getState());
+  }
+
+  @Test
+  public void testCancelledCallsDoNotCountAsFailures() throws Exception {
+    answerDelayMs = 100;
+    for (int i = 0; i < 4; i++) {
+      CompletableFuture<HttpResponse<byte[]>> call = transport.sendAsync(newRequest());
+      Thread.sleep(20);
+      call.cancel(true);
+    }
+
+    assertEquals(CircuitBreaker.State.CLOSED, breaker().getState());
+  }
+
+  @Test
+  public void testTimedOutPostIsNotRetried() throws Exception {
+    answerDelayMs = 1_000;
+    HttpRequest request =
+        HttpRequest.newBuilder(URI.create(endpoint))
+            .timeout(Duration.ofMillis(500))
+            .POST(HttpRequest.BodyPublishers.ofString("{}"))
+            .build();
+
+    CompletionException error =
+        assertThrows(CompletionException.class, () -> transport.sendAsync(request).join());
+    assertInstanceOf(HttpTimeoutException.class, error.getCause());
+    Thread.sleep(100); // Long enough for a retry to have arrived
+    assertEquals(1, calls.get());
+  }
+
+  @Test
+  public void testStreamingRetriesBeforeReadingBody() throws ApiProxyException, IOException {
+    addFaults(504);
+
+    HttpResponse<InputStream> response = transport.sendStreaming(newRequest());
+
+    try (InputStream body = response.body()) {
+      assertEquals("{\"ok\":true}", new String(body.readAllBytes(), StandardCharsets.UTF_8));
+    }
+    assertEquals(2, calls.get());
+  }
+
+  private void addFaults(Integer... statuses) {
+    synchronized (faults) {
+      for (Integer status : statuses) {
+        faults.add(status);
+      }
+    }
+  }
+
+  private CircuitBreaker breaker() {
+    return transport.getCircuitBreaker(endpoint);
+  }
+
+  private HttpRequest newRequest() {
+    return HttpRequest.newBuilder(URI.create(endpoint))
+        .POST(HttpRequest.BodyPublishers.ofString("{}"))
+        .build();
+  }
+}
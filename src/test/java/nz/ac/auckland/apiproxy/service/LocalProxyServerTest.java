@@ -0,0 +1,165 @@
+package nz.ac.auckland.apiproxy.service;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.net.http.HttpRequest;
+import nz.ac.auckland.apiproxy.chat.openai.ChatCompletionRequest;
+import nz.ac.auckland.apiproxy.chat.openai.ChatCompletionRequest.Model;
+import nz.ac.auckland.apiproxy.chat.openai.ChatCompletionResult;
+import nz.ac.auckland.apiproxy.chat.openai.ChatMessage;
+import nz.ac.auckland.apiproxy.chat.openai.Choice;
+import nz.ac.auckland.apiproxy.config.ApiProxyConfig;
+import nz.ac.auckland.apiproxy.exceptions.ApiProxyException;
+import nz.ac.auckland.apiproxy.tts.TextToSpeechRequest;
+import nz.ac.auckland.apiproxy.tts.TextToSpeechResult;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+/** Runs the chat and speech requests offline against the local stand-in for the proxy. */
+public class LocalProxyServerTest {
+
+  private LocalProxyServer server;
+  private ApiProxyConfig config;
+
+  @BeforeEach
+  public void setUp() throws IOException {
+    server =
+        LocalProxyServer.builder()
+            .script("Auckland is one city in New Zealand.")
+            .template("Reply {turn} to: {user}")
+            .seed(206)
+            .start();
+    EndPoints.setBaseUrl(server.getBaseUrl());
+    String json = "{\"email\":\"test@example.com\",\"apiKey\":\"key\"}";
+    config = new ObjectMapper().readValue(json, ApiProxyConfig.class);
+  }
+
+  @AfterEach
+  public void tearDown() {
+    EndPoints.setBaseUrl(null);
+    server.close();
+  }
+
+  @Test
+  public void testScriptedCompletionReportsUsage() throws ApiProxyException {
+    ChatCompletionResult result =
+        newRequest().addMessage("user", "What's one city in New Zealand?").execute();
+
+    assertEquals(
+        "Auckland is one city in New Zealand.",
+        result.getChoice(0).getChatMessage().getContent());
+    assertTrue(result.getUsagePromptTokens() > 0);
+    assertEquals(1, server.getUsage().getChatRequests());
+    assertEquals(server.getUsage().getPromptTokens(), result.getUsagePromptTokens());
+  }
+
+  @Test
+  public void testChatCompletionRoundTripsOffline() throws ApiProxyException {
+    ChatCompletionRequest request =
+        new ChatCompletionRequest(config)
+            .addMessage("system", "You are a helpful assistant. Reply in less than 20 words.")
+            .addMessage("user", "Where is New Zealand?")
+            .addMessage(
+                "system", "New Zealand is a country located in the southwestern Pacific Ocean.")
+            .addMessage("user", "What's one city there?")
+            .setN(1)
+            .setMaxTokens(300)
+            .setModel(Model.GPT_4_1_NANO);
+
+    ChatCompletionResult result = request.execute();
+
+    assertEquals(1, result.getNumChoices());
+    Choice choice = result.getChoice(0);
+    assertEquals(0, choice.getIndex());
+    assertEquals("stop", choice.getFinishReason());
+    assertEquals("assistant", choice.getChatMessage().getRole());
+    assertEquals("Auckland is one city in New Zealand.", choice.getChatMessage().getContent());
+    assertTrue(result.getCreated() > 0);
+    assertEquals(
+        result.getUsagePromptTokens() + result.getUsageCompletionTokens(),
+        result.getUsageTotalTokens());
+    assertEquals(server.getUsage().getCompletionTokens(), result.getUsageCompletionTokens());
+  }
+
+  @Test
+  public void testInjectedFaultsAreRetriedAndStreamedRepliesAssembled() throws Exception {
+    newRequest().addMessage("user", "First").execute(); // Use up the script
+    server.failNext(429, 503);
+
+    StringBuilder streamed = new StringBuilder();
+    ChatMessage reply =
+        newRequest().addMessage("user", "Where were you?").executeStreaming(streamed::append);
+
+    assertEquals("Reply 2 to: Where were you?", reply.getContent());
+    assertEquals(reply.getContent(), streamed.toString());
+    assertEquals(1, server.getUsage().getRateLimited());
+    assertEquals(1, server.getUsage().getErrors());
+  }
+
+  @Test
+  public void testOnlyCacheableRequestsAreAnsweredFromCache() throws ApiProxyException {
+    newRequest().addMessage("user", "Not cached").execute();
+    newRequest().addMessage("user", "Not cached").execute();
+    assertEquals(2, server.getUsage().getChatRequests());
+
+    newRequest().setCacheable(true).addMessage("user", "Cached").execute();
+    ChatCompletionResult cached =
+        newRequest().setCacheable(true).addMessage("user", "Cached").execute();
+
+    assertEquals(3, server.getUsage().getChatRequests());
+    assertEquals("Reply 3 to: Cached", cached.getChoice(0).getChatMessage().getContent());
+    assertEquals(0, cached.getUsageTotalTokens()); // Nothing was spent on this call
+  }
+
+  @Test
+  public void testGzippedRequestBodiesAreRead() throws Exception {
+    System.setProperty("apiproxy.gzipRequests", "true");
+    HttpTransport transport;
+    try {
+      transport = new HttpTransport(new RetryPolicy(1, 0, 0), 5, 1_000);
+    } finally {
+      System.clearProperty("apiproxy.gzipRequests");
+    }
+    try {
+      HttpRequest request =
+          transport.newJsonPost(
+              EndPoints.getTextToSpeech(),
+              generator -> {
+                generator.writeStartObject();
+                generator.writeStringField("text", "Hello there");
+                generator.writeEndObject();
+              },
+              "application/json");
+      assertEquals("gzip", request.headers().firstValue("Content-Encoding").orElse(""));
+
+      assertEquals(200, transport.sendAsync(request).join().statusCode());
+      assertEquals(11, server.getUsage().getSpeechCharacters());
+    } finally {
+      transport.close();
+    }
+  }
+
+  @Test
+  public void testSpeechReturnsPlayableLocalAudio() throws Exception {
+    TextToSpeechResult result = new TextToSpeechRequest(config).setText("Hello").execute();
+
+    assertTrue(result.getAudioUrl().startsWith(server.getBaseUrl()));
+    try (InputStream audio = URI.create(result.getAudioUrl()).toURL().openStream()) {
+      assertTrue(audio.readAllBytes().length > 0);
+    }
+    assertEquals(5, server.getUsage().getSpeechCharacters());
+  }
+
+  private ChatCompletionRequest newRequest() {
+    return new ChatCompletionRequest(config)
+        .setModel(Model.GPT_4_1_NANO)
+        .setCacheable(false)
+        .setMaxTokens(100);
+  }
+}
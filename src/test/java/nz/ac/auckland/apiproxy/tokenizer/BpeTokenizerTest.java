@@ -0,0 +1,65 @@
+package nz.ac.auckland.apiproxy.tokenizer;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+
+import org.junit.jupiter.api.Test;
+
+/** Checks o200k_base token ids and counts against those of OpenAI's tiktoken reference. */
+public class BpeTokenizerTest {
+
+  @Test
+  public void testAscii() {
+    assertTokens("Hello, world!", 13225, 11, 2375, 0);
+    assertTokens(
+        "The quick brown fox jumps over the lazy dog.",
+        976, 4853, 19705, 68347, 65613, 1072, 290, 29082, 6446, 13);
+    assertTokens("Call 0800 123456789 now", 4701, 220, 23150, 15, 220, 7633, 19354, 29338, 1954);
+    assertTokens("path/to/file.txt\r\n", 4189, 72231, 51766, 7186, 370);
+  }
+
+  @Test
+  public void testMultiByteUtf8() {
+    assertTokens(
+        "Ko Tāmaki Makaurau te tāone nui o Aotearoa, größte Stadt: 東京は日本の首都です。",
+        33185, 353, 32199, 7132, 126009, 330, 753, 729, 48268, 690, 39031, 293, 355, 346, 830,
+        13750, 11, 102433, 24643, 25, 185244, 5205, 9048, 3385, 15425, 12232, 15121, 788);
+  }
+
+  @Test
+  public void testEmoji() {
+    // Artist palette, framed picture with a variation selector, a ZWJ sequence and a smiley
+    assertTokens(
+        "The witness said \uD83C\uDFA8\uD83D\uDDBC\uFE0F and"
+            + " \uD83D\uDC69\u200D\u2696\uFE0F ruled \uD83D\uDE42",
+        976, 20966, 2059, 139786, 101, 4103, 244, 120, 15148, 326, 61138, 102, 2524, 84396, 244,
+        15148, 47910, 26192);
+  }
+
+  @Test
+  public void testWhitespaceRuns() {
+    assertTokens("a" + " ".repeat(40) + "b", 64, 4754, 287);
+    assertTokens(
+        "line one\n\n\n    indented        gap   \n\tend",
+        1137, 1001, 2499, 271, 1383, 23537, 309, 19953, 10190, 13304);
+    assertTokens("end of line   \n\n\n\n        next", 419, 328, 2543, 271, 4707, 309, 2613);
+    assertTokens("\t\t\tdeep  \t  tabs", 335, 25754, 1027, 256, 7758, 38191);
+  }
+
+  @Test
+  public void testContractions() {
+    assertTokens(
+        "I'm sure you'll say they've DON'T and she'd We'RE",
+        15390, 3239, 12764, 2891, 51676, 153384, 326, 114482, 1416, 6, 1099);
+  }
+
+  private static void assertTokens(String text, int... expected) {
+    BpeTokenizer tokenizer = BpeTokenizer.get(Encoding.O200K_BASE);
+    assertNotNull(tokenizer);
+    assertArrayEquals(expected, tokenizer.encode(text));
+    assertEquals(expected.length, tokenizer.countTokens(text));
+    assertEquals(expected.length, BpeTokenizer.countTokens(Encoding.O200K_BASE, text));
+    assertEquals(text, tokenizer.decode(expected));
+  }
+}
@@ -0,0 +1,35 @@
+package nz.ac.auckland.se206.prompts;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.HashMap;
+import java.util.Map;
+import org.junit.jupiter.api.Test;
+
+/** Checks single-pass template filling and loading the bundled prompts. */
+public class PromptTemplateTest {
+
+  @Test
+  public void testFillsPlaceholdersInOnePass() {
+    PromptTemplate template =
+        new PromptTemplate("test.txt", "Verdict: {verdict}\nWhy: {why} {unknown} {\"n\": 1} {}");
+    Map<String, String> data = new HashMap<>();
+    data.put("verdict", "Guilty");
+    data.put("why", "it said {verdict}"); // Values are never filled in themselves
+    assertEquals(
+        "Verdict: Guilty\nWhy: it said {verdict} {unknown} {\"n\": 1} {}", template.render(data));
+
+    // A key given as null is blanked rather than left as written
+    data.put("unknown", null);
+    assertEquals("Verdict: Guilty\nWhy: it said {verdict}  {\"n\": 1} {}", template.render(data));
+  }
+
+  @Test
+  public void testLoadsBundledPrompts() {
+    TemplateRegistry registry = TemplateRegistry.getInstance();
+    assertTrue(registry.size() >= 8);
+    String prompt = registry.render("chat.txt", Map.of("profession", "archivist"));
+    assertTrue(prompt.contains("Your profession is archivist."));
+  }
+}
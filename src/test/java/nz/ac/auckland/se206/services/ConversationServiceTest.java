@@ -0,0 +1,238 @@
+package nz.ac.auckland.se206.services;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import nz.ac.auckland.apiproxy.chat.openai.ChatCompletionRequest;
+import nz.ac.auckland.apiproxy.chat.openai.ChatMessage;
+import nz.ac.auckland.apiproxy.config.ApiProxyConfig;
+import nz.ac.auckland.apiproxy.service.EndPoints;
+import nz.ac.auckland.apiproxy.service.LocalProxyServer;
+import nz.ac.auckland.apiproxy.service.LocalProxyServer.Latency;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+/** Drives chat sessions against the local proxy, with a single thread standing in for JavaFX. */
+public class ConversationServiceTest {
+
+  private static final String WITNESS = ConversationStore.HUMAN_WITNESS;
+
+  private final ExecutorService fxThread = Executors.newSingleThreadExecutor();
+  private final ConversationService service = new ConversationService(fxThread::execute);
+  private LocalProxyServer server;
+
+  @AfterEach
+  public void tearDown() throws Exception {
+    onFx(service::reset);
+    fxThread.shutdown();
+    ConversationStore.getInstance().clear();
+    EndPoints.setBaseUrl(null);
+    server.close();
+  }
+
+  @Test
+  public void testQueuedTurnsAreAnsweredInOrder() throws Exception {
+    start(Latency.fixed(100), Latency.none());
+    RecordingView view = new RecordingView();
+    ConversationService.Session session = onFx(() -> newSession(view));
+
+    CompletableFuture<ChatMessage> first = onFx(() -> session.send(user("First"), null));
+    CompletableFuture<ChatMessage> second = onFx(() -> session.send(user("Second"), null));
+
+    assertEquals("Reply 2 to: Second", second.get(5, TimeUnit.SECONDS).getContent());
+    assertEquals("Reply 1 to: First", first.join().getContent());
+    // The second turn went out only once the first reply was in the conversation
+    List<ChatMessage> conversation = session.getRequest().getConversation().asList();
+    assertEquals(5, conversation.size());
+    assertEquals("Reply 1 to: First", conversation.get(2).getContent());
+    assertEquals(
+        List.of("thinking", "thinking", "reply:Reply 1 to: First", "reply:Reply 2 to: Second"),
+        onFx(view::replies));
+    assertEquals(2, ConversationStore.getInstance().getMessages(WITNESS).size());
+    assertTrue(onFx(() -> !session.isReplying()));
+  }
+
+  @Test
+  public void testScriptedLineWaitsForTheReplyInFlight() throws Exception {
+    start(Latency.fixed(100), Latency.fixed(20));
+    RecordingView view = new RecordingView();
+    ConversationService.Session session = onFx(() -> newSession(view));
+
+    CompletableFuture<ChatMessage> turn = onFx(() -> session.send(user("Look at this"), null));
+    CompletableFuture<ChatMessage> line =
+        onFx(() -> session.addReply(new ChatMessage("assistant", "You found the logo!")));
+
+    line.get(5, TimeUnit.SECONDS);
+    assertEquals("Reply 1 to: Look at this", turn.join().getContent());
+    List<ChatMessage> conversation = session.getRequest().getConversation().asList();
+    assertEquals("Reply 1 to: Look at this", conversation.get(2).getContent());
+    assertEquals("You found the logo!", conversation.get(3).getContent());
+    assertEquals(
+        List.of("thinking", "reply:Reply 1 to: Look at this", "reply:You found the logo!"),
+        onFx(view::replies));
+    List<ChatMessage> recorded = ConversationStore.getInstance().getMessages(WITNESS);
+    assertEquals("You found the logo!", recorded.get(recorded.size() - 1).getContent());
+  }
+
+  @Test
+  public void testReplyIsHandedToWhicheverViewIsAttached() throws Exception {
+    start(Latency.fixed(150), Latency.fixed(80));
+    RecordingView left = new RecordingView();
+    RecordingView returned = new RecordingView();
+    RecordingView midReply = new RecordingView();
+    ConversationService.Session session = onFx(() -> newSession(left));
+
+    CompletableFuture<ChatMessage> turn =
+        onFx(() -> session.send(user("Where were you that night"), null));
+    onFx(() -> session.detach(left));
+    onFx(() -> session.attach(returned));
+    waitFor(() -> onFx(() -> returned.events.size() > 1)); // Part of the reply has streamed in
+    onFx(() -> session.attach(midReply));
+
+    String reply = turn.get(5, TimeUnit.SECONDS).getContent();
+    assertEquals("Reply 1 to: Where were you that night", reply);
+    assertEquals(List.of("thinking"), onFx(() -> left.events));
+    assertEquals("thinking", onFx(() -> returned.events.get(0)));
+    assertEquals(List.of("thinking", "reply:" + reply), onFx(midReply::replies));
+    assertEquals(reply, onFx(midReply::streamed)); // Caught up on the text so far, then the rest
+  }
+
+  @Test
+  public void testDiscardCancelsTheTurnInFlightAndQueuedTurns() throws Exception {
+    start(Latency.fixed(3000), Latency.none());
+    RecordingView view = new RecordingView();
+    ConversationService.Session session = onFx(() -> newSession(view));
+
+    CompletableFuture<ChatMessage> sent = onFx(() -> session.send(user("First"), null));
+    CompletableFuture<ChatMessage> queued = onFx(() -> session.send(user("Second"), null));
+    waitFor(() -> server.getUsage().getChatRequests() == 1);
+    onFx(() -> service.discard(WITNESS));
+
+    // The request is abandoned while still waiting for headers, long before the proxy answers
+    assertThrows(ExecutionException.class, () -> sent.get(1, TimeUnit.SECONDS));
+    assertThrows(CompletionException.class, queued::join);
+    onFx(() -> null); // Let any update the reply queued reach the view
+    assertEquals(List.of("thinking", "thinking"), onFx(view::replies));
+    assertEquals(1, server.getUsage().getChatRequests());
+    assertTrue(ConversationStore.getInstance().getMessages(WITNESS).isEmpty());
+    assertNotSame(session, onFx(() -> newSession(view)));
+  }
+
+  @Test
+  public void testResetCancelsAReplyPartWayThroughStreaming() throws Exception {
+    start(Latency.none(), Latency.fixed(1000));
+    RecordingView view = new RecordingView();
+    ConversationService.Session session = onFx(() -> newSession(view));
+
+    CompletableFuture<ChatMessage> sent = onFx(() -> session.send(user("First"), null));
+    waitFor(() -> onFx(() -> view.events.size() > 1)); // Reset once the reply is streaming in
+    onFx(service::reset);
+
+    // The body is closed mid-stream rather than read for the seconds the rest would take
+    assertThrows(ExecutionException.class, () -> sent.get(1, TimeUnit.SECONDS));
+    onFx(() -> null);
+    assertEquals(List.of("thinking"), onFx(view::replies));
+    assertTrue(ConversationStore.getInstance().getMessages(WITNESS).isEmpty());
+    assertNotSame(session, onFx(() -> newSession(view)));
+  }
+
+  private void start(Latency latency, Latency chunkDelay) throws IOException {
+    server =
+        LocalProxyServer.builder()
+            .template("Reply {turn} to: {user}")
+            .latency(latency)
+            .chunkDelay(chunkDelay)
+            .start();
+    EndPoints.setBaseUrl(server.getBaseUrl());
+    ConversationStore.getInstance().clear();
+  }
+
+  private ConversationService.Session newSession(RecordingView view) throws Exception {
+    String json = "{\"email\":\"test@example.com\",\"apiKey\":\"key\"}";
+    ApiProxyConfig config = new ObjectMapper().readValue(json, ApiProxyConfig.class);
+    ConversationService.Session session =
+        service.getSession(
+            WITNESS,
+            () -> new ChatCompletionRequest(config).addMessage("system", "You are a witness."));
+    session.attach(view);
+    return session;
+  }
+
+  private static ChatMessage user(String content) {
+    return new ChatMessage("user", content);
+  }
+
+  private <T> T onFx(Callable<T> action) throws Exception {
+    return fxThread.submit(action).get(5, TimeUnit.SECONDS);
+  }
+
+  private void onFx(Runnable action) throws Exception {
+    fxThread.submit(action).get(5, TimeUnit.SECONDS);
+  }
+
+  private static void waitFor(Callable<Boolean> condition) throws Exception {
+    long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+    while (!condition.call()) {
+      assertTrue(System.nanoTime() < deadline, "Timed out waiting");
+      Thread.sleep(10);
+    }
+  }
+
+  /** Records what a session shows, only ever touched on the stand-in FX thread. */
+  private static final class RecordingView implements ConversationService.ChatView {
+    private final List<String> events = new ArrayList<>();
+
+    @Override
+    public void onThinking() {
+      events.add("thinking");
+    }
+
+    @Override
+    public void onReplyDelta(String delta, boolean first) {
+      events.add((first ? "first:" : "delta:") + delta);
+    }
+
+    @Override
+    public void onReply(ChatMessage reply) {
+      events.add("reply:" + reply.getContent());
+    }
+
+    @Override
+    public void onReplyFailed(Exception error) {
+      events.add("failed:" + error.getMessage());
+    }
+
+    private List<String> replies() {
+      List<String> replies = new ArrayList<>();
+      for (String event : events) {
+        if (!event.startsWith("first:") && !event.startsWith("delta:")) {
+          replies.add(event);
+        }
+      }
+      return replies;
+    }
+
+    private String streamed() {
+      StringBuilder text = new StringBuilder();
+      for (String event : events) {
+        if (event.startsWith("first:") || event.startsWith("delta:")) {
+          text.append(event.substring(event.indexOf(':') + 1));
+        }
+      }
+      return text.toString();
+    }
+  }
+}
@@ -0,0 +1,56 @@
+package nz.ac.auckland.se206.services;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+/** Checks that a summary only ever describes the conversation it was made from. */
+public class ConversationStoreTest {
+
+  private static final String WITNESS = ConversationStore.HUMAN_WITNESS;
+
+  private final ConversationStore store = ConversationStore.getInstance();
+
+  @BeforeEach
+  public void setUp() {
+    store.clear();
+  }
+
+  @AfterEach
+  public void tearDown() {
+    store.clear();
+  }
+
+  @Test
+  public void testSummaryIsKeptUntilTheNextTurn() {
+    store.append(WITNESS, "user", "What did you see?");
+    store.append(WITNESS, "assistant", "A van outside the gallery.");
+    store.putSummary(WITNESS, store.getVersion(WITNESS), "The witness saw a van.");
+    assertEquals("The witness saw a van.", store.getSummary(WITNESS));
+
+    store.append(WITNESS, "user", "What colour was it?");
+    assertNull(store.getSummary(WITNESS));
+    assertEquals("The witness saw a van.", store.getLatestSummary(WITNESS));
+  }
+
+  @Test
+  public void testSummaryOfAClearedConversationIsDropped() {
+    store.append(WITNESS, "user", "What did you see?");
+    store.append(WITNESS, "assistant", "A van outside the gallery.");
+    long cleared = store.getVersion(WITNESS); // A summary job starts on this version
+
+    store.clear(WITNESS);
+    store.append(WITNESS, "user", "Hello again");
+    store.append(WITNESS, "assistant", "I saw nothing.");
+    store.putSummary(WITNESS, cleared, "The witness saw a van.");
+    assertNull(store.getLatestSummary(WITNESS));
+
+    store.clear();
+    store.append(WITNESS, "user", "A new game");
+    store.putSummary(WITNESS, cleared, "The witness saw a van.");
+    assertNull(store.getLatestSummary(WITNESS));
+  }
+}
@@ -0,0 +1,89 @@
+package nz.ac.auckland.se206.services;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import java.util.List;
+import java.util.Map;
+import nz.ac.auckland.apiproxy.chat.openai.ChatCompletionRequest;
+import nz.ac.auckland.apiproxy.chat.openai.ChatMessage;
+import nz.ac.auckland.apiproxy.config.ApiProxyConfig;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+/** Checks that a scripted line is filled in and recorded as the character's turn. */
+public class ScriptedResponsesTest {
+
+  private static final String DEFENDANT = ConversationStore.AI_DEFENDANT;
+
+  private final ScriptedResponses responses = ScriptedResponses.getInstance();
+
+  @BeforeEach
+  public void setUp() {
+    ConversationStore.getInstance().clear();
+  }
+
+  @AfterEach
+  public void tearDown() {
+    ConversationStore.getInstance().clear();
+  }
+
+  @Test
+  public void testLineIsFilledInAndRecorded() throws Exception {
+    responses.register(DEFENDANT, "test-clue-found", "You found the {clue} in the {place}.");
+    String json = "{\"email\":\"test@example.com\",\"apiKey\":\"key\"}";
+    ChatCompletionRequest request =
+        new ChatCompletionRequest(new ObjectMapper().readValue(json, ApiProxyConfig.class))
+            .addMessage("system", "You are the defendant.");
+    ConversationService.Session session =
+        new ConversationService(Runnable::run).getSession(DEFENDANT, () -> request);
+
+    ChatMessage line =
+        responses.say(
+            session,
+            DEFENDANT,
+            "test-clue-found",
+            Map.of("clue", "logo", "place", "website archive"));
+
+    assertEquals("assistant", line.getRole());
+    assertEquals("You found the logo in the website archive.", line.getContent());
+    assertSame(line, request.getConversation().last());
+    assertRecorded(line);
+  }
+
+  @Test
+  public void testLineWithoutSessionIsStillRecorded() {
+    responses.register(DEFENDANT, "test-fixed-line", "That's where I found the logo.");
+
+    ChatMessage line = responses.say(null, DEFENDANT, "test-fixed-line", null);
+
+    assertEquals("That's where I found the logo.", line.getContent());
+    assertRecorded(line);
+  }
+
+  @Test
+  public void testLinesBelongToOneParticipant() {
+    responses.register(DEFENDANT, "test-own-line", "Only the defendant says this.");
+
+    assertTrue(responses.has(DEFENDANT, "test-own-line"));
+    assertFalse(responses.has(ConversationStore.HUMAN_WITNESS, "test-own-line"));
+    assertThrows(
+        IllegalArgumentException.class,
+        () -> responses.say(null, ConversationStore.HUMAN_WITNESS, "test-own-line", null));
+    List<ChatMessage> witness =
+        ConversationStore.getInstance().getMessages(ConversationStore.HUMAN_WITNESS);
+    assertTrue(witness.isEmpty());
+  }
+
+  private static void assertRecorded(ChatMessage line) {
+    List<ChatMessage> recorded = ConversationStore.getInstance().getMessages(DEFENDANT);
+    assertEquals(1, recorded.size());
+    assertEquals("assistant", recorded.get(0).getRole());
+    assertEquals(line.getContent(), recorded.get(0).getContent());
+  }
+}
@@ -0,0 +1,76 @@
+package nz.ac.auckland.se206.services;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import nz.ac.auckland.se206.services.TaskService.TaskClass;
+import org.junit.jupiter.api.Test;
+
+/** Checks that task classes respect their limits and that closing a scene drops queued work. */
+public class TaskServiceTest {
+
+  @Test
+  public void closingSceneCancelsQueuedTasksButLetsRunningOnesFinish() throws Exception {
+    TaskService service = TaskService.getInstance();
+    TaskService.Scope scene = service.openSceneScope("test");
+    TaskService.Metrics speech = service.getMetrics(TaskClass.SPEECH);
+    long cancelledBefore = speech.getCancelled();
+
+    // Speech runs one task at a time, so the second waits behind the first
+    CountDownLatch started = new CountDownLatch(1);
+    CountDownLatch release = new CountDownLatch(1);
+    CompletableFuture<String> running =
+        scene.submit(
+            TaskClass.SPEECH,
+            () -> {
+              started.countDown();
+              release.await();
+              return "spoken";
+            });
+    assertTrue(started.await(5, TimeUnit.SECONDS));
+    CompletableFuture<String> queued = scene.submit(TaskClass.SPEECH, () -> "never");
+    assertEquals(1, speech.getQueueDepth());
+
+    service.openSceneScope("next");
+    assertTrue(scene.isClosed());
+    assertTrue(queued.isCancelled());
+    assertFalse(running.isDone());
+    assertTrue(scene.submit(TaskClass.SPEECH, () -> "late").isCancelled());
+
+    release.countDown();
+    assertEquals("spoken", running.get(5, TimeUnit.SECONDS));
+    assertEquals(cancelledBefore + 2, waitForCancelled(speech, cancelledBefore + 2));
+    assertEquals(0, speech.getQueueDepth());
+  }
+
+  @Test
+  public void failuresCompleteTheResultExceptionally() throws Exception {
+    TaskService service = TaskService.getInstance();
+    long failedBefore = service.getMetrics(TaskClass.BACKGROUND).getFailed();
+
+    CompletableFuture<Object> result =
+        service
+            .getAppScope()
+            .submit(
+                TaskClass.BACKGROUND,
+                () -> {
+                  throw new IllegalStateException("boom");
+                });
+    assertTrue(result.handle((value, error) -> error != null).get(5, TimeUnit.SECONDS));
+    assertEquals(failedBefore + 1, service.getMetrics(TaskClass.BACKGROUND).getFailed());
+  }
+
+  private static long waitForCancelled(TaskService.Metrics metrics, long expected)
+      throws InterruptedException {
+    // The cancelled task's thread records itself once it wakes from waiting for its slot
+    long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+    while (metrics.getCancelled() < expected && System.nanoTime() < deadline) {
+      Thread.sleep(10);
+    }
+    return metrics.getCancelled();
+  }
+}
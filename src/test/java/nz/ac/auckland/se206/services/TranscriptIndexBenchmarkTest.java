@@ -0,0 +1,91 @@
+package nz.ac.auckland.se206.services;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.List;
+import java.util.Random;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Checks BM25 ranking over conversation turns and measures query time over a synthetic 10,000-turn
+ * transcript.
+ */
+public class TranscriptIndexBenchmarkTest {
+
+  private static final String[] PARTICIPANTS = {"AI-Defendant", "AI-Witness", "Human-Witness"};
+  private static final String[] WORDS = {
+    "painting", "gallery", "archive", "file", "deleted", "midnight", "brush", "canvas", "server",
+    "backup", "contract", "artist", "style", "copy", "training", "dataset", "model", "signature",
+    "studio", "exhibition", "camera", "email", "invoice", "record", "timestamp", "access", "door",
+    "password", "sketch", "colour", "frame", "auction", "buyer", "price", "manager", "office"
+  };
+  private static final int TURNS = 10_000;
+  private static final int QUERIES = 2_000;
+
+  @Test
+  public void testRanksMatchingTurnsFirst() {
+    TranscriptIndex index = new TranscriptIndex();
+    index.add(1, "Human-Witness", "user", "Did you notice the logo on the painting?");
+    index.add(2, "Human-Witness", "assistant", "Only the brush strokes, nothing else.");
+    index.add(3, "AI-Witness", "user", "Show me the deleted logos from the archive.");
+    index.add(4, "AI-Defendant", "user", "Where were you at midnight?");
+
+    List<TranscriptIndex.Hit> hits =
+        index.search("what did I say to the human witness about the logo?", 2, null);
+    assertEquals(2, hits.size());
+    assertEquals(1, hits.get(0).getSequence());
+    assertEquals(3, hits.get(1).getSequence());
+    assertTrue(hits.get(0).getScore() > hits.get(1).getScore());
+
+    // Filters and removal keep turns out of the results
+    TranscriptIndex.Filter notHumanWitness = (turn, who) -> !who.equals("Human-Witness");
+    assertEquals(3, index.search("logo", 5, notHumanWitness).get(0).getSequence());
+    index.remove("AI-Witness");
+    assertEquals(1, index.search("logo", 5, null).size());
+  }
+
+  @Test
+  public void benchmarkQueriesOverTenThousandTurns() {
+    Random random = new Random(42);
+    TranscriptIndex index = new TranscriptIndex();
+    long start = System.nanoTime();
+    for (int turn = 1; turn <= TURNS; turn++) {
+      index.add(
+          turn,
+          PARTICIPANTS[random.nextInt(PARTICIPANTS.length)],
+          turn % 2 == 0 ? "assistant" : "user",
+          sentence(random, 8 + random.nextInt(20)));
+    }
+    long indexNanos = System.nanoTime() - start;
+    index.add(TURNS + 1, "Human-Witness", "user", "What about the golden logo on the frame?");
+
+    String[] queries = new String[QUERIES];
+    for (int i = 0; i < QUERIES; i++) {
+      queries[i] = "what did I say about the " + sentence(random, 3);
+    }
+    for (String query : queries) {
+      index.search(query, 5, null); // Warm up
+    }
+    start = System.nanoTime();
+    for (String query : queries) {
+      index.search(query, 5, null);
+    }
+    long queryNanos = (System.nanoTime() - start) / QUERIES;
+
+    List<TranscriptIndex.Hit> hits =
+        index.search("what did I say to the human witness about the logo?", 5, null);
+    assertEquals(TURNS + 1, hits.get(0).getSequence());
+    System.out.printf(
+        "indexed %d turns in %d ms, %d us per query%n",
+        TURNS, indexNanos / 1_000_000, queryNanos / 1_000);
+  }
+
+  private static String sentence(Random random, int words) {
+    StringBuilder sb = new StringBuilder();
+    for (int i = 0; i < words; i++) {
+      sb.append(i == 0 ? "" : " ").append(WORDS[random.nextInt(WORDS.length)]);
+    }
+    return sb.append('.').toString();
+  }
+}
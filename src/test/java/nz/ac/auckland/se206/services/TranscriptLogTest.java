@@ -0,0 +1,224 @@
+package nz.ac.auckland.se206.services;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Checks that the transcript log survives reopening, recovers from a torn final record and never
+ * reports a failed write as written.
+ */
+public class TranscriptLogTest {
+
+  @TempDir Path dir;
+
+  @Test
+  public void reopenedLogReturnsEveryTurnIntact() throws IOException {
+    Path file = dir.resolve("transcript.log");
+    TranscriptLog log = new TranscriptLog(file);
+    log.append("AI-Witness", "assistant", "Hello.\nI manage the archive.");
+    log.append("AI-Witness", "user", "Who: deleted the logs?");
+    log.clear("AI-Witness");
+    log.append("Human-Witness", "user", "Tell me about the painting");
+    assertEquals("Who: deleted the logs?", log.read(1).getContent());
+    log.close();
+
+    TranscriptLog reopened = new TranscriptLog(file);
+    List<TranscriptLog.Turn> turns = reopened.readAll();
+    assertEquals(4, turns.size());
+    assertEquals("Hello.\nI manage the archive.", turns.get(0).getContent());
+    assertTrue(turns.get(2).isClear());
+    assertEquals("Human-Witness", turns.get(3).getParticipant());
+    reopened.close();
+  }
+
+  @Test
+  public void tornTailIsDroppedOnRecovery() throws IOException {
+    Path file = dir.resolve("transcript.log");
+    TranscriptLog log = new TranscriptLog(file);
+    log.append("AI-Defendant", "user", "First question");
+    log.append("AI-Defendant", "assistant", "First answer");
+    log.close();
+    long intact = Files.size(file);
+
+    // Simulate a crash part way through writing a third record
+    try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+      channel.write(ByteBuffer.allocate(12).putInt(500).putInt(7).putInt(1).flip(), intact);
+    }
+
+    TranscriptLog recovered = new TranscriptLog(file);
+    assertEquals(2, recovered.size());
+    assertEquals(intact, Files.size(file));
+    recovered.append("AI-Defendant", "user", "Second question");
+    assertEquals("Second question", recovered.read(2).getContent());
+    recovered.close();
+  }
+
+  @Test
+  public void zeroFilledTailIsDroppedOnRecovery() throws IOException {
+    Path file = dir.resolve("transcript.log");
+    TranscriptLog log = new TranscriptLog(file);
+    log.append("AI-Defendant", "user", "Where were you?");
+    log.close();
+    long intact = Files.size(file);
+
+    // Simulate a crash after the file was extended but before the records were written
+    try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+      channel.write(ByteBuffer.allocate(64), intact);
+    }
+
+    TranscriptLog recovered = new TranscriptLog(file);
+    assertEquals(1, recovered.size());
+    assertEquals(intact, Files.size(file));
+    assertEquals("Where were you?", recovered.readAll().get(0).getContent());
+    recovered.close();
+  }
+
+  @Test
+  public void failedWriteIsReportedAndNothingIsWrittenPastIt() throws IOException {
+    Path file = dir.resolve("transcript.log");
+    FailingChannel channel =
+        new FailingChannel(
+            FileChannel.open(
+                file,
+                StandardOpenOption.CREATE,
+                StandardOpenOption.READ,
+                StandardOpenOption.WRITE));
+    TranscriptLog log = new TranscriptLog(file, channel);
+    log.append("AI-Witness", "user", "Were you in the archive?");
+    log.flush();
+
+    channel.failing = true;
+    log.append("AI-Witness", "assistant", "I was.");
+    assertThrows(IOException.class, log::flush);
+    assertThrows(IOException.class, () -> log.read(1));
+    assertEquals("Were you in the archive?", log.read(0).getContent());
+
+    // The disk recovers, but a later record must not be written beyond the hole
+    channel.failing = false;
+    log.append("AI-Witness", "user", "Why?");
+    assertThrows(IOException.class, () -> log.read(2));
+    log.close();
+
+    TranscriptLog reopened = new TranscriptLog(file);
+    assertEquals(1, reopened.size());
+    assertEquals("Were you in the archive?", reopened.read(0).getContent());
+    reopened.close();
+  }
+
+  /** Delegates to a real channel, but fails every positional write while {@link #failing}. */
+  private static final class FailingChannel extends FileChannel {
+    private final FileChannel delegate;
+    private volatile boolean failing;
+
+    private FailingChannel(FileChannel delegate) {
+      this.delegate = delegate;
+    }
+
+    @Override
+    public int write(ByteBuffer src, long position) throws IOException {
+      if (failing) {
+        throw new IOException("No space left on device");
+      }
+      return delegate.write(src, position);
+    }
+
+    @Override
+    public int read(ByteBuffer dst) throws IOException {
+      return delegate.read(dst);
+    }
+
+    @Override
+    public long read(ByteBuffer[] dsts, int offset, int length) throws IOException {
+      return delegate.read(dsts, offset, length);
+    }
+
+    @Override
+    public int write(ByteBuffer src) throws IOException {
+      return delegate.write(src);
+    }
+
+    @Override
+    public long write(ByteBuffer[] srcs, int offset, int length) throws IOException {
+      return delegate.write(srcs, offset, length);
+    }
+
+    @Override
+    public long position() throws IOException {
+      return delegate.position();
+    }
+
+    @Override
+    public FileChannel position(long newPosition) throws IOException {
+      delegate.position(newPosition);
+      return this;
+    }
+
+    @Override
+    public long size() throws IOException {
+      return delegate.size();
+    }
+
+    @Override
+    public FileChannel truncate(long size) throws IOException {
+      delegate.truncate(size);
+      return this;
+    }
+
+    @Override
+    public void force(boolean metaData) throws IOException {
+      delegate.force(metaData);
+    }
+
+    @Override
+    public long transferTo(long position, long count, WritableByteChannel target)
+        throws IOException {
+      return delegate.transferTo(position, count, target);
+    }
+
+    @Override
+    public long transferFrom(ReadableByteChannel src, long position, long count)
+        throws IOException {
+      return delegate.transferFrom(src, position, count);
+    }
+
+    @Override
+    public int read(ByteBuffer dst, long position) throws IOException {
+      return delegate.read(dst, position);
+    }
+
+    @Override
+    public MappedByteBuffer map(MapMode mode, long position, long size) throws IOException {
+      return delegate.map(mode, position, size);
+    }
+
+    @Override
+    public FileLock lock(long position, long size, boolean shared) throws IOException {
+      return delegate.lock(position, size, shared);
+    }
+
+    @Override
+    public FileLock tryLock(long position, long size, boolean shared) throws IOException {
+      return delegate.tryLock(position, size, shared);
+    }
+
+    @Override
+    protected void implCloseChannel() throws IOException {
+      delegate.close();
+    }
+  }
+}
@@ -0,0 +1,85 @@
+package nz.ac.auckland.se206.utils;
+
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import java.io.IOException;
+import nz.ac.auckland.apiproxy.chat.openai.ChatCompletionRequest;
+import nz.ac.auckland.apiproxy.chat.openai.ChatMessage;
+import nz.ac.auckland.apiproxy.chat.openai.ConversationCompactor;
+import nz.ac.auckland.apiproxy.config.ApiProxyConfig;
+import nz.ac.auckland.apiproxy.service.EndPoints;
+import nz.ac.auckland.apiproxy.service.LocalProxyServer;
+import nz.ac.auckland.se206.services.ConversationStore;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+/** Checks that context from other conversations survives compaction of the message it came in. */
+public class ChatHistoryUtilTest {
+
+  private static final String FACT = "The painting was moved to the basement vault at midnight.";
+
+  private LocalProxyServer server;
+
+  @BeforeEach
+  public void setUp() throws IOException {
+    server = LocalProxyServer.builder().template("Answer {turn}: I cannot say much.").start();
+    EndPoints.setBaseUrl(server.getBaseUrl());
+    ConversationStore.getInstance().clear();
+  }
+
+  @AfterEach
+  public void tearDown() {
+    ConversationStore.getInstance().clear();
+    EndPoints.setBaseUrl(null);
+    server.close();
+  }
+
+  @Test
+  public void testFoldedContextIsAttachedAgain() throws Exception {
+    ConversationStore store = ConversationStore.getInstance();
+    store.append(ConversationStore.HUMAN_WITNESS, "user", "Where is the painting now?");
+    store.append(ConversationStore.HUMAN_WITNESS, "assistant", FACT);
+
+    String json = "{\"email\":\"test@example.com\",\"apiKey\":\"key\"}";
+    ChatCompletionRequest request =
+        new ChatCompletionRequest(new ObjectMapper().readValue(json, ApiProxyConfig.class))
+            .setCacheable(false)
+            .setCompactor(new ConversationCompactor(400, 2))
+            .addMessage("system", "You are the defendant, an AI accused of stealing a painting.");
+    ChatHistoryUtil.pinContextPreamble(request, ConversationStore.AI_DEFENDANT);
+    ask(request, "Where were you on the night of the theft?");
+    ChatMessage injected = request.getConversation().last();
+    assertTrue(injected.getContent().contains(FACT));
+
+    for (int turn = 1; turn < 20 && contains(request, injected); turn++) {
+      String reply = request.execute().getChoice(0).getChatMessage().getContent();
+      request.addMessage("assistant", reply);
+      if (contains(request, injected)) {
+        ask(request, "Question " + turn + ": tell me again what you were doing that night");
+        assertFalse(request.getConversation().last().getContent().contains(FACT));
+      }
+    }
+    assertFalse(contains(request, injected), "The injected message was never folded");
+
+    // The fact is gone from the summary, so the next message has to bring it back
+    ask(request, "What did the witness tell me?");
+    assertTrue(request.getConversation().last().getContent().contains(FACT));
+  }
+
+  private static void ask(ChatCompletionRequest request, String question) {
+    ChatHistoryUtil.addMessageWithContext(
+        request, new ChatMessage("user", question), ConversationStore.AI_DEFENDANT, null);
+  }
+
+  private static boolean contains(ChatCompletionRequest request, ChatMessage message) {
+    for (ChatMessage candidate : request.getConversation()) {
+      if (candidate == message) {
+        return true;
+      }
+    }
+    return false;
+  }
+}